@@ -0,0 +1,37 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the transfers, always with the GC profiler so
+ * that the allocation rate (gc.alloc.rate.norm, i.e. bytes per operation)
+ * is reported next to every throughput or latency.
+ *
+ * The benchmarks are built with the "benchmarks" profile:
+ *
+ *   mvn -P benchmarks package
+ *   java -jar target/benchmarks.jar [JMH options, e.g. StreamThroughput -p chunkSize=1048576]
+ */
+public class BenchmarkRunner
+{
+	public static void main(String... args)
+	throws RunnerException, CommandLineOptionException
+	{
+		new Runner( new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build() ).run();
+	}
+}
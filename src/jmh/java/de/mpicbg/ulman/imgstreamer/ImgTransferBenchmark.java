@@ -0,0 +1,152 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to send an image with the ImgTransfer and
+ * to receive it, for various pixel types, image layouts and image sizes,
+ * and over the tcp loopback, the ipc, or within the JVM (where the image
+ * is handed over by reference), and with or without the chunks prefetched
+ * on the receiving side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImgTransferBenchmark
+{
+	@Param({"UnsignedByteType", "UnsignedShortType", "FloatType", "DoubleType"})
+	public String pixelType;
+
+	@Param({"ArrayImg", "PlanarImg", "CellImg"})
+	public String layout;
+
+	@Param({"256x256x16", "1024x1024x64"})
+	public String size;
+
+	@Param({"tcp", "ipc", "inproc"})
+	public String transport;
+
+	@Param({"0", "4"})
+	public int prefetchedChunks;
+
+	private String endpoint, URL;
+
+	private ImgPlus imgP;
+	private ExecutorService receiver;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		switch (pixelType)
+		{
+		case "UnsignedByteType":  imgP = new ImgPlus<>( createImg(new UnsignedByteType()) ); break;
+		case "UnsignedShortType": imgP = new ImgPlus<>( createImg(new UnsignedShortType()) ); break;
+		case "FloatType":         imgP = new ImgPlus<>( createImg(new FloatType()) ); break;
+		case "DoubleType":        imgP = new ImgPlus<>( createImg(new DoubleType()) ); break;
+		default:
+			throw new IllegalArgumentException("unknown pixel type: "+pixelType);
+		}
+		switch (transport)
+		{
+		case "tcp":    endpoint = "tcp://*:"+port; URL = "tcp://localhost:"+port; break;
+		case "ipc":    endpoint = URL = "ipc:///tmp/imglib2ZMQ-benchmark"; break;
+		case "inproc": endpoint = URL = "inproc://benchmark"; break;
+		default:
+			throw new IllegalArgumentException("unknown transport: "+transport);
+		}
+
+		ImgTransfer.setPrefetchedChunks(prefetchedChunks);
+		receiver = Executors.newSingleThreadExecutor();
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public ImgPlus<?> sendAndReceive()
+	throws IOException, InterruptedException, ExecutionException
+	{
+		final Future<ImgPlus<?>> received = receiver.submit( () -> ImgTransfer.receiveImage(endpoint, 10, null) );
+		ImgTransfer.sendImage(imgP, URL, 10, null);
+		return received.get();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		receiver.shutdown();
+		ImgTransfer.setPrefetchedChunks(0);
+		ImgTransfer.shutdown();
+	}
+
+
+	/** returns the image of the 'layout' and 'size', filled with increasing values */
+	private <T extends RealType<T> & NativeType<T>>
+	Img<T> createImg(final T t)
+	{
+		final ImgFactory<T> factory;
+		switch (layout)
+		{
+		case "ArrayImg":  factory = new ArrayImgFactory<>(t); break;
+		case "PlanarImg": factory = new PlanarImgFactory<>(t); break;
+		case "CellImg":   factory = new CellImgFactory<>(t, 64); break;
+		default:
+			throw new IllegalArgumentException("unknown image layout: "+layout);
+		}
+
+		final String[] dimsStr = size.split("x");
+		final long[] dims = new long[dimsStr.length];
+		for (int d=0; d < dims.length; ++d) dims[d] = Long.parseLong(dimsStr[d]);
+
+		final Img<T> img = factory.create(dims);
+		long counter = 0;
+		final Cursor<T> imgC = img.cursor();
+		while (imgC.hasNext())
+			imgC.next().setReal(counter++);
+
+		return img;
+	}
+
+	private static final int port = 3500;
+}
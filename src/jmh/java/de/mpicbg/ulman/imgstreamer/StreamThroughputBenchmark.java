@@ -0,0 +1,118 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the raw throughput of the ZeroMQOutputStream and ZeroMQInputStream:
+ * every operation writes the payload, and flushes it, which waits until the
+ * receiver (that only drains the stream) has confirmed all of it. The throughput
+ * in bytes per second is the reported score times the payloadSize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamThroughputBenchmark
+{
+	@Param({"tcp", "ipc", "inproc"})
+	public String transport;
+
+	@Param({"65536", "1048576", "33554432"})
+	public int chunkSize;
+
+	@Param({"1048576", "67108864"})
+	public int payloadSize;
+
+	private byte[] payload;
+
+	/** the sessions share the context of the pool, which the "inproc://" needs */
+	private ZeroMQsessionPool pool;
+
+	private ZeroMQOutputStream out;
+	private ZeroMQInputStream in;
+
+	private Thread drainer;
+	private volatile boolean isDraining;
+
+	@Setup(Level.Trial)
+	public void setup()
+	throws IOException
+	{
+		payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+
+		final String endpoint, URL;
+		switch (transport)
+		{
+		case "tcp":    endpoint = "tcp://*:"+port; URL = "tcp://localhost:"+port; break;
+		case "ipc":    endpoint = URL = "ipc:///tmp/imglib2ZMQ-benchmark"; break;
+		case "inproc": endpoint = URL = "inproc://benchmark"; break;
+		default:
+			throw new IllegalArgumentException("unknown transport: "+transport);
+		}
+
+		//the receiver gives up the waiting (for the next message) after 1 second,
+		//so that it notices soon that the benchmark is over
+		pool = new ZeroMQsessionPool(1, ZeroMQsession.defaultLingerTime, -1);
+		in = new ZeroMQInputStream(pool.bind(endpoint, 1));
+		out = new ZeroMQOutputStream(pool.connect(URL, 10), chunkSize, ZeroMQbufferPool.getDefault());
+
+		isDraining = true;
+		drainer = new Thread(() ->
+		{
+			try {
+				while (isDraining) in.readChunk();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "stream drainer");
+		drainer.start();
+	}
+
+	@Benchmark
+	public void writeAndFlush()
+	throws IOException
+	{
+		out.write(payload);
+		out.flush();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	throws InterruptedException
+	{
+		isDraining = false;
+		drainer.join();
+		out.close();
+		in.close();
+		pool.shutdown();
+	}
+
+	private static final int port = 3501;
+}
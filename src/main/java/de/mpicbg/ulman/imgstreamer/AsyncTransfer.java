@@ -0,0 +1,94 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class runs the (blocking) transfers on an Executor, and provides their
+ * results as CompletableFutures. Cancelling the future interrupts the thread
+ * that is running the transfer, the underlying ZeroMQsession stops waiting
+ * for the other side then, and the transfer fails (and cleans up) right away.
+ */
+class AsyncTransfer
+{
+	/** runs the 'transfer' on the 'executor' */
+	static <V>
+	CompletableFuture<V> run(final Callable<V> transfer, final Executor executor)
+	{
+		final CompletableFuture<V> future = new CompletableFuture<>();
+		final Thread[] runner = new Thread[1];
+
+		try {
+			executor.execute( () -> {
+				synchronized (runner)
+				{
+					if (future.isDone()) return; //cancelled before it has started
+					runner[0] = Thread.currentThread();
+				}
+
+				try {
+					future.complete( transfer.call() );
+				}
+				catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+				finally {
+					synchronized (runner)
+					{
+						runner[0] = null;
+						//the interrupt could have come too late, the thread is clean for its next task
+						Thread.interrupted();
+					}
+				}
+			} );
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+
+		future.whenComplete( (v,e) -> {
+			if (future.isCancelled())
+				synchronized (runner)
+				{
+					if (runner[0] != null) runner[0].interrupt();
+				}
+		} );
+
+		return future;
+	}
+
+	/** returns the executor that starts a virtual thread for every transfer where
+	    the JDK provides them, or that uses a pool of (daemon) threads otherwise */
+	static synchronized
+	Executor getDefaultExecutor()
+	{
+		if (defaultExecutor == null)
+		{
+			try {
+				defaultExecutor = (ExecutorService)Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException | RuntimeException e) {
+				defaultExecutor = Executors.newCachedThreadPool(r -> {
+					final Thread t = new Thread(r, "ImgTransfer async");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+		}
+		return defaultExecutor;
+	}
+
+	private static ExecutorService defaultExecutor = null;
+}
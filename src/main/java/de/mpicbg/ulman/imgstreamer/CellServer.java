@@ -0,0 +1,128 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * This class serves cells (blocks of a regular grid) of an image to the
+ * RemoteCellImg on the other side. The other side asks first for the grid,
+ * and then for the individual cells, every cell is sent as a standalone
+ * image. The serving ends when the other side says so, or when it stays
+ * silent for longer than the timeout of the session.
+ */
+class CellServer
+{
+	/** serves the cells of the image until the other side ends the serving */
+	static <T extends NativeType<T>>
+	void serve(final ImgPlus<T> imgP, final int[] cellDims,
+	           final ZeroMQsession zmq, final ZeroMQsessionPool pool,
+	           final ProgressCallback log)
+	throws IOException
+	{
+		final Img<T> img = imgP.getImg();
+		final int n = img.numDimensions();
+		final long[] imgDims = new long[n];
+		img.dimensions(imgDims);
+		final CellGrid grid = new CellGrid(imgDims, cellDims);
+
+		try {
+			final ZeroMQInputStream zis = new ZeroMQInputStream(zmq);
+			final DataInputStream dis = new DataInputStream(zis);
+			final ZeroMQOutputStream zos = new ZeroMQOutputStream(zmq);
+			final DataOutputStream dos = new DataOutputStream(zos);
+			final ImgStreamer is = new ImgStreamer(log);
+
+			final long[] cellMin = new long[n];
+			final int[] cellSize = new int[n];
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+
+			while (true)
+			{
+				final int request;
+				try {
+					request = dis.readInt();
+				}
+				catch (EOFException e) {
+					//the other side is silent for too long, it is likely gone
+					zmq.close();
+					return;
+				}
+
+				if (request == END_REQUEST) return;
+
+				if (request == GRID_REQUEST)
+				{
+					dos.writeInt(n);
+					for (int d=0; d < n; ++d) dos.writeLong(imgDims[d]);
+					for (int d=0; d < n; ++d) dos.writeInt(cellDims[d]);
+					dos.flush();
+				}
+				else if (request == CELL_REQUEST)
+				{
+					final long index = dis.readLong();
+					if (index < 0 || index >= numCells(grid))
+						throw new IOException("requested cell "+index+" does not exist");
+
+					//copy the cell into a standalone (array) image
+					grid.getCellDimensions(index, cellMin, cellSize);
+					for (int d=0; d < n; ++d)
+					{
+						min[d] = img.min(d) + cellMin[d];
+						max[d] = min[d] + cellSize[d]-1;
+					}
+					final Img<T> cell = new ArrayImgFactory<>(img.firstElement()).create(cellSize);
+					final Cursor<T> srcC = Views.flatIterable( Views.interval(img, new FinalInterval(min,max)) ).cursor();
+					final Cursor<T> dstC = cell.cursor();
+					while (dstC.hasNext())
+						dstC.next().set(srcC.next());
+
+					is.setImageForStreaming(new ImgPlus<>(cell, imgP));
+					is.write(zos);
+					zos.flush();
+				}
+				else
+					throw new IOException("unknown request, communication is broken");
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** returns the number of all cells in the grid */
+	static
+	long numCells(final CellGrid grid)
+	{
+		long cells = 1;
+		for (int d=0; d < grid.numDimensions(); ++d) cells *= grid.gridDimension(d);
+		return cells;
+	}
+
+	/** requests, the cell request is followed with the (flat) index of the cell */
+	static final int GRID_REQUEST = 0x47524944; // "GRID"
+	static final int CELL_REQUEST = 0x43454C4C; // "CELL"
+	static final int END_REQUEST  = 0x454E4452; // "ENDR"
+}
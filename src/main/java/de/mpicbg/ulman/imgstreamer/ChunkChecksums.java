@@ -0,0 +1,167 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * This class provides the checksums of the chunks (ZMQ messages), which are
+ * announced in the StreamHeader at the beginning of the stream. Every chunk
+ * is then followed with its checksum (4 bytes), which
+ * is sent as the trailing frame of the chunk's (multipart) ZMQ message so that
+ * the chunk itself needs not be copied to make room for it. The
+ * ZeroMQInputStream verifies the chunk as soon as its checksum arrives.
+ *
+ * The CRC32C is used if the JVM has it (Java 9+, where it is computed
+ * with the dedicated CPU instructions), the CRC32 is used otherwise.
+ * The checksums are not used unless they are enabled with setEnabled().
+ *
+ * The single-image transfers of the ImgTransfer send also the digest of
+ * the whole stream after the image, which is the checksum of the checksums
+ * of all chunks, so that a missing or repeated chunk is detected too.
+ */
+public class ChunkChecksums
+{
+	/** enables (or disables) the checksums for all ZeroMQOutputStreams created afterwards */
+	public static
+	void setEnabled(final boolean enabled)
+	{
+		isEnabled = enabled;
+	}
+
+	/** returns true if the ZeroMQOutputStreams will send the checksums */
+	public static
+	boolean isEnabled()
+	{
+		return isEnabled;
+	}
+
+	/** returns the name of the checksum used by the ZeroMQOutputStreams */
+	public static
+	String getAlgorithm()
+	{
+		return crc32cConstructor != null ? CRC32C_NAME : CRC32_NAME;
+	}
+
+	/** Returns new checksum of the given name, "CRC32C" or "CRC32".
+	 *
+	 * @throws IOException If no such checksum is available.
+	 */
+	public static
+	Checksum create(final String algorithm)
+	throws IOException
+	{
+		if (CRC32_NAME.equals(algorithm)) return new CRC32();
+
+		if (CRC32C_NAME.equals(algorithm) && crc32cConstructor != null)
+		{
+			try {
+				return (Checksum)crc32cConstructor.invoke();
+			}
+			catch (Throwable e) {
+				throw new IOException("cannot create the "+algorithm+" checksum: "+e.getMessage());
+			}
+		}
+
+		throw new IOException("unknown chunk checksum: "+algorithm);
+	}
+
+	/** returns the checksum of the 'length' bytes of the 'buf' from the 'offset' */
+	static
+	int compute(final Checksum checksum, final byte[] buf, final int offset, final int length)
+	{
+		checksum.reset();
+		checksum.update(buf,offset,length);
+		return (int)checksum.getValue();
+	}
+
+	/** returns the checksum of the remaining bytes of the 'buf', the 'buf' is not modified;
+	    the direct 'buf' is copied piece by piece through the 'scratch' array */
+	static
+	int compute(final Checksum checksum, final ByteBuffer buf, final byte[] scratch)
+	{
+		if (buf.hasArray())
+			return compute(checksum, buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+
+		checksum.reset();
+		if (checksum instanceof CRC32)
+			((CRC32)checksum).update(buf.duplicate());
+		else
+		{
+			final ByteBuffer src = buf.duplicate();
+			while (src.hasRemaining())
+			{
+				final int len = Math.min(src.remaining(), scratch.length);
+				src.get(scratch,0,len);
+				checksum.update(scratch,0,len);
+			}
+		}
+		return (int)checksum.getValue();
+	}
+
+	/** adds the chunk, represented with its 'length' and checksum, to the 'digest'
+	    of the stream; the 'scratch' array must have room for 8 bytes */
+	static
+	void addToDigest(final Checksum digest, final int length, final int chunkChecksum,
+	                 final byte[] scratch)
+	{
+		putInt(scratch,0, length);
+		putInt(scratch,4, chunkChecksum);
+		digest.update(scratch,0,8);
+	}
+
+	/** stores the 'value' into the 'buf' at the 'offset', in the big-endian order */
+	static
+	void putInt(final byte[] buf, final int offset, final int value)
+	{
+		buf[offset  ] = (byte)(value >>> 24);
+		buf[offset+1] = (byte)(value >>> 16);
+		buf[offset+2] = (byte)(value >>>  8);
+		buf[offset+3] = (byte) value;
+	}
+
+	/** returns the value stored with the putInt() */
+	static
+	int getInt(final byte[] buf, final int offset)
+	{
+		return (buf[offset] & 0xFF) << 24 | (buf[offset+1] & 0xFF) << 16
+		     | (buf[offset+2] & 0xFF) << 8 | (buf[offset+3] & 0xFF);
+	}
+
+
+	/** the size of the checksum (the trailing frame) that follows every chunk */
+	static final int CHECKSUM_SIZE = 4;
+
+
+	// -------------- internal stuff --------------
+	private static volatile boolean isEnabled = false;
+
+	private static final String CRC32C_NAME = "CRC32C";
+	private static final String CRC32_NAME  = "CRC32";
+
+	/** the constructor of the java.util.zip.CRC32C, or null if this JVM does not have it */
+	private static final MethodHandle crc32cConstructor = findCRC32C();
+
+	private static
+	MethodHandle findCRC32C()
+	{
+		try {
+			return MethodHandles.publicLookup().findConstructor(
+				Class.forName("java.util.zip.CRC32C"), MethodType.methodType(void.class));
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
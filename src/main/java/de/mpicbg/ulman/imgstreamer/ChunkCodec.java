@@ -0,0 +1,50 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+
+/**
+ * Encodes (e.g. compresses) and decodes the chunks of data that
+ * are sent over the ZeroMQ streams as solo ZMQ messages.
+ *
+ * The implementations must be thread-safe as several chunks are encoded
+ * in parallel. Besides the built-in codecs (see ChunkCodecs), further
+ * codecs can be provided via the java.util.ServiceLoader mechanism,
+ * that is, listed in the META-INF/services/de.mpicbg.ulman.imgstreamer.ChunkCodec
+ * file on the class path. The receiving side must know the codec
+ * under the same name.
+ */
+public interface ChunkCodec
+{
+	/** returns the name under which the codec is announced to the receiver */
+	String getName();
+
+	/** returns the maximum number of bytes that the encode() may produce
+	    from the 'length' bytes of the input */
+	int maxEncodedLength(int length);
+
+	/** Encodes the 'srcLength' bytes of the 'src' from the 'srcOffset' into
+	 *  the 'dst' from the 'dstOffset', the 'dst' has room for at least
+	 *  maxEncodedLength(srcLength) bytes.
+	 *
+	 * @return The number of bytes written into the 'dst'.
+	 */
+	int encode(byte[] src, int srcOffset, int srcLength,
+	           byte[] dst, int dstOffset);
+
+	/** Decodes the 'srcLength' bytes of the 'src' from the 'srcOffset' into
+	 *  exactly the 'dst.length' bytes of the 'dst'.
+	 *
+	 * @throws IOException If the 'src' is not a valid encoded chunk
+	 * or if it decodes into different number of bytes.
+	 */
+	void decode(byte[] src, int srcOffset, int srcLength,
+	            byte[] dst)
+	throws IOException;
+}
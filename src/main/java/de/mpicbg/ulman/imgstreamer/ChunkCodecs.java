@@ -0,0 +1,72 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class finds the chunk codecs by their names, and it provides the pool
+ * of threads that encode the chunks. The codec is announced at the beginning
+ * of the encoded stream with its StreamHeader.
+ */
+public class ChunkCodecs
+{
+	/** Returns the codec of the given name, the built-in "deflate" codec
+	 *  or some codec provided via the java.util.ServiceLoader.
+	 *
+	 * @throws IOException If no such codec is known.
+	 */
+	public static
+	ChunkCodec get(final String name)
+	throws IOException
+	{
+		if (DeflateCodec.NAME.equals(name)) return new DeflateCodec();
+
+		synchronized (codecLoader)
+		{
+			for (ChunkCodec codec : codecLoader)
+				if (codec.getName().equals(name)) return codec;
+		}
+
+		throw new IOException("unknown chunk codec: "+name);
+	}
+
+	/** size of the chunks that are encoded in parallel, smaller than
+	    the ZeroMQOutputStream.defaultChunkSize so that more threads get work */
+	public static final int defaultChunkSize = 1<<22; //= 4 MB
+
+	/** returns the pool of (daemon) threads that encode the chunks,
+	    the pool has as many threads as there are processors */
+	public static synchronized
+	ExecutorService getEncodingPool()
+	{
+		if (encodingPool == null)
+			encodingPool = Executors.newFixedThreadPool(getEncodingThreads(), r -> {
+				final Thread t = new Thread(r, "ZMQ chunk encoder");
+				t.setDaemon(true);
+				return t;
+			});
+		return encodingPool;
+	}
+
+	/** returns the number of threads in the getEncodingPool() */
+	public static
+	int getEncodingThreads()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+
+	// -------------- internal stuff --------------
+	private static final ServiceLoader<ChunkCodec> codecLoader = ServiceLoader.load(ChunkCodec.class);
+
+	private static ExecutorService encodingPool = null;
+}
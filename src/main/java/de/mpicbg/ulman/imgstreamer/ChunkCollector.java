@@ -0,0 +1,69 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This stream collects the written bytes into chunks of the given size,
+ * so that the same chunks can be sent (as solo ZMQ messages) many times.
+ */
+class ChunkCollector extends OutputStream
+{
+	ChunkCollector(final int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+		chunk = new byte[chunkSize];
+	}
+
+	@Override
+	public void write(int b)
+	{
+		if (pos == chunk.length) nextChunk();
+		chunk[pos++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len)
+	{
+		while (len > 0)
+		{
+			if (pos == chunk.length) nextChunk();
+			final int l = Math.min(len, chunk.length - pos);
+			System.arraycopy(b,off, chunk,pos, l);
+			off += l; pos += l; len -= l;
+		}
+	}
+
+	/** returns the chunks, the last one is shortened to its content */
+	List<byte[]> getChunks()
+	{
+		if (pos > 0) chunks.add(Arrays.copyOf(chunk, pos));
+		chunk = new byte[0];
+		pos = 0;
+		return chunks;
+	}
+
+	// -------------- internal stuff --------------
+	private final int chunkSize;
+	private final List<byte[]> chunks = new ArrayList<>();
+
+	private byte[] chunk;
+	private int pos = 0;
+
+	private
+	void nextChunk()
+	{
+		chunks.add(chunk);
+		chunk = new byte[chunkSize];
+		pos = 0;
+	}
+}
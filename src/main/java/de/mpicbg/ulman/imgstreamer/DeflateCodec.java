@@ -0,0 +1,104 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The chunk codec based on the java.util.zip.Deflater, it favours
+ * the speed over the compression ratio unless told otherwise.
+ */
+public class DeflateCodec implements ChunkCodec
+{
+	/** inits the codec with the fastest compression level */
+	public
+	DeflateCodec()
+	{
+		this(Deflater.BEST_SPEED);
+	}
+
+	/** inits the codec with the given compression level (0-9) */
+	public
+	DeflateCodec(final int level)
+	{
+		this.level = level;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public int maxEncodedLength(final int length)
+	{
+		//generously above the zlib's deflateBound() for any compression level
+		return length + (length >> 8) + 64;
+	}
+
+	@Override
+	public int encode(final byte[] src, final int srcOffset, final int srcLength,
+	                  final byte[] dst, final int dstOffset)
+	{
+		final Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(src, srcOffset, srcLength);
+		deflater.finish();
+
+		int len = 0;
+		while (!deflater.finished())
+		{
+			if (dstOffset+len == dst.length)
+				throw new IllegalStateException("no room left for the compressed chunk");
+			len += deflater.deflate(dst, dstOffset+len, dst.length-dstOffset-len);
+		}
+		return len;
+	}
+
+	@Override
+	public void decode(final byte[] src, final int srcOffset, final int srcLength,
+	                   final byte[] dst)
+	throws IOException
+	{
+		final Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(src, srcOffset, srcLength);
+
+		try {
+			int len = 0;
+			while (!inflater.finished())
+			{
+				//once the 'dst' is full, only the end of the compressed data may follow
+				final int l = len < dst.length ? inflater.inflate(dst, len, dst.length-len)
+				                               : inflater.inflate(new byte[1]);
+				if (l == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				len += l;
+			}
+
+			if (len != dst.length || !inflater.finished())
+				throw new IOException("compressed chunk does not decode into "+dst.length+" bytes");
+		}
+		catch (DataFormatException e) {
+			throw new IOException("corrupted compressed chunk: " + e.getMessage());
+		}
+	}
+
+	// -------------- internal stuff --------------
+	public static final String NAME = "deflate";
+
+	private final int level;
+
+	/** every thread has its own (de)compressor, which it re-uses */
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+}
@@ -0,0 +1,80 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This stream reads the bytes written by the DeltaOutputStream: it reads
+ * the XOR of the current and the previous frame from the underlying stream,
+ * and it rebuilds (and returns) the current frame from its copy of the
+ * previous frame. The copy is replaced with the current frame at the same time.
+ *
+ * The stream ends after the whole frame has been read.
+ */
+class DeltaInputStream extends InputStream
+{
+	/** inits the stream that reads from the 'is' the delta against the 'previousFrame' */
+	DeltaInputStream(final InputStream is, final byte[] previousFrame)
+	{
+		this.is = is;
+		this.frame = previousFrame;
+	}
+
+	@Override
+	public int read()
+	throws IOException
+	{
+		if (pos == frame.length) return -1;
+
+		final int b = is.read();
+		if (b == -1)
+			throw new IOException("frame ended prematurely, communication is broken");
+
+		frame[pos] ^= (byte)b;
+		return frame[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len)
+	throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0) return 0;
+		if (pos == frame.length) return -1;
+
+		len = is.read(b, off, Math.min(len, frame.length - pos));
+		if (len == -1)
+			throw new IOException("frame ended prematurely, communication is broken");
+
+		for (int i=0; i < len; ++i)
+		{
+			frame[pos+i] ^= b[off+i];
+			b[off+i] = frame[pos+i];
+		}
+		pos += len;
+		return len;
+	}
+
+	/** reads (and rebuilds) the rest of the frame, which the caller has not read */
+	void skipRest()
+	throws IOException
+	{
+		final byte[] b = new byte[1<<16];
+		while (read(b,0,b.length) > 0) ;
+	}
+
+	// -------------- internal stuff --------------
+	private final InputStream is;
+
+	/** the previous frame, which is being replaced with the current one */
+	private final byte[] frame;
+	private int pos = 0;
+}
@@ -0,0 +1,87 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * This stream writes the XOR of the written bytes and of the bytes of the
+ * previous frame into the underlying stream, and it replaces the previous
+ * frame with the written bytes at the same time. The bytes that have not
+ * changed since the previous frame are thus written as zeros, which
+ * compress very well.
+ *
+ * Writing against the previous frame full of zeros writes the bytes as they are.
+ */
+class DeltaOutputStream extends OutputStream
+{
+	/** inits the stream that writes into the 'os' the delta against the 'previousFrame' */
+	DeltaOutputStream(final OutputStream os, final byte[] previousFrame)
+	{
+		this.os = os;
+		this.frame = previousFrame;
+	}
+
+	@Override
+	public void write(int b)
+	throws IOException
+	{
+		if (pos == frame.length)
+			throw new IOException("frame is longer than "+frame.length+" bytes");
+
+		os.write(b ^ frame[pos]);
+		frame[pos++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len)
+	throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len > frame.length - pos)
+			throw new IOException("frame is longer than "+frame.length+" bytes");
+
+		while (len > 0)
+		{
+			final int l = Math.min(len, delta.length);
+			for (int i=0; i < l; ++i)
+			{
+				delta[i] = (byte)(b[off+i] ^ frame[pos+i]);
+				frame[pos+i] = b[off+i];
+			}
+			os.write(delta,0,l);
+			off += l; pos += l; len -= l;
+		}
+	}
+
+	/** completes the frame if fewer bytes than its length have been written,
+	    the rest of the frame is written as not changed since the previous frame */
+	void finishFrame()
+	throws IOException
+	{
+		Arrays.fill(delta, (byte)0);
+		while (pos < frame.length)
+		{
+			final int l = Math.min(frame.length - pos, delta.length);
+			os.write(delta,0,l);
+			pos += l;
+		}
+	}
+
+	// -------------- internal stuff --------------
+	private final OutputStream os;
+
+	/** the previous frame, which is being replaced with the current one */
+	private final byte[] frame;
+	private int pos = 0;
+
+	private final byte[] delta = new byte[1<<16];
+}
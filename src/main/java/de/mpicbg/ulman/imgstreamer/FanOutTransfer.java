@@ -0,0 +1,195 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class serves one image to many requesters at the same time. The image
+ * is serialized only once into chunks, and the same chunks are sent to every
+ * requester over one ZMQ.ROUTER socket. Every requester has its own window of
+ * unconfirmed chunks, so a slow requester does not hold back the others.
+ *
+ * The requesters talk to the server with ZMQ.DEALER sockets but otherwise
+ * exactly as with the ZeroMQsession: they ask for the image with a request
+ * message, and confirm every received chunk.
+ */
+class FanOutTransfer
+{
+	/** serves the image to 'requesters' requesters, returns how many of them got it
+	    completely (the others have been silent for longer than the 'timeOut') */
+	static <T extends NativeType<T>>
+	int serveImage(final ImgPlus<T> imgP, final String endpoint, final int requesters,
+	               final int timeOut, final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		//the "inproc://" endpoint is reachable only from within the context of the requesters' pool
+		final boolean isInProcess = InProcessTransfer.isInProcess(endpoint);
+		final ZMQ.Context zmqContext = isInProcess ? pool.getContext() : ZMQ.context(1);
+		ZMQ.Socket zmqSocket = null;
+		Selector zmqSelector = null;
+		try {
+			zmqSocket = zmqContext.socket(ZMQ.ROUTER);
+			zmqSocket.bind(endpoint);
+			zmqSelector = zmqContext.selector();
+			final ZMQ.PollItem[] zmqPollItems = { new ZMQ.PollItem(zmqSocket, ZMQ.Poller.POLLIN) };
+
+			//serialize the image only once (the requesters may connect meanwhile,
+			//and the early "inproc://" connections are lost if not bound yet)
+			final ChunkCollector chunkCollector = new ChunkCollector(chunkSize);
+			final ImgStreamer is = new ImgStreamer(log);
+			is.setImageForStreaming(imgP);
+			is.write(chunkCollector);
+			final List<byte[]> chunks = chunkCollector.getChunks();
+
+			final Map<ByteBuffer, Requester> activeRequesters = new HashMap<>();
+			int served = 0, dropped = 0;
+			long lastActivity = System.currentTimeMillis();
+
+			while (served+dropped < requesters)
+			{
+				ZMQ.poll(zmqSelector, zmqPollItems, 1000);
+
+				while ((zmqSocket.getEvents() & ZMQ.Poller.POLLIN) == ZMQ.Poller.POLLIN)
+				{
+					//ROUTER's messages come as: identity of the requester, the message
+					final byte[] identity = zmqSocket.recv();
+					if (!zmqSocket.hasReceiveMore()) continue;
+					final byte[] msg = zmqSocket.recv();
+					while (zmqSocket.hasReceiveMore()) zmqSocket.recv();
+
+					lastActivity = System.currentTimeMillis();
+					final ByteBuffer key = ByteBuffer.wrap(identity);
+					Requester r = activeRequesters.get(key);
+
+					if (r == null)
+					{
+						if (!isRequest(msg) || served+dropped+activeRequesters.size() >= requesters) continue;
+
+						//new requester: confirm its request, and start sending
+						r = new Requester(identity);
+						activeRequesters.put(key, r);
+						zmqSocket.sendMore(identity);
+						zmqSocket.send(confirmationMsg, 0);
+					}
+					else if (msg.length > 0 && msg[0] == 'O')
+					{
+						//confirmation of a chunk
+						++r.credits;
+						if (++r.confirmedChunks == chunks.size())
+						{
+							activeRequesters.remove(key);
+							++served;
+							continue;
+						}
+					}
+					else continue;
+
+					r.lastActivity = lastActivity;
+					while (r.credits > 0 && r.nextChunk < chunks.size())
+					{
+						zmqSocket.sendMore(r.identity);
+						zmqSocket.send(chunks.get(r.nextChunk++), 0);
+						--r.credits;
+					}
+				}
+
+				//forget the requesters that are silent for too long
+				final long now = System.currentTimeMillis();
+				final Iterator<Requester> it = activeRequesters.values().iterator();
+				while (it.hasNext())
+					if (now - it.next().lastActivity > 1000L*timeOut)
+					{
+						it.remove();
+						++dropped;
+					}
+
+				if (activeRequesters.isEmpty() && now - lastActivity > 1000L*timeOut) break;
+			}
+
+			return served;
+		}
+		catch (ZMQException e) {
+			throw new IOException("network error: " + e.getMessage());
+		}
+		finally {
+			if (zmqSelector != null) zmqContext.close(zmqSelector);
+			if (zmqSocket != null)
+			{
+				zmqSocket.setLinger(ZeroMQsession.defaultLingerTime);
+				zmqSocket.close();
+			}
+			if (!isInProcess) zmqContext.term();
+		}
+	}
+
+	/** requests the image from the fan-out server over the 'zmq' session,
+	    which must be a ZMQ.DEALER one, and reads it */
+	static
+	ImgPlus<?> readImage(final ZeroMQsession zmq,
+	                     final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			//(the server reads plain messages, not a ZeroMQOutputStream with its header)
+			final byte[] request = ByteBuffer.allocate(4).putInt(FANOUT_REQUEST).array();
+			zmq.writeZMQ(request,0,request.length);
+			zmq.waitForAllConfirmations();
+
+			final ImgStreamer is = new ImgStreamer(log);
+			return is.read(new ZeroMQInputStream(zmq));
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+
+	// -------------- internal stuff --------------
+	/** state of one requester */
+	private static class Requester
+	{
+		Requester(final byte[] identity)
+		{
+			this.identity = identity;
+		}
+
+		final byte[] identity;
+		int nextChunk = 0;
+		int confirmedChunks = 0;
+		int credits = ZeroMQOutputStream.defaultWindowSize;
+		long lastActivity;
+	}
+
+	private static
+	boolean isRequest(final byte[] msg)
+	{
+		return msg.length == 4 && ByteBuffer.wrap(msg).getInt() == FANOUT_REQUEST;
+	}
+
+	/** size of the chunks, the chunks are kept in memory until all requesters got them */
+	private static final int chunkSize = 1<<22; //= 4 MB
+
+	private static final int FANOUT_REQUEST = 0x46414E51; // "FANQ"
+	private static final byte[] confirmationMsg = new byte[] { 'O','K' };
+}
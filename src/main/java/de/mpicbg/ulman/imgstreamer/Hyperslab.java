@@ -0,0 +1,216 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.view.Views;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class describes a region of an image: a box (from 'min' to 'max',
+ * both inclusive) from which only every 'step'-th pixel is taken along each
+ * dimension. For example, a crop of the first two channels of every other
+ * time point of a XYCT image is given with min = {x0,y0,0,0}, max = {x1,y1,1,T},
+ * and step = {1,1,1,2}.
+ */
+public class Hyperslab
+{
+	/** inits the region that covers the whole interval */
+	public
+	Hyperslab(final Interval interval)
+	{
+		this(minOf(interval), maxOf(interval));
+	}
+
+	/** inits the box region, every pixel in the box is taken */
+	public
+	Hyperslab(final long[] min, final long[] max)
+	{
+		this(min, max, ones(min.length));
+	}
+
+	/** inits the box region, only every 'step'-th pixel in the box is taken */
+	public
+	Hyperslab(final long[] min, final long[] max, final long[] step)
+	{
+		if (min.length != max.length || min.length != step.length)
+			throw new IllegalArgumentException("min, max and step must be of the same length");
+
+		for (int d=0; d < min.length; ++d)
+		{
+			if (max[d] < min[d])
+				throw new IllegalArgumentException("max is smaller than min in dimension "+d);
+			if (step[d] < 1)
+				throw new IllegalArgumentException("step must be positive, got "+step[d]);
+		}
+
+		this.min = min.clone();
+		this.max = max.clone();
+		this.step = step.clone();
+	}
+
+	public
+	int numDimensions()
+	{
+		return min.length;
+	}
+
+	/** returns the first pixel of the region along the dimension 'd' */
+	public
+	long min(final int d)
+	{
+		return min[d];
+	}
+
+	/** returns the last pixel of the box along the dimension 'd' */
+	public
+	long max(final int d)
+	{
+		return max[d];
+	}
+
+	/** returns the step between the taken pixels along the dimension 'd' */
+	public
+	long step(final int d)
+	{
+		return step[d];
+	}
+
+	/** returns the number of pixels of the region along the dimension 'd' */
+	public
+	long dimension(final int d)
+	{
+		return (max[d]-min[d]) / step[d] +1;
+	}
+
+	/** Returns the view on the region of the 'img', the view starts at zero.
+	 *
+	 * @throws IOException If the region is not inside the 'img'.
+	 */
+	public <T>
+	RandomAccessibleInterval<T> apply(final RandomAccessibleInterval<T> img)
+	throws IOException
+	{
+		if (img.numDimensions() != min.length)
+			throw new IOException("region has "+min.length+" dimensions but image has "
+			                      +img.numDimensions()+" dimensions");
+		for (int d=0; d < min.length; ++d)
+			if (min[d] < img.min(d) || max[d] > img.max(d))
+				throw new IOException("region is not inside the image in dimension "+d);
+
+		return Views.subsample( Views.zeroMin( Views.interval(img, new FinalInterval(min,max)) ), step );
+	}
+
+	/** Returns the 'img' with the metadata of this region of the 'source', that is,
+	 *  with the metadata of the 'source' where the calibration of every axis is moved to
+	 *  start at the region's first pixel, and scaled to span the 'step' per pixel.
+	 */
+	<T>
+	ImgPlus<T> wrap(final Img<T> img, final ImgPlus<?> source)
+	{
+		final ImgPlus<T> imgP = new ImgPlus<>(img, source);
+		for (int d=0; d < min.length; ++d)
+		{
+			final CalibratedAxis axis = source.axis(d);
+			final double origin = axis.calibratedValue(min[d]);
+			final double scale  = axis.calibratedValue(min[d]+step[d]) - origin;
+			imgP.setAxis(new DefaultLinearAxis(axis.type(), axis.unit(), scale, origin), d);
+		}
+		return imgP;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder("Hyperslab");
+		for (int d=0; d < min.length; ++d)
+			sb.append(d == 0 ? " [" : ", ").append(min[d]).append("..").append(max[d])
+			  .append(step[d] > 1 ? " by "+step[d] : "");
+		return sb.append("]").toString();
+	}
+
+
+	// -------------- internal stuff --------------
+	private final long[] min;
+	private final long[] max;
+	private final long[] step;
+
+	private static
+	long[] minOf(final Interval interval)
+	{
+		final long[] min = new long[interval.numDimensions()];
+		interval.min(min);
+		return min;
+	}
+
+	private static
+	long[] maxOf(final Interval interval)
+	{
+		final long[] max = new long[interval.numDimensions()];
+		interval.max(max);
+		return max;
+	}
+
+	private static
+	long[] ones(final int n)
+	{
+		final long[] ones = new long[n];
+		Arrays.fill(ones, 1);
+		return ones;
+	}
+
+	/** sends this region over network */
+	void write(final DataOutputStream dos)
+	throws IOException
+	{
+		dos.writeInt(min.length);
+		for (int d=0; d < min.length; ++d)
+		{
+			dos.writeLong(min[d]);
+			dos.writeLong(max[d]);
+			dos.writeLong(step[d]);
+		}
+	}
+
+	/** receives the region from network */
+	static
+	Hyperslab read(final DataInputStream dis)
+	throws IOException
+	{
+		final int n = dis.readInt();
+		if (n < 1 || n > 1024)
+			throw new IOException("region has "+n+" dimensions, communication is broken");
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		final long[] step = new long[n];
+		for (int d=0; d < n; ++d)
+		{
+			min[d] = dis.readLong();
+			max[d] = dis.readLong();
+			step[d] = dis.readLong();
+		}
+
+		try {
+			return new Hyperslab(min, max, step);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("received region is invalid: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+/**
+ * The interfaces of the reactive streams with backpressure, they are the same
+ * as those of the java.util.concurrent.Flow (which is not available in Java 8),
+ * and they follow the same rules. On newer JDKs, they can be bridged to the
+ * Flow ones with a trivial adapter.
+ */
+public final class ImgFlow
+{
+	private ImgFlow() {}
+
+	/** a producer of items, which it gives to its subscriber as demanded */
+	public interface Publisher<T>
+	{
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/** a receiver of items, which it demands via its subscription */
+	public interface Subscriber<T>
+	{
+		void onSubscribe(Subscription subscription);
+		void onNext(T item);
+		void onError(Throwable throwable);
+		void onComplete();
+	}
+
+	/** a link between the publisher and the subscriber */
+	public interface Subscription
+	{
+		/** adds 'n' items to the demand, 'n' must be positive */
+		void request(long n);
+
+		/** no more items are wanted */
+		void cancel();
+	}
+}
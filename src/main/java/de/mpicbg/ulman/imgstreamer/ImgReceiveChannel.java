@@ -0,0 +1,234 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static de.mpicbg.ulman.imgstreamer.ImgSendChannel.FRAME_DELIMITER;
+import static de.mpicbg.ulman.imgstreamer.ImgSendChannel.PIXELS_DELIMITER;
+import static de.mpicbg.ulman.imgstreamer.ImgSendChannel.END_DELIMITER;
+import static de.mpicbg.ulman.imgstreamer.ImgSendChannel.KEY_DELIMITER;
+import static de.mpicbg.ulman.imgstreamer.ImgSendChannel.DELTA_DELIMITER;
+
+/**
+ * This class receives a sequence of images (e.g. frames of a time-lapse) over
+ * one network session from the ImgSendChannel on the other side. The session,
+ * its buffers and the ImgStreamer are re-used for all images.
+ *
+ * The frames of the delta mode are recognized automatically, the channel
+ * keeps a copy of the previous image (in its serialized form) then.
+ *
+ * The frames can be received also into one existing image with the receiveInto(),
+ * the frames sent with the ImgSendChannel.sendPixels() are then read directly
+ * into the image, without any new image allocated.
+ */
+public class ImgReceiveChannel implements Closeable
+{
+	// -------------- API stuff --------------
+	/** inits this channel on top of the session that was obtained from the pool,
+	    the chunks are prefetched as set with the ImgTransfer.setPrefetchedChunks() */
+	ImgReceiveChannel(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	                  final ProgressCallback log)
+	{
+		this(session, pool, log, ImgTransfer.getPrefetchedChunks());
+	}
+
+	/** inits this channel on top of the session that was obtained from the pool,
+	    up to 'prefetchedChunks' chunks are received in the background unless it is 0
+	    (the session must not be used for sending then until the channel is closed) */
+	ImgReceiveChannel(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	                  final ProgressCallback log, final int prefetchedChunks)
+	{
+		zmq = session;
+		this.pool = pool;
+		zis = new ZeroMQInputStream(zmq);
+		if (prefetchedChunks > 0) zis.startPrefetching(prefetchedChunks);
+		dis = new DataInputStream(zis);
+		is = new ImgStreamer(log);
+		this.log = log;
+	}
+
+	/** Receives the next frame of this channel.
+	 *
+	 * @return The next image, or null if the sender has ended the channel.
+	 * @throws IOException If the transfer fails (incl. the timeout),
+	 * the channel is unusable afterwards.
+	 */
+	public
+	ImgPlus<?> receive()
+	throws IOException
+	{
+		if (isClosed)
+			throw new IOException("the channel is closed");
+		if (isEnded) return null;
+
+		try {
+			final int delimiter = dis.readInt();
+			final int frameNo = dis.readInt();
+
+			if (frameNo != framesReceived)
+				throw new IOException("expected frame "+framesReceived+" but frame "+frameNo+" is coming");
+
+			if (delimiter == END_DELIMITER)
+			{
+				isEnded = true;
+				return null;
+			}
+			final ImgPlus<?> imgP = delimiter == PIXELS_DELIMITER ?
+				pixels().read(zis, log) : receiveFrame(delimiter);
+
+			++framesReceived;
+			return imgP;
+		}
+		catch (IOException | RuntimeException e) {
+			abandon();
+			throw e;
+		}
+	}
+
+	/** Receives the next frame of this channel into the given image, which
+	 *  must be of the same type and dimensions as the frame.
+	 *
+	 * @return False if the sender has ended the channel (and the 'img' is not changed).
+	 * @throws IOException If the transfer fails (incl. the timeout, or the
+	 * frame not fitting the 'img'), the channel is unusable afterwards.
+	 */
+	public <T extends NativeType<T>>
+	boolean receiveInto(final Img<T> img)
+	throws IOException
+	{
+		if (isClosed)
+			throw new IOException("the channel is closed");
+		if (isEnded) return false;
+
+		try {
+			final int delimiter = dis.readInt();
+			final int frameNo = dis.readInt();
+
+			if (frameNo != framesReceived)
+				throw new IOException("expected frame "+framesReceived+" but frame "+frameNo+" is coming");
+
+			if (delimiter == END_DELIMITER)
+			{
+				isEnded = true;
+				return false;
+			}
+			if (delimiter == PIXELS_DELIMITER)
+				pixels().read(img, zis, log);
+			else
+				PixelTransfer.copyInto(img, receiveFrame(delimiter).getImg());
+
+			++framesReceived;
+			return true;
+		}
+		catch (IOException | RuntimeException e) {
+			abandon();
+			throw e;
+		}
+	}
+
+	/** returns how many images have been received so far */
+	public
+	int getFramesReceived()
+	{
+		return framesReceived;
+	}
+
+	/** Stops receiving from this channel. The underlying session is
+	 *  re-used later only if the sender has ended the channel. */
+	@Override
+	public void close()
+	{
+		if (isClosed) return;
+		isClosed = true;
+
+		zis.stopPrefetching();
+		if (!isEnded) zmq.close();
+		pool.release(zmq);
+	}
+
+
+	// -------------- internal stuff --------------
+	private final ZeroMQsession zmq;
+	private final ZeroMQsessionPool pool;
+
+	private final ZeroMQInputStream zis;
+	private final DataInputStream dis;
+	private final ImgStreamer is;
+	private final ProgressCallback log;
+
+	/** the buffers for the frames of only pixels, created with their first use */
+	private PixelTransfer pixels = null;
+
+	private
+	PixelTransfer pixels()
+	{
+		if (pixels == null) pixels = new PixelTransfer();
+		return pixels;
+	}
+
+	/** reads the image of the frame that starts with the 'delimiter' */
+	private
+	ImgPlus<?> receiveFrame(final int delimiter)
+	throws IOException
+	{
+		if (delimiter == KEY_DELIMITER || delimiter == DELTA_DELIMITER)
+			return receiveDeltaFrame(delimiter == KEY_DELIMITER);
+		else if (delimiter == FRAME_DELIMITER)
+			return is.read(zis);
+		else
+			throw new IOException("frame delimiter not found, communication is broken");
+	}
+
+	/** the channel cannot be continued after a failure */
+	private
+	void abandon()
+	{
+		isClosed = true;
+		zis.close();
+		pool.release(zmq);
+	}
+
+	/** the previous image of the delta mode, in its serialized form */
+	private byte[] previousFrame = null;
+
+	/** reads the image that comes as a delta against the previous frame */
+	private
+	ImgPlus<?> receiveDeltaFrame(final boolean isKeyFrame)
+	throws IOException
+	{
+		final int length = dis.readInt();
+		if (length < 0)
+			throw new IOException("frame length is corrupted, communication is broken");
+
+		if (isKeyFrame)
+		{
+			//key frame is a delta against the frame full of zeros
+			if (previousFrame == null || previousFrame.length != length) previousFrame = new byte[length];
+			else Arrays.fill(previousFrame, (byte)0);
+		}
+		else if (previousFrame == null || previousFrame.length != length)
+			throw new IOException("delta frame does not match the previous frame, communication is broken");
+
+		final DeltaInputStream deltaStream = new DeltaInputStream(zis, previousFrame);
+		final ImgPlus<?> imgP = is.read(deltaStream);
+		deltaStream.skipRest();
+		return imgP;
+	}
+
+	private int framesReceived = 0;
+	private boolean isEnded = false;
+	private boolean isClosed = false;
+}
@@ -0,0 +1,161 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+
+import java.util.concurrent.Executor;
+
+/**
+ * This class publishes the images that arrive from the ImgSendSubscriber
+ * on the other side. The demand of the subscriber of this publisher is
+ * forwarded to the other side, which sends only the demanded images, so
+ * a slow subscriber throttles the producer of the images over the network.
+ *
+ * The images can be published only to one subscriber, and the images are
+ * given to it from a thread of the executor.
+ */
+public class ImgReceivePublisher implements ImgFlow.Publisher<ImgPlus<?>>
+{
+	// -------------- API stuff --------------
+	/** inits this publisher on top of the session that was obtained from the pool */
+	ImgReceivePublisher(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	                    final ProgressCallback log, final Executor executor)
+	{
+		zmq = session;
+		//(no prefetching, the demand is signalled over the same session)
+		channel = new ImgReceiveChannel(session, pool, log, 0);
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(final ImgFlow.Subscriber<? super ImgPlus<?>> subscriber)
+	{
+		if (subscriber == null) throw new NullPointerException("subscriber must not be null");
+
+		synchronized (this)
+		{
+			if (isSubscribed)
+			{
+				subscriber.onSubscribe(noSubscription);
+				subscriber.onError(new IllegalStateException("the images can be published only once"));
+				return;
+			}
+			isSubscribed = true;
+		}
+
+		final Delivery delivery = new Delivery(subscriber);
+		subscriber.onSubscribe(delivery);
+		try {
+			executor.execute(delivery);
+		}
+		catch (RuntimeException e) {
+			channel.close();
+			subscriber.onError(e);
+		}
+	}
+
+
+	// -------------- internal stuff --------------
+	private final ZeroMQsession zmq;
+	private final ImgReceiveChannel channel;
+	private final Executor executor;
+
+	private boolean isSubscribed = false;
+
+	/** receives the images as demanded, and gives them to the subscriber */
+	private class Delivery implements ImgFlow.Subscription, Runnable
+	{
+		Delivery(final ImgFlow.Subscriber<? super ImgPlus<?>> subscriber)
+		{
+			this.subscriber = subscriber;
+		}
+
+		private final ImgFlow.Subscriber<? super ImgPlus<?>> subscriber;
+
+		/** the demand that has not been forwarded yet to the other side */
+		private long requested = 0;
+		private boolean isCancelled = false;
+		private boolean isRequestInvalid = false;
+
+		@Override
+		public synchronized void request(final long n)
+		{
+			if (n <= 0) isRequestInvalid = true;
+			else requested = requested+n < 0 ? Long.MAX_VALUE : requested+n;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void cancel()
+		{
+			isCancelled = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run()
+		{
+			//the demand forwarded to the other side that has not been satisfied yet
+			long demand = 0;
+
+			try {
+				while (true)
+				{
+					long n;
+					synchronized (this)
+					{
+						while (demand == 0 && requested == 0 && !isCancelled && !isRequestInvalid) wait();
+
+						if (isCancelled) break;
+						if (isRequestInvalid)
+							throw new IllegalArgumentException("only positive number of images can be requested");
+
+						n = requested;
+						requested = 0;
+					}
+
+					if (n > 0)
+					{
+						zmq.signalDemand(n);
+						demand = demand+n < 0 ? Long.MAX_VALUE : demand+n;
+					}
+
+					final ImgPlus<?> imgP = channel.receive();
+					if (imgP == null)
+					{
+						channel.close();
+						subscriber.onComplete();
+						return;
+					}
+
+					if (demand < Long.MAX_VALUE) --demand;
+					subscriber.onNext(imgP);
+				}
+
+				//cancelled: the other side shall not send anything more
+				zmq.signalDemand(-1);
+				channel.close();
+			}
+			catch (Throwable e) {
+				if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+				channel.close();
+				subscriber.onError(e);
+			}
+		}
+	}
+
+	private static final ImgFlow.Subscription noSubscription = new ImgFlow.Subscription()
+	{
+		@Override
+		public void request(final long n) {}
+
+		@Override
+		public void cancel() {}
+	};
+}
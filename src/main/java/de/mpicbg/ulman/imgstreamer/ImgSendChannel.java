@@ -0,0 +1,243 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class sends a sequence of images (e.g. frames of a time-lapse) over
+ * one network session to the ImgReceiveChannel on the other side. The session,
+ * its buffers and the ImgStreamer are re-used for all images.
+ *
+ * Every image is preceded with a frame delimiter, and the channel
+ * is ended with an end-of-channel delimiter when closed.
+ *
+ * In the delta mode, the channel keeps the previous image (in its serialized
+ * form), and it sends only the XOR of the current and the previous image,
+ * which is mostly zeros for similar images. The delta frames are therefore
+ * much smaller once compressed with a codec. A key frame (a delta against
+ * nothing) is sent every 'keyFrameInterval' images, and whenever the size
+ * of the images changes.
+ *
+ * The images sent with the sendPixels() come without their metadata, and can be
+ * received (with the ImgReceiveChannel.receiveInto()) into one existing image.
+ */
+public class ImgSendChannel implements Closeable
+{
+	// -------------- API stuff --------------
+	/** inits this channel on top of the session that was obtained from the pool */
+	ImgSendChannel(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	               final ProgressCallback log)
+	{
+		this(session, pool, log, null);
+	}
+
+	/** inits this channel on top of the session that was obtained from the pool,
+	    the images are compressed with the 'codec' unless it is null */
+	ImgSendChannel(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	               final ProgressCallback log, final ChunkCodec codec)
+	{
+		this(session, pool, log, codec, 0);
+	}
+
+	/** inits this channel on top of the session that was obtained from the pool,
+	    the images are compressed with the 'codec' unless it is null, and they
+	    are sent in the delta mode with the given key frames interval unless it is 0 */
+	ImgSendChannel(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	               final ProgressCallback log, final ChunkCodec codec,
+	               final int keyFrameInterval)
+	{
+		if (keyFrameInterval < 0)
+			throw new IllegalArgumentException("key frame interval must not be negative, got "+keyFrameInterval);
+
+		this.keyFrameInterval = keyFrameInterval;
+		zmq = session;
+		this.pool = pool;
+		zos = ImgTransfer.createOutputStream(zmq, codec);
+		dos = new DataOutputStream(zos);
+		is = new ImgStreamer(log);
+		this.log = log;
+	}
+
+	/** Sends the image as the next frame of this channel.
+	 *
+	 * @throws IOException If the transfer fails, the channel
+	 * is unusable afterwards.
+	 */
+	public <T extends NativeType<T>>
+	void send(final ImgPlus<T> imgP)
+	throws IOException
+	{
+		if (isClosed)
+			throw new IOException("the channel is closed");
+
+		try {
+			is.setImageForStreaming(imgP);
+			final long length = is.getOutputStreamLength();
+
+			if (keyFrameInterval > 0 && length <= maxDeltaFrameLength)
+				sendDeltaFrame((int)length);
+			else
+			{
+				dos.writeInt(FRAME_DELIMITER);
+				dos.writeInt(framesSent);
+				is.write(zos);
+			}
+			zos.flush();
+		}
+		catch (IOException | RuntimeException e) {
+			abandon();
+			throw e;
+		}
+
+		++framesSent;
+	}
+
+	/** Sends only the pixels of the image (without its metadata) as the next
+	 *  frame of this channel, the frame is never sent as a delta frame.
+	 *
+	 * @throws IOException If the transfer fails, the channel
+	 * is unusable afterwards.
+	 */
+	public <T extends NativeType<T>>
+	void sendPixels(final ImgPlus<T> imgP)
+	throws IOException
+	{
+		if (isClosed)
+			throw new IOException("the channel is closed");
+
+		try {
+			if (pixels == null) pixels = new PixelTransfer();
+
+			dos.writeInt(PIXELS_DELIMITER);
+			dos.writeInt(framesSent);
+			pixels.write(imgP.getImg(), zos, log);
+			zos.flush();
+		}
+		catch (IOException | RuntimeException e) {
+			abandon();
+			throw e;
+		}
+
+		++framesSent;
+	}
+
+	/** returns how many images have been sent so far */
+	public
+	int getFramesSent()
+	{
+		return framesSent;
+	}
+
+	/** Ends this channel, and lets the receiver know about it.
+	 *
+	 * @throws IOException If the receiver does not confirm the end of the channel.
+	 */
+	@Override
+	public void close()
+	throws IOException
+	{
+		if (isClosed) return;
+
+		try {
+			dos.writeInt(END_DELIMITER);
+			dos.writeInt(framesSent);
+			zos.flush();
+		}
+		catch (IOException | RuntimeException e) {
+			abandon();
+			throw e;
+		}
+
+		isClosed = true;
+		pool.release(zmq);
+	}
+
+
+	// -------------- internal stuff --------------
+	private final ZeroMQsession zmq;
+	private final ZeroMQsessionPool pool;
+
+	private final ZeroMQOutputStream zos;
+	private final DataOutputStream dos;
+	private final ImgStreamer is;
+	private final ProgressCallback log;
+
+	/** the buffers of the sendPixels(), created with its first use */
+	private PixelTransfer pixels = null;
+
+	private int framesSent = 0;
+	private boolean isClosed = false;
+
+	// -------------- delta mode stuff --------------
+	/** 0 if not in the delta mode, otherwise every n-th frame is a key frame */
+	private final int keyFrameInterval;
+	private int framesSinceKeyFrame = 0;
+
+	/** the previous image, in its serialized form */
+	private byte[] previousFrame = null;
+
+	/** frames must fit into a Java array to be sent in the delta mode */
+	private static final long maxDeltaFrameLength = Integer.MAX_VALUE - 8;
+
+	/** writes the image, which is already set in the ImgStreamer, as a delta frame */
+	private
+	void sendDeltaFrame(final int length)
+	throws IOException
+	{
+		final boolean isKeyFrame = previousFrame == null || previousFrame.length != length
+		                           || framesSinceKeyFrame+1 >= keyFrameInterval;
+		if (isKeyFrame)
+		{
+			//key frame is a delta against the frame full of zeros
+			if (previousFrame == null || previousFrame.length != length) previousFrame = new byte[length];
+			else Arrays.fill(previousFrame, (byte)0);
+			framesSinceKeyFrame = 0;
+		}
+		else ++framesSinceKeyFrame;
+
+		dos.writeInt(isKeyFrame ? KEY_DELIMITER : DELTA_DELIMITER);
+		dos.writeInt(framesSent);
+		dos.writeInt(length);
+
+		final DeltaOutputStream deltaStream = new DeltaOutputStream(zos, previousFrame);
+		try {
+			is.write(deltaStream);
+			deltaStream.finishFrame();
+		}
+		catch (IOException | RuntimeException e) {
+			//the previous frame is only partially replaced
+			previousFrame = null;
+			throw e;
+		}
+	}
+
+	/** the channel cannot be continued after a failure */
+	void abandon()
+	{
+		isClosed = true;
+		zmq.close();
+		pool.release(zmq);
+	}
+
+	/** delimiters, each is followed with the number of the frame */
+	static final int FRAME_DELIMITER  = 0x46524D45; // "FRME"
+	static final int PIXELS_DELIMITER = 0x50584C46; // "PXLF"
+	static final int END_DELIMITER    = 0x454E4443; // "ENDC"
+
+	/** delimiters of the delta mode, each is followed with the
+	    number of the frame and the length of the (serialized) frame */
+	static final int KEY_DELIMITER   = 0x4B455946; // "KEYF"
+	static final int DELTA_DELIMITER = 0x444C5441; // "DLTA"
+}
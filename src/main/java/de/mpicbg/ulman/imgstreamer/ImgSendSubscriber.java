@@ -0,0 +1,178 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class sends the images it is given to the ImgReceivePublisher on
+ * the other side. It requests the images from its publisher only as they are
+ * demanded by the other side, so a slow consumer on the other side throttles
+ * the publisher of this subscriber, and no images are piling up in memory.
+ * The waiting for the demand never times out.
+ *
+ * The images are sent from a thread of the executor, which sleeps until some
+ * image or demand comes (and never wakes up just to look for them).
+ */
+public class ImgSendSubscriber<T extends NativeType<T>> implements ImgFlow.Subscriber<ImgPlus<T>>
+{
+	// -------------- API stuff --------------
+	/** inits this subscriber on top of the session that was obtained from the pool */
+	ImgSendSubscriber(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	                  final ProgressCallback log, final Executor executor)
+	throws IOException
+	{
+		zmq = session;
+		channel = new ImgSendChannel(session, pool, log);
+		this.executor = executor;
+
+		try {
+			session.enableWakeUps();
+		}
+		catch (IOException e) {
+			channel.abandon();
+			throw e;
+		}
+	}
+
+	@Override
+	public void onSubscribe(final ImgFlow.Subscription subscription)
+	{
+		synchronized (this)
+		{
+			if (this.subscription != null)
+			{
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+
+		try {
+			executor.execute(this::serve);
+		}
+		catch (RuntimeException e) {
+			subscription.cancel();
+			channel.abandon();
+			done.completeExceptionally(e);
+		}
+	}
+
+	@Override
+	public void onNext(final ImgPlus<T> imgP)
+	{
+		images.add(imgP);
+		zmq.wakeUp();
+	}
+
+	@Override
+	public void onError(final Throwable throwable)
+	{
+		error = throwable;
+		isFinished = true;
+		zmq.wakeUp();
+	}
+
+	@Override
+	public void onComplete()
+	{
+		isFinished = true;
+		zmq.wakeUp();
+	}
+
+	/** returns the future that completes once all images are sent (and the
+	    other side is told that no more are coming), or once the sending fails */
+	public
+	CompletableFuture<Void> whenDone()
+	{
+		return done;
+	}
+
+	/** returns how many images have been sent so far */
+	public
+	int getImagesSent()
+	{
+		return channel.getFramesSent();
+	}
+
+
+	// -------------- internal stuff --------------
+	private final ZeroMQsession zmq;
+	private final ImgSendChannel channel;
+	private final Executor executor;
+
+	private ImgFlow.Subscription subscription = null;
+
+	private final BlockingQueue<ImgPlus<T>> images = new LinkedBlockingQueue<>();
+	private volatile boolean isFinished = false;
+	private volatile Throwable error = null;
+
+	private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+	/** sends the images, and forwards the demand of the other side to the publisher */
+	private
+	void serve()
+	{
+		try {
+			while (true)
+			{
+				final ImgPlus<T> imgP = images.poll();
+				if (imgP != null)
+				{
+					channel.send(imgP);
+					continue;
+				}
+
+				//no images are coming after the publisher has finished
+				if (isFinished && images.isEmpty()) break;
+
+				final long n = zmq.takeSignalledDemand();
+				if (n < 0)
+				{
+					//the other side wants no more images
+					subscription.cancel();
+					channel.abandon();
+					done.complete(null);
+					return;
+				}
+				if (n > 0)
+				{
+					subscription.request(n);
+					continue;
+				}
+
+				//sleeps until an image (or the end of them) or a demand signal comes
+				zmq.waitForMessageOrWakeUp();
+			}
+
+			if (error != null)
+			{
+				channel.abandon();
+				done.completeExceptionally(error);
+			}
+			else
+			{
+				channel.close();
+				done.complete(null);
+			}
+		}
+		catch (Throwable e) {
+			if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+			subscription.cancel();
+			channel.abandon();
+			done.completeExceptionally(e);
+		}
+	}
+}
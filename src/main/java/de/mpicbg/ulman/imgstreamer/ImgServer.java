@@ -0,0 +1,461 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a long-running server of named images. It binds one
+ * ZMQ.ROUTER port, and serves the registered images to any number of
+ * concurrent clients, which request them by their names with the
+ * ImgTransfer.requestImage(addr,name).
+ *
+ * The images are serialized by a bounded pool of worker threads, every image
+ * only once (when it is requested for the first time), and the serialized
+ * chunks are kept and re-used for all further requests of the image.
+ * One I/O thread talks to all clients, and every client has its own window
+ * of unconfirmed chunks, so a slow client does not hold back the others.
+ */
+public class ImgServer implements Closeable
+{
+	// -------------- API stuff --------------
+	/** starts the server on the given port with as many workers as there are processors */
+	public
+	ImgServer(final int portNo)
+	throws IOException
+	{
+		this(portNo, Runtime.getRuntime().availableProcessors(), ZeroMQsession.defaultTimeOut);
+	}
+
+	/** starts the server on the given port with 'workers' serializing threads,
+	    clients that are silent for longer than 'timeOut' seconds are given up */
+	public
+	ImgServer(final int portNo, final int workers, final int timeOut)
+	throws IOException
+	{
+		if (workers < 1)
+			throw new IOException("at least one worker is needed, got "+workers);
+
+		this.timeOut = timeOut;
+		zmqContext = ZMQ.context(1);
+		try {
+			zmqSocket = zmqContext.socket(ZMQ.ROUTER);
+			zmqSocket.bind("tcp://*:" + portNo);
+			zmqSelector = zmqContext.selector();
+
+			final String wakeupEndpoint = "inproc://ImgServer-wakeup-" + serversCount.incrementAndGet();
+			wakeupReceiver = zmqContext.socket(ZMQ.PAIR);
+			wakeupReceiver.bind(wakeupEndpoint);
+			wakeupSender = zmqContext.socket(ZMQ.PAIR);
+			wakeupSender.connect(wakeupEndpoint);
+		}
+		catch (ZMQException e) {
+			if (zmqSelector != null) zmqContext.close(zmqSelector);
+			for (ZMQ.Socket socket : new ZMQ.Socket[] { zmqSocket, wakeupReceiver, wakeupSender })
+				if (socket != null)
+				{
+					socket.setLinger(0);
+					socket.close();
+				}
+			zmqContext.term();
+			throw new IOException("network error: " + e.getMessage());
+		}
+
+		workersPool = Executors.newFixedThreadPool(workers, r -> {
+			final Thread t = new Thread(r, "ImgServer worker");
+			t.setDaemon(true);
+			return t;
+		});
+
+		ioThread = new Thread(this::serve, "ImgServer I/O");
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/** makes the image available under the given name,
+	    the image must not change while it is registered */
+	public <T extends NativeType<T>>
+	void register(final String name, final ImgPlus<T> imgP)
+	{
+		images.put(name, new RegisteredImage<>(imgP));
+	}
+
+	/** makes the image unavailable, the already started transfers are finished */
+	public
+	void unregister(final String name)
+	{
+		images.remove(name);
+	}
+
+	/** returns the names of the registered images */
+	public
+	Set<String> getNames()
+	{
+		return images.keySet();
+	}
+
+	/** returns how many images have been served completely so far (the refusals are not counted) */
+	public
+	long getImagesServed()
+	{
+		return imagesServed.get();
+	}
+
+	/** stops the server, the transfers in progress are interrupted */
+	@Override
+	public void close()
+	{
+		if (isClosed) return;
+		isClosed = true;
+		wakeUp();
+
+		try {
+			ioThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workersPool.shutdownNow();
+	}
+
+
+	// -------------- internal stuff --------------
+	private final int timeOut;
+
+	private final ZMQ.Context zmqContext;
+	private ZMQ.Socket zmqSocket = null;
+	private Selector zmqSelector = null;
+
+	/** the workers (and close()) wake up the I/O thread by sending into
+	    the wakeupSender, the I/O thread polls the wakeupReceiver together
+	    with the zmqSocket; the wakeupSender is used under its own lock */
+	private ZMQ.Socket wakeupReceiver = null;
+	private ZMQ.Socket wakeupSender = null;
+	private boolean isWakeupClosed = false;
+
+	/** for the unique names of the wakeup endpoints */
+	private static final AtomicLong serversCount = new AtomicLong(0);
+
+	private final ExecutorService workersPool;
+	private final Thread ioThread;
+	private volatile boolean isClosed = false;
+
+	private final AtomicLong imagesServed = new AtomicLong(0);
+
+	/** the registry of the images */
+	private final Map<String, RegisteredImage<?>> images = new ConcurrentHashMap<>();
+
+	/** an image, and its chunks once it has been serialized */
+	private static class RegisteredImage<T extends NativeType<T>>
+	{
+		RegisteredImage(final ImgPlus<T> imgP)
+		{
+			this.imgP = imgP;
+		}
+
+		private final ImgPlus<T> imgP;
+		private List<byte[]> chunks = null;
+
+		/** returns the chunks of the serialized image, the image is serialized only once */
+		synchronized
+		List<byte[]> getChunks()
+		throws IOException
+		{
+			if (chunks == null)
+			{
+				final ChunkCollector chunkCollector = new ChunkCollector(chunkSize);
+				chunkCollector.write(servedMsg);
+
+				final ImgStreamer is = new ImgStreamer(null);
+				is.setImageForStreaming(imgP);
+				is.write(chunkCollector);
+				chunks = chunkCollector.getChunks();
+			}
+			return chunks;
+		}
+	}
+
+	/** state of one client */
+	private static class Client
+	{
+		Client(final byte[] identity, final long now)
+		{
+			this.identity = identity;
+			lastActivity = now;
+		}
+
+		final byte[] identity;
+		volatile List<byte[]> chunks = null; //not yet prepared
+		boolean isRefused = false;           //the chunks tell why there is no image
+		int nextChunk = 0;
+		int confirmedChunks = 0;
+		int credits = ZeroMQOutputStream.defaultWindowSize;
+		long lastActivity;
+	}
+
+	/** clients whose chunks have just been prepared by the workers */
+	private final ConcurrentLinkedQueue<Client> preparedClients = new ConcurrentLinkedQueue<>();
+
+	/** the main loop of the I/O thread, which alone works with the socket */
+	private
+	void serve()
+	{
+		final ZMQ.PollItem[] zmqPollItems = { new ZMQ.PollItem(zmqSocket, ZMQ.Poller.POLLIN),
+		                                      new ZMQ.PollItem(wakeupReceiver, ZMQ.Poller.POLLIN) };
+		final Map<ByteBuffer, Client> clients = new HashMap<>();
+
+		try {
+			while (!isClosed)
+			{
+				//sleeps until a message or a wakeup arrives, or until the
+				//client that has been silent for the longest time is to be given up
+				ZMQ.poll(zmqSelector, zmqPollItems, timeToNextGiveUp(clients));
+				long now = System.currentTimeMillis();
+
+				//(the wakeups only tell to look at the preparedClients)
+				while ((wakeupReceiver.getEvents() & ZMQ.Poller.POLLIN) == ZMQ.Poller.POLLIN)
+					wakeupReceiver.recv();
+
+				while ((zmqSocket.getEvents() & ZMQ.Poller.POLLIN) == ZMQ.Poller.POLLIN)
+				{
+					//ROUTER's messages come as: identity of the client, the message
+					final byte[] identity = zmqSocket.recv();
+					if (!zmqSocket.hasReceiveMore()) continue;
+					final byte[] msg = zmqSocket.recv();
+					while (zmqSocket.hasReceiveMore()) zmqSocket.recv();
+
+					final ByteBuffer key = ByteBuffer.wrap(identity);
+					Client c = clients.get(key);
+
+					if (c == null)
+					{
+						final String name = parseRequest(msg);
+						if (name == null) continue;
+
+						//new client: confirm its request, and prepare its chunks
+						c = new Client(identity, now);
+						clients.put(key, c);
+						zmqSocket.sendMore(identity);
+						zmqSocket.send(confirmationMsg, 0);
+						prepareChunks(c, name);
+					}
+					else if (msg.length > 0 && msg[0] == 'O' && c.chunks != null)
+					{
+						//confirmation of a chunk
+						c.lastActivity = now;
+						++c.credits;
+						if (++c.confirmedChunks == c.chunks.size())
+						{
+							clients.remove(key);
+							if (!c.isRefused) imagesServed.incrementAndGet();
+						}
+						else sendChunks(c);
+					}
+				}
+
+				Client c;
+				while ((c = preparedClients.poll()) != null)
+					if (clients.get(ByteBuffer.wrap(c.identity)) == c)
+					{
+						c.lastActivity = now;
+						sendChunks(c);
+					}
+
+				//forget the clients that are silent for too long
+				now = System.currentTimeMillis();
+				final Iterator<Client> it = clients.values().iterator();
+				while (it.hasNext())
+					if (now - it.next().lastActivity > 1000L*timeOut) it.remove();
+			}
+		}
+		catch (ZMQException e) {
+			isClosed = true;
+		}
+		finally {
+			zmqContext.close(zmqSelector);
+			zmqSocket.setLinger(ZeroMQsession.defaultLingerTime);
+			zmqSocket.close();
+			wakeupReceiver.setLinger(0);
+			wakeupReceiver.close();
+			synchronized (wakeupSender)
+			{
+				isWakeupClosed = true;
+				wakeupSender.setLinger(0);
+				wakeupSender.close();
+			}
+			zmqContext.term();
+		}
+	}
+
+	/** returns how long (in milliseconds) the I/O thread may sleep before some
+	    of the 'clients' is silent for too long, or -1 (no limit) if there are none */
+	private
+	long timeToNextGiveUp(final Map<ByteBuffer, Client> clients)
+	{
+		if (clients.isEmpty()) return -1;
+
+		long oldestActivity = Long.MAX_VALUE;
+		for (Client c : clients.values()) oldestActivity = Math.min(oldestActivity, c.lastActivity);
+		return Math.max(1, oldestActivity + 1000L*timeOut - System.currentTimeMillis() + 1);
+	}
+
+	/** lets the I/O thread know that some client has been prepared (or the server closed) */
+	private
+	void wakeUp()
+	{
+		synchronized (wakeupSender)
+		{
+			//(if the wakeup cannot be queued, other wakeups are still pending)
+			if (!isWakeupClosed) wakeupSender.send(wakeupMsg, ZMQ.DONTWAIT);
+		}
+	}
+
+	/** lets a worker prepare the chunks for the client */
+	private
+	void prepareChunks(final Client c, final String name)
+	{
+		final RegisteredImage<?> img = images.get(name);
+		if (img == null)
+		{
+			c.isRefused = true;
+			c.chunks = refusal("no image is registered under the name "+name);
+			preparedClients.add(c);
+			return;
+		}
+
+		workersPool.execute( () -> {
+			List<byte[]> chunks;
+			try {
+				chunks = img.getChunks();
+			}
+			catch (IOException | RuntimeException e) {
+				c.isRefused = true;
+				chunks = refusal("image "+name+" cannot be served: "+e.getMessage());
+			}
+			c.chunks = chunks;
+			preparedClients.add(c);
+			wakeUp();
+		} );
+	}
+
+	/** sends the client as many chunks as its window allows */
+	private
+	void sendChunks(final Client c)
+	{
+		while (c.credits > 0 && c.nextChunk < c.chunks.size())
+		{
+			zmqSocket.sendMore(c.identity);
+			zmqSocket.send(c.chunks.get(c.nextChunk++), 0);
+			--c.credits;
+		}
+	}
+
+	/** returns the name of the requested image, or null if 'msg' is not a request */
+	private static
+	String parseRequest(final byte[] msg)
+	{
+		if (msg.length < 6 || ByteBuffer.wrap(msg).getInt() != NAMED_REQUEST) return null;
+		try {
+			return new DataInputStream(new ByteArrayInputStream(msg,4,msg.length-4)).readUTF();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** returns the only chunk that tells the client why it gets no image */
+	private static
+	List<byte[]> refusal(final String reason)
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			final DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeInt(NAMED_REFUSED);
+			dos.writeUTF(reason);
+		}
+		catch (IOException e) {
+			//never happens with the ByteArrayOutputStream
+		}
+		final List<byte[]> chunks = new ArrayList<>(1);
+		chunks.add(bos.toByteArray());
+		return chunks;
+	}
+
+	/** requests the named image from the server over the 'zmq' session,
+	    which must be a ZMQ.DEALER one, and reads it */
+	static
+	ImgPlus<?> readImage(final String name, final ZeroMQsession zmq,
+	                     final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			//(the server reads plain messages, not a ZeroMQOutputStream with its header)
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeInt(NAMED_REQUEST);
+			dos.writeUTF(name);
+			final byte[] request = bos.toByteArray();
+			zmq.writeZMQ(request,0,request.length);
+			zmq.waitForAllConfirmations();
+
+			final ZeroMQInputStream zis = new ZeroMQInputStream(zmq);
+			final DataInputStream dis = new DataInputStream(zis);
+			final int reply = dis.readInt();
+			if (reply == NAMED_REFUSED)
+				throw new IOException("image was refused: " + dis.readUTF());
+			if (reply != NAMED_SERVED)
+				throw new IOException("image not found, communication is broken");
+
+			final ImgStreamer is = new ImgStreamer(log);
+			return is.read(zis);
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** size of the chunks, the chunks are kept in memory while the image is registered */
+	private static final int chunkSize = 1<<22; //= 4 MB
+
+
+	/** the request (followed with the name of the image), and the replies */
+	private static final int NAMED_REQUEST = 0x4E414D51; // "NAMQ"
+	private static final int NAMED_SERVED  = 0x4E414D53; // "NAMS"
+	private static final int NAMED_REFUSED = 0x4E414D52; // "NAMR"
+
+	private static final byte[] servedMsg = ByteBuffer.allocate(4).putInt(NAMED_SERVED).array();
+	private static final byte[] confirmationMsg = new byte[] { 'O','K' };
+	private static final byte[] wakeupMsg = new byte[] { 'W' };
+}
@@ -8,8 +8,17 @@
 package de.mpicbg.ulman.imgstreamer;
 
 import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.type.NativeType;
+import org.zeromq.ZMQ;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * This class provides convenience, front-end functions for ImgPlus transfer.
@@ -27,14 +36,29 @@ public class ImgTransfer
 	void sendImage(final ImgPlus<T> imgP, final String addr,
 	               final int timeOut, final ProgressCallback log)
 	throws IOException
-	{
-		final ZeroMQOutputStream zos = new ZeroMQOutputStream("tcp://"+addr, timeOut);
+	{ sendImage(imgP, addr, timeOut, log, null); }
 
-		final ImgStreamer is = new ImgStreamer(log);
-		is.setImageForStreaming(imgP);
-		is.write(zos);
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it,
+	 * the image data is compressed with the \e codec (unless it is null),
+	 * the receiver recognizes the codec and decompresses it automatically.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImage(final ImgPlus<T> imgP, final String addr,
+	               final int timeOut, final ProgressCallback log,
+	               final ChunkCodec codec)
+	throws IOException
+	{
+		final String URL = toURL(addr);
+		if (InProcessTransfer.isInProcess(URL))
+		{
+			InProcessTransfer.handOver(imgP, URL, timeOut, log);
+			return;
+		}
 
-		zos.close();
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		writeImage(imgP, pool.connect(URL, timeOut), pool, log, codec);
 	}
 
 	/**
@@ -66,13 +90,8 @@ public class ImgTransfer
 	                        final int timeOut, final ProgressCallback log)
 	throws IOException
 	{
-		final ZeroMQInputStream zis = new ZeroMQInputStream(portNo, timeOut);
-
-		final ImgStreamer is = new ImgStreamer(log);
-		final ImgPlus<?> imgP = is.read(zis);
-
-		zis.close();
-		return imgP;
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return readImage(pool.bind(portNo, timeOut), pool, log);
 	}
 
 	/**
@@ -94,6 +113,36 @@ public class ImgTransfer
 	throws IOException
 	{ return receiveImage(portNo, 30, null); }
 
+	/**
+	 * Receives an image from someone who is sending/pushing it to the \e endpoint,
+	 * e.g. "tcp://*:3456", "ipc:///tmp/images" or "inproc://images". The image
+	 * sent to the "inproc://" endpoint from within this JVM is handed over
+	 * by reference, that is, the sent ImgPlus itself is returned.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImage(final String endpoint,
+	                        final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final String URL = toURL(endpoint);
+		if (InProcessTransfer.isInProcess(URL))
+			return InProcessTransfer.takeOver(URL, timeOut, log);
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return readImage(pool.bind(URL, timeOut), pool, log);
+	}
+
+	/**
+	 * Receives an image from someone who is sending/pushing it to the \e endpoint,
+	 * e.g. "tcp://*:3456", "ipc:///tmp/images" or "inproc://images".
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> receiveImage(final String endpoint)
+	throws IOException
+	{ return receiveImage(endpoint, 30, null); }
+
 
 	// ------------------ static, single-image handling functions ------------------
 	// ------------------ serve + request vatiants ------------------
@@ -108,14 +157,23 @@ public class ImgTransfer
 	void serveImage(final ImgPlus<T> imgP, final int portNo,
 	                final int timeOut, final ProgressCallback log)
 	throws IOException
-	{
-		final ZeroMQOutputStream zos = new ZeroMQOutputStream(portNo, timeOut);
+	{ serveImage(imgP, portNo, timeOut, log, null); }
 
-		final ImgStreamer is = new ImgStreamer(log);
-		is.setImageForStreaming(imgP);
-		is.write(zos);
-
-		zos.close();
+	/**
+	 * Serves an image over network to someone who is receiving/pulling it,
+	 * it acts in fact as the sendImage() but connection is initiated from
+	 * the receiver (the other peer). The image data is compressed with
+	 * the \e codec (unless it is null), the receiver decompresses it automatically.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImage(final ImgPlus<T> imgP, final int portNo,
+	                final int timeOut, final ProgressCallback log,
+	                final ChunkCodec codec)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		writeImage(imgP, pool.bind(portNo, timeOut), pool, log, codec);
 	}
 
 	/**
@@ -141,6 +199,40 @@ public class ImgTransfer
 	throws IOException
 	{ serveImage(imgP, portNo, 30, null); }
 
+	/**
+	 * Serves an image at the \e endpoint, e.g. "tcp://*:3456", "ipc:///tmp/images"
+	 * or "inproc://images", to someone who is receiving/pulling it. The image
+	 * served at the "inproc://" endpoint within this JVM is handed over
+	 * by reference (and the \e codec is not used then).
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImage(final ImgPlus<T> imgP, final String endpoint,
+	                final int timeOut, final ProgressCallback log,
+	                final ChunkCodec codec)
+	throws IOException
+	{
+		final String URL = toURL(endpoint);
+		if (InProcessTransfer.isInProcess(URL))
+		{
+			InProcessTransfer.handOver(imgP, URL, timeOut, log);
+			return;
+		}
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		writeImage(imgP, pool.bind(URL, timeOut), pool, log, codec);
+	}
+
+	/**
+	 * Serves an image at the \e endpoint, e.g. "tcp://*:3456", "ipc:///tmp/images"
+	 * or "inproc://images", to someone who is receiving/pulling it.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImage(final ImgPlus<T> imgP, final String endpoint)
+	throws IOException
+	{ serveImage(imgP, endpoint, 30, null, null); }
+
 
 	/**
 	 * Receives/pulls an image over network from someone who is serving it,
@@ -153,13 +245,12 @@ public class ImgTransfer
 	                        final int timeOut, final ProgressCallback log)
 	throws IOException
 	{
-		final ZeroMQInputStream zis = new ZeroMQInputStream("tcp://"+addr, timeOut);
-
-		final ImgStreamer is = new ImgStreamer(log);
-		final ImgPlus<?> imgP = is.read(zis);
+		final String URL = toURL(addr);
+		if (InProcessTransfer.isInProcess(URL))
+			return InProcessTransfer.takeOver(URL, timeOut, log);
 
-		zis.close();
-		return imgP;
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return readImage(pool.connect(URL, timeOut), pool, log);
 	}
 
 	/**
@@ -184,4 +275,1423 @@ public class ImgTransfer
 	ImgPlus<?> requestImage(final String addr)
 	throws IOException
 	{ return requestImage(addr, 30, null); }
+
+	/**
+	 * Receives/pulls the image of the given \e name over network from the ImgServer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> requestImage(final String addr, final String name,
+	                        final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return ImgServer.readImage(name, pool.connect(toURL(addr), timeOut, ZMQ.DEALER), pool, log);
+	}
+
+	/**
+	 * Receives/pulls the image of the given \e name over network from the ImgServer.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> requestImage(final String addr, final String name)
+	throws IOException
+	{ return requestImage(addr, name, 30, null); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ asynchronous vatiants ------------------
+
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it,
+	 * the transfer runs on the \e executor and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	CompletableFuture<Void> sendImageAsync(final ImgPlus<T> imgP, final String addr,
+	                                       final int timeOut, final ProgressCallback log,
+	                                       final Executor executor)
+	{ return AsyncTransfer.run( () -> { sendImage(imgP, addr, timeOut, log); return null; }, executor ); }
+
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it,
+	 * the transfer runs on a virtual thread (if the JDK has them, or on a pooled
+	 * thread otherwise) and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	CompletableFuture<Void> sendImageAsync(final ImgPlus<T> imgP, final String addr,
+	                                       final int timeOut, final ProgressCallback log)
+	{ return sendImageAsync(imgP, addr, timeOut, log, AsyncTransfer.getDefaultExecutor()); }
+
+	/**
+	 * Receives an image over network from someone who is sending/pushing it,
+	 * the transfer runs on the \e executor and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	CompletableFuture<ImgPlus<?>> receiveImageAsync(final int portNo,
+	                                                final int timeOut, final ProgressCallback log,
+	                                                final Executor executor)
+	{ return AsyncTransfer.run( () -> receiveImage(portNo, timeOut, log), executor ); }
+
+	/**
+	 * Receives an image over network from someone who is sending/pushing it,
+	 * the transfer runs on a virtual thread (if the JDK has them, or on a pooled
+	 * thread otherwise) and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	CompletableFuture<ImgPlus<?>> receiveImageAsync(final int portNo,
+	                                                final int timeOut, final ProgressCallback log)
+	{ return receiveImageAsync(portNo, timeOut, log, AsyncTransfer.getDefaultExecutor()); }
+
+	/**
+	 * Receives an image from someone who is sending/pushing it to the \e endpoint,
+	 * e.g. "tcp://*:3456", "ipc:///tmp/images" or "inproc://images", the transfer
+	 * runs on the \e executor and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	CompletableFuture<ImgPlus<?>> receiveImageAsync(final String endpoint,
+	                                                final int timeOut, final ProgressCallback log,
+	                                                final Executor executor)
+	{ return AsyncTransfer.run( () -> receiveImage(endpoint, timeOut, log), executor ); }
+
+	/**
+	 * Receives an image from someone who is sending/pushing it to the \e endpoint,
+	 * the transfer runs on a virtual thread (if the JDK has them, or on a pooled
+	 * thread otherwise) and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	CompletableFuture<ImgPlus<?>> receiveImageAsync(final String endpoint,
+	                                                final int timeOut, final ProgressCallback log)
+	{ return receiveImageAsync(endpoint, timeOut, log, AsyncTransfer.getDefaultExecutor()); }
+
+	/**
+	 * Serves an image over network to someone who is receiving/pulling it,
+	 * the transfer runs on the \e executor and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	CompletableFuture<Void> serveImageAsync(final ImgPlus<T> imgP, final int portNo,
+	                                        final int timeOut, final ProgressCallback log,
+	                                        final Executor executor)
+	{ return AsyncTransfer.run( () -> { serveImage(imgP, portNo, timeOut, log); return null; }, executor ); }
+
+	/**
+	 * Serves an image over network to someone who is receiving/pulling it,
+	 * the transfer runs on a virtual thread (if the JDK has them, or on a pooled
+	 * thread otherwise) and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	CompletableFuture<Void> serveImageAsync(final ImgPlus<T> imgP, final int portNo,
+	                                        final int timeOut, final ProgressCallback log)
+	{ return serveImageAsync(imgP, portNo, timeOut, log, AsyncTransfer.getDefaultExecutor()); }
+
+	/**
+	 * Receives/pulls an image over network from someone who is serving it,
+	 * the transfer runs on the \e executor and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	CompletableFuture<ImgPlus<?>> requestImageAsync(final String addr,
+	                                                final int timeOut, final ProgressCallback log,
+	                                                final Executor executor)
+	{ return AsyncTransfer.run( () -> requestImage(addr, timeOut, log), executor ); }
+
+	/**
+	 * Receives/pulls an image over network from someone who is serving it,
+	 * the transfer runs on a virtual thread (if the JDK has them, or on a pooled
+	 * thread otherwise) and this function returns right away.
+	 * Cancelling the returned future interrupts the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	CompletableFuture<ImgPlus<?>> requestImageAsync(final String addr,
+	                                                final int timeOut, final ProgressCallback log)
+	{ return requestImageAsync(addr, timeOut, log, AsyncTransfer.getDefaultExecutor()); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ serve + request of regions vatiants ------------------
+
+	/**
+	 * Serves a region of an image over network to someone who is requesting
+	 * it with the requestImageRegion(), the requester decides which region.
+	 * Only the region is sent, the rest of the image is not touched.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageRegion(final ImgPlus<T> imgP, final int portNo,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		writeImageRegion(imgP, pool.bind(portNo, timeOut), pool, log);
+	}
+
+	/**
+	 * Serves a region of an image over network to someone who is requesting
+	 * it with the requestImageRegion(), the requester decides which region.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageRegion(final ImgPlus<T> imgP, final int portNo)
+	throws IOException
+	{ serveImageRegion(imgP, portNo, 30, null); }
+
+	/**
+	 * Serves a region of an image at the \e endpoint, e.g. "tcp://*:3456",
+	 * "ipc:///tmp/images" or "inproc://images", to someone who is requesting
+	 * it with the requestImageRegion(), the requester decides which region.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageRegion(final ImgPlus<T> imgP, final String endpoint,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		writeImageRegion(imgP, pool.bind(toURL(endpoint), timeOut), pool, log);
+	}
+
+	/**
+	 * Serves a region of an image at the \e endpoint to someone who is
+	 * requesting it with the requestImageRegion().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageRegion(final ImgPlus<T> imgP, final String endpoint)
+	throws IOException
+	{ serveImageRegion(imgP, endpoint, 30, null); }
+
+	/**
+	 * Requests/pulls the \e region of an image over network from someone who
+	 * is serving it with the serveImageRegion(). The received image starts at
+	 * zero, and it is of the size of the region.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> requestImageRegion(final String addr, final Hyperslab region,
+	                              final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return readImageRegion(region, pool.connect(toURL(addr), timeOut), pool, log);
+	}
+
+	/**
+	 * Requests/pulls the \e region of an image over network from someone who
+	 * is serving it with the serveImageRegion(). The received image starts at
+	 * zero, and it is of the size of the region.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> requestImageRegion(final String addr, final Hyperslab region)
+	throws IOException
+	{ return requestImageRegion(addr, region, 30, null); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ progressive serve + request vatiants ------------------
+
+	/**
+	 * Serves an image over network to someone who is requesting it with the
+	 * requestImageProgressive(), the image is sent in up to \e levels resolution
+	 * levels from the coarsest one (downsampled 2^(levels-1) times in the first
+	 * two dimensions) to the full-resolution image itself.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageProgressive(final ImgPlus<T> imgP, final int portNo, final int levels,
+	                           final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ serveImageProgressive(imgP, "tcp://*:"+portNo, levels, timeOut, log); }
+
+	/**
+	 * Serves an image over network to someone who is requesting it with the
+	 * requestImageProgressive(), the image is sent in up to \e levels resolution
+	 * levels from the coarsest one to the full-resolution image itself.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageProgressive(final ImgPlus<T> imgP, final int portNo, final int levels)
+	throws IOException
+	{ serveImageProgressive(imgP, portNo, levels, 30, null); }
+
+	/**
+	 * Serves an image at the \e endpoint, e.g. "tcp://*:3456", "ipc:///tmp/images"
+	 * or "inproc://images", to someone who is requesting it with the
+	 * requestImageProgressive(), the image is sent in up to \e levels resolution
+	 * levels from the coarsest one to the full-resolution image itself.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageProgressive(final ImgPlus<T> imgP, final String endpoint, final int levels,
+	                           final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		if (levels < 1)
+			throw new IOException("at least one level must be sent, got "+levels);
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		ProgressiveTransfer.writeImage(imgP, levels, pool.bind(toURL(endpoint), timeOut), pool, log);
+	}
+
+	/**
+	 * Serves an image at the \e endpoint to someone who is requesting it
+	 * with the requestImageProgressive(), in up to \e levels resolution levels.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImageProgressive(final ImgPlus<T> imgP, final String endpoint, final int levels)
+	throws IOException
+	{ serveImageProgressive(imgP, endpoint, levels, 30, null); }
+
+	/**
+	 * Requests/pulls an image over network from someone who is serving it with
+	 * the serveImageProgressive(). Every resolution level, as soon as it arrives,
+	 * is handed over to the \e levelCallback (unless it is null), and the
+	 * full-resolution image is returned eventually.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> requestImageProgressive(final String addr, final LevelCallback levelCallback,
+	                                   final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return ProgressiveTransfer.readImage(levelCallback, pool.connect(toURL(addr), timeOut), pool, log);
+	}
+
+	/**
+	 * Requests/pulls an image over network from someone who is serving it with
+	 * the serveImageProgressive(). Every resolution level, as soon as it arrives,
+	 * is handed over to the \e levelCallback (unless it is null), and the
+	 * full-resolution image is returned eventually.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> requestImageProgressive(final String addr, final LevelCallback levelCallback)
+	throws IOException
+	{ return requestImageProgressive(addr, levelCallback, 30, null); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ fan-out serve + request vatiants ------------------
+
+	/**
+	 * Serves an image over network to \e requesters requesters at the same time,
+	 * who are requesting it with the requestSharedImage(). The image is serialized
+	 * only once, and a slow requester does not hold back the others. A requester
+	 * that is silent for longer than the \e timeOut is given up, and so is the
+	 * serving if no requester shows up within the \e timeOut.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 *
+	 * @return The number of requesters that have received the image.
+	 */
+	public static <T extends NativeType<T>>
+	int serveImageToMany(final ImgPlus<T> imgP, final int portNo, final int requesters,
+	                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ return serveImageToMany(imgP, "tcp://*:"+portNo, requesters, timeOut, log); }
+
+	/**
+	 * Serves an image over network to \e requesters requesters at the same time,
+	 * who are requesting it with the requestSharedImage(). The image is serialized
+	 * only once, and a slow requester does not hold back the others.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 *
+	 * @return The number of requesters that have received the image.
+	 */
+	public static <T extends NativeType<T>>
+	int serveImageToMany(final ImgPlus<T> imgP, final int portNo, final int requesters)
+	throws IOException
+	{ return serveImageToMany(imgP, portNo, requesters, 30, null); }
+
+	/**
+	 * Serves an image at the \e endpoint, e.g. "tcp://*:3456", "ipc:///tmp/images"
+	 * or "inproc://images", to \e requesters requesters at the same time, who are
+	 * requesting it with the requestSharedImage(). The image is serialized only once.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 *
+	 * @return The number of requesters that have received the image.
+	 */
+	public static <T extends NativeType<T>>
+	int serveImageToMany(final ImgPlus<T> imgP, final String endpoint, final int requesters,
+	                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		return FanOutTransfer.serveImage(imgP, toURL(endpoint), requesters, timeOut,
+		                                 ZeroMQsessionPool.getDefault(), log);
+	}
+
+	/**
+	 * Serves an image at the \e endpoint to \e requesters requesters at the same
+	 * time, who are requesting it with the requestSharedImage().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 *
+	 * @return The number of requesters that have received the image.
+	 */
+	public static <T extends NativeType<T>>
+	int serveImageToMany(final ImgPlus<T> imgP, final String endpoint, final int requesters)
+	throws IOException
+	{ return serveImageToMany(imgP, endpoint, requesters, 30, null); }
+
+	/**
+	 * Requests/pulls an image over network from someone who is serving it
+	 * to many requesters with the serveImageToMany().
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> requestSharedImage(final String addr,
+	                              final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return FanOutTransfer.readImage(pool.connect(toURL(addr), timeOut, ZMQ.DEALER), pool, log);
+	}
+
+	/**
+	 * Requests/pulls an image over network from someone who is serving it
+	 * to many requesters with the serveImageToMany().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> requestSharedImage(final String addr)
+	throws IOException
+	{ return requestSharedImage(addr, 30, null); }
+
+
+	// ------------------ resumable send + receive vatiants ------------------
+
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it with
+	 * the receiveImageResumable(). If the connection breaks, the image is sent
+	 * again over a new connection (up to \e retries times), and only the part that
+	 * the receiver has not got yet is transferred. The transfer can be resumed also
+	 * by another call of this function (e.g. after the sender has been restarted)
+	 * as long as the same \e transferId is used for the same image.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImageResumable(final ImgPlus<T> imgP, final String addr, final long transferId,
+	                        final int timeOut, final int retries, final ProgressCallback log)
+	throws IOException
+	{
+		ResumableTransfer.writeImage(imgP, toURL(addr), transferId, timeOut, retries,
+		                             ZeroMQsessionPool.getDefault(), log);
+	}
+
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it with
+	 * the receiveImageResumable(), and resumes the transfer up to 3 times.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImageResumable(final ImgPlus<T> imgP, final String addr, final long transferId)
+	throws IOException
+	{ sendImageResumable(imgP, addr, transferId, 30, 3, null); }
+
+	/**
+	 * Receives an image over network from someone who is sending it with
+	 * the sendImageResumable(). The received part of the image is kept when
+	 * the connection breaks, and the sender is waited for (up to \e retries
+	 * times \e timeOut) to reconnect and resume the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImageResumable(final int portNo,
+	                                 final int timeOut, final int retries, final ProgressCallback log)
+	throws IOException
+	{ return receiveImageResumable("tcp://*:"+portNo, timeOut, retries, log); }
+
+	/**
+	 * Receives an image over network from someone who is sending it with
+	 * the sendImageResumable(), and waits up to 3 times for the sender to resume.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> receiveImageResumable(final int portNo)
+	throws IOException
+	{ return receiveImageResumable(portNo, 30, 3, null); }
+
+	/**
+	 * Receives an image from someone who is sending it with the sendImageResumable()
+	 * to the \e endpoint, e.g. "tcp://*:3456" or "ipc:///tmp/images". The received
+	 * part of the image is kept when the connection breaks, and the sender is waited
+	 * for (up to \e retries times \e timeOut) to reconnect and resume the transfer.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImageResumable(final String endpoint,
+	                                 final int timeOut, final int retries, final ProgressCallback log)
+	throws IOException
+	{
+		return ResumableTransfer.readImage(toURL(endpoint), timeOut, retries,
+		                                   ZeroMQsessionPool.getDefault(), log);
+	}
+
+	/**
+	 * Receives an image from someone who is sending it with the sendImageResumable()
+	 * to the \e endpoint, and waits up to 3 times for the sender to resume.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> receiveImageResumable(final String endpoint)
+	throws IOException
+	{ return receiveImageResumable(endpoint, 30, 3, null); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ striped send + receive vatiants ------------------
+
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it
+	 * with the receiveImageStriped(). The image is split into 'stripes'
+	 * parts along its last dimension, which are sent in parallel each
+	 * over its own connection: the addr "host:port" is used for the first
+	 * stripe, "host:port+1" for the second stripe etc. (the addr "ipc:///tmp/images"
+	 * is used for the first stripe, "ipc:///tmp/images-1" for the second etc.)
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImageStriped(final ImgPlus<T> imgP, final String addr, final int stripes,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ StripedTransfer.sendImage(imgP, toURL(addr), stripes, timeOut, log); }
+
+	/**
+	 * Sends/pushes an image over network in 'stripes' parallel connections
+	 * to someone who is receiving it with the receiveImageStriped().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImageStriped(final ImgPlus<T> imgP, final String addr, final int stripes)
+	throws IOException
+	{ sendImageStriped(imgP, addr, stripes, 30, null); }
+
+	/**
+	 * Receives an image over network from someone who is sending/pushing it
+	 * with the sendImageStriped(). The image arrives in 'stripes' parallel
+	 * connections on the ports portNo, portNo+1, ..., and the stripes are
+	 * assembled into one image. The number of stripes must be the same
+	 * as on the sending side.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImageStriped(final int portNo, final int stripes,
+	                               final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ return receiveImageStriped("tcp://*:"+portNo, stripes, timeOut, log); }
+
+	/**
+	 * Receives an image over network in 'stripes' parallel connections from
+	 * someone who is sending/pushing it with the sendImageStriped().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> receiveImageStriped(final int portNo, final int stripes)
+	throws IOException
+	{ return receiveImageStriped(portNo, stripes, 30, null); }
+
+	/**
+	 * Receives an image from someone who is sending/pushing it with the
+	 * sendImageStriped() to the \e endpoint, e.g. "tcp://*:3456" or "ipc:///tmp/images".
+	 * The stripes arrive at the endpoints derived from it, e.g. at "tcp://*:3456",
+	 * "tcp://*:3457", ... or at "ipc:///tmp/images", "ipc:///tmp/images-1", ...
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImageStriped(final String endpoint, final int stripes,
+	                               final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ return StripedTransfer.receiveImage(toURL(endpoint), stripes, timeOut, log); }
+
+	/**
+	 * Receives an image in 'stripes' parallel connections from someone who is
+	 * sending/pushing it with the sendImageStriped() to the \e endpoint.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> receiveImageStriped(final String endpoint, final int stripes)
+	throws IOException
+	{ return receiveImageStriped(endpoint, stripes, 30, null); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ shared-memory send + receive vatiants ------------------
+
+	/**
+	 * Sends/pushes an image to someone on the same host who is receiving it with
+	 * the receiveImageShared(). The pixels are written once into a file in /dev/shm,
+	 * and only the file and the metadata are sent, the receiver maps the file and
+	 * uses it directly as the storage of its image. The image is streamed as usual
+	 * when this is not possible (e.g. the receiver is on another host).
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImageShared(final ImgPlus<T> imgP, final String addr,
+	                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final String URL = toURL(addr);
+		if (InProcessTransfer.isInProcess(URL))
+		{
+			InProcessTransfer.handOver(imgP, URL, timeOut, log);
+			return;
+		}
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		SharedMemoryTransfer.writeImage(imgP, pool.connect(URL, timeOut), pool, log);
+	}
+
+	/**
+	 * Sends/pushes an image via /dev/shm to someone on the same host who is
+	 * receiving it with the receiveImageShared().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImageShared(final ImgPlus<T> imgP, final String addr)
+	throws IOException
+	{ sendImageShared(imgP, addr, 30, null); }
+
+	/**
+	 * Receives an image from someone on the same host who is sending it with
+	 * the sendImageShared(). The returned image is a PlanarImg whose planes are
+	 * mapped directly from /dev/shm, the memory is released when the image is
+	 * garbage collected.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImageShared(final int portNo,
+	                              final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ return receiveImageShared("tcp://*:"+portNo, timeOut, log); }
+
+	/**
+	 * Receives an image from someone on the same host who is sending it with
+	 * the sendImageShared() to the \e endpoint, e.g. "tcp://*:3456" or "ipc:///tmp/images".
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImageShared(final String endpoint,
+	                              final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final String URL = toURL(endpoint);
+		if (InProcessTransfer.isInProcess(URL))
+			return InProcessTransfer.takeOver(URL, timeOut, log);
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return SharedMemoryTransfer.readImage(pool.bind(URL, timeOut), pool, log);
+	}
+
+	/**
+	 * Receives an image from someone on the same host who is sending it with
+	 * the sendImageShared().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgPlus<?> receiveImageShared(final int portNo)
+	throws IOException
+	{ return receiveImageShared(portNo, 30, null); }
+
+
+	// ------------------ static, single-image handling functions ------------------
+	// ------------------ send + receive into existing image vatiants ------------------
+
+	/**
+	 * Sends/pushes only the pixels of an image (without its metadata) over network
+	 * to someone who is receiving them with the receiveImageInto(), that is, into
+	 * an image of the same type and dimensions.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImagePixels(final ImgPlus<T> imgP, final String addr,
+	                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final String URL = toURL(addr);
+		if (InProcessTransfer.isInProcess(URL))
+		{
+			InProcessTransfer.handOver(imgP, URL, timeOut, log);
+			return;
+		}
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		PixelTransfer.writeImage(imgP, pool.connect(URL, timeOut), pool, log);
+	}
+
+	/**
+	 * Sends/pushes only the pixels of an image over network to someone
+	 * who is receiving them with the receiveImageInto().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImagePixels(final ImgPlus<T> imgP, final String addr)
+	throws IOException
+	{ sendImagePixels(imgP, addr, 30, null); }
+
+	/**
+	 * Receives the pixels of an image over network from someone who is sending them
+	 * with the sendImagePixels(), and stores them into the given \e img, which must
+	 * be of the same type and dimensions (IOException is thrown otherwise). No new
+	 * image is allocated, and the pixels of an ArrayImg or a PlanarImg are read
+	 * directly into its arrays.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void receiveImageInto(final Img<T> img, final int portNo,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ receiveImageInto(img, "tcp://*:"+portNo, timeOut, log); }
+
+	/**
+	 * Receives the pixels of an image at the \e endpoint, e.g. "tcp://*:3456" or
+	 * "ipc:///tmp/images", from someone who is sending them with the sendImagePixels(),
+	 * and stores them into the given \e img of the same type and dimensions. The image
+	 * sent to the "inproc://" endpoint within this JVM is copied into the \e img.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void receiveImageInto(final Img<T> img, final String endpoint,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final String URL = toURL(endpoint);
+		if (InProcessTransfer.isInProcess(URL))
+		{
+			PixelTransfer.copyInto(img, InProcessTransfer.takeOver(URL, timeOut, log).getImg());
+			return;
+		}
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		PixelTransfer.readImage(img, pool.bind(URL, timeOut), pool, log);
+	}
+
+	/**
+	 * Receives the pixels of an image over network from someone who is sending
+	 * them with the sendImagePixels(), and stores them into the given \e img.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void receiveImageInto(final Img<T> img, final int portNo)
+	throws IOException
+	{ receiveImageInto(img, portNo, 30, null); }
+
+
+	/**
+	 * Serves only the pixels of an image (without its metadata) over network to
+	 * someone who is receiving/pulling them with the requestImageInto(), it acts
+	 * in fact as the sendImagePixels() but connection is initiated from the receiver.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImagePixels(final ImgPlus<T> imgP, final int portNo,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		PixelTransfer.writeImage(imgP, pool.bind(portNo, timeOut), pool, log);
+	}
+
+	/**
+	 * Serves only the pixels of an image over network to someone who
+	 * is receiving/pulling them with the requestImageInto().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImagePixels(final ImgPlus<T> imgP, final int portNo)
+	throws IOException
+	{ serveImagePixels(imgP, portNo, 30, null); }
+
+	/**
+	 * Serves only the pixels of an image at the \e endpoint, e.g. "tcp://*:3456",
+	 * "ipc:///tmp/images" or "inproc://images", to someone who is receiving/pulling
+	 * them with the requestImageInto().
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImagePixels(final ImgPlus<T> imgP, final String endpoint,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		PixelTransfer.writeImage(imgP, pool.bind(toURL(endpoint), timeOut), pool, log);
+	}
+
+	/**
+	 * Serves only the pixels of an image at the \e endpoint to someone
+	 * who is receiving/pulling them with the requestImageInto().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImagePixels(final ImgPlus<T> imgP, final String endpoint)
+	throws IOException
+	{ serveImagePixels(imgP, endpoint, 30, null); }
+
+	/**
+	 * Receives/pulls the pixels of an image over network from someone who is serving
+	 * them with the serveImagePixels(), and stores them into the given \e img, which
+	 * must be of the same type and dimensions, it acts in fact as the receiveImageInto()
+	 * but connection is initiated from this function (the receiver).
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void requestImageInto(final Img<T> img, final String addr,
+	                      final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		PixelTransfer.readImage(img, pool.connect(toURL(addr), timeOut), pool, log);
+	}
+
+	/**
+	 * Receives/pulls the pixels of an image over network from someone who is
+	 * serving them, and stores them into the given \e img.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void requestImageInto(final Img<T> img, final String addr)
+	throws IOException
+	{ requestImageInto(img, addr, 30, null); }
+
+
+	// ------------------ channels for sequences of images ------------------
+	// ------------------ send + receive vatiants ------------------
+
+	/**
+	 * Opens a channel to send/push a sequence of images over network to someone
+	 * who is receiving it with the openReceiveChannel(). The channel must be closed.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openSendChannel(final String addr,
+	                               final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ return openSendChannel(addr, timeOut, log, null); }
+
+	/**
+	 * Opens a channel to send/push a sequence of images over network to someone
+	 * who is receiving it with the openReceiveChannel(). The channel must be closed.
+	 * The images are compressed with the \e codec (unless it is null).
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openSendChannel(final String addr,
+	                               final int timeOut, final ProgressCallback log,
+	                               final ChunkCodec codec)
+	throws IOException
+	{ return openSendChannel(addr, timeOut, log, codec, 0); }
+
+	/**
+	 * Opens a channel to send/push a sequence of images over network to someone
+	 * who is receiving it with the openReceiveChannel(). The channel must be closed.
+	 * The images are sent as deltas against the previous image, and every
+	 * \e keyFrameInterval-th image is sent in full (unless \e keyFrameInterval is 0,
+	 * which disables the delta mode). The deltas should be compressed with
+	 * the \e codec to save the bandwidth.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openSendChannel(final String addr,
+	                               final int timeOut, final ProgressCallback log,
+	                               final ChunkCodec codec, final int keyFrameInterval)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgSendChannel(pool.connect(toURL(addr), timeOut), pool, log, codec, keyFrameInterval);
+	}
+
+	/**
+	 * Opens a channel to send/push a sequence of images over network to someone
+	 * who is receiving it with the openReceiveChannel(). The channel must be closed.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgSendChannel openSendChannel(final String addr)
+	throws IOException
+	{ return openSendChannel(addr, 30, null); }
+
+	/**
+	 * Opens a channel to receive a sequence of images over network from someone
+	 * who is sending/pushing it with the openSendChannel(). The channel must be closed.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgReceiveChannel openReceiveChannel(final int portNo,
+	                                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgReceiveChannel(pool.bind(portNo, timeOut), pool, log);
+	}
+
+	/**
+	 * Opens a channel to receive a sequence of images over network from someone
+	 * who is sending/pushing it with the openSendChannel(). The channel must be closed.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgReceiveChannel openReceiveChannel(final int portNo)
+	throws IOException
+	{ return openReceiveChannel(portNo, 30, null); }
+
+	/**
+	 * Opens a channel to receive a sequence of images from someone who is
+	 * sending/pushing it to the \e endpoint, e.g. "tcp://*:3456", "ipc:///tmp/images"
+	 * or "inproc://images", with the openSendChannel(). The channel must be closed.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgReceiveChannel openReceiveChannel(final String endpoint,
+	                                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgReceiveChannel(pool.bind(toURL(endpoint), timeOut), pool, log);
+	}
+
+
+	// ------------------ reactive streams of images ------------------
+	// ------------------ send + receive vatiants ------------------
+
+	/**
+	 * Opens a subscriber that sends/pushes the images it is given over network
+	 * to someone who is publishing them with the openReceivePublisher(). The images
+	 * are requested from the publisher of this subscriber only as they are demanded
+	 * on the other side, the waiting for the demand never times out.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	ImgSendSubscriber<T> openSendSubscriber(final String addr,
+	                                        final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgSendSubscriber<>(pool.connect(toURL(addr), timeOut), pool, log,
+		                               AsyncTransfer.getDefaultExecutor());
+	}
+
+	/**
+	 * Opens a subscriber that sends/pushes the images it is given over network
+	 * to someone who is publishing them with the openReceivePublisher().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	ImgSendSubscriber<T> openSendSubscriber(final String addr)
+	throws IOException
+	{ return openSendSubscriber(addr, 30, null); }
+
+	/**
+	 * Opens a publisher of the images that arrive over network from someone
+	 * who is sending them with the openSendSubscriber(). The demand of the (only)
+	 * subscriber of the publisher is forwarded to the sending side.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgReceivePublisher openReceivePublisher(final int portNo,
+	                                         final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgReceivePublisher(pool.bind(portNo, timeOut), pool, log,
+		                               AsyncTransfer.getDefaultExecutor());
+	}
+
+	/**
+	 * Opens a publisher of the images that arrive over network from someone
+	 * who is sending them with the openSendSubscriber().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgReceivePublisher openReceivePublisher(final int portNo)
+	throws IOException
+	{ return openReceivePublisher(portNo, 30, null); }
+
+	/**
+	 * Opens a publisher of the images that arrive at the \e endpoint, e.g.
+	 * "tcp://*:3456", "ipc:///tmp/images" or "inproc://images", from someone
+	 * who is sending them with the openSendSubscriber().
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgReceivePublisher openReceivePublisher(final String endpoint,
+	                                         final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgReceivePublisher(pool.bind(toURL(endpoint), timeOut), pool, log,
+		                               AsyncTransfer.getDefaultExecutor());
+	}
+
+	/**
+	 * Opens a publisher of the images that arrive at the \e endpoint from
+	 * someone who is sending them with the openSendSubscriber().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgReceivePublisher openReceivePublisher(final String endpoint)
+	throws IOException
+	{ return openReceivePublisher(endpoint, 30, null); }
+
+
+	// ------------------ channels for sequences of images ------------------
+	// ------------------ serve + request vatiants ------------------
+
+	/**
+	 * Opens a channel to serve a sequence of images over network to someone
+	 * who is receiving/pulling it with the openRequestChannel(), it acts in fact
+	 * as the openSendChannel() but connection is initiated from the receiver.
+	 * The channel must be closed.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openServeChannel(final int portNo,
+	                                final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ return openServeChannel(portNo, timeOut, log, null); }
+
+	/**
+	 * Opens a channel to serve a sequence of images over network to someone
+	 * who is receiving/pulling it with the openRequestChannel(), it acts in fact
+	 * as the openSendChannel() but connection is initiated from the receiver.
+	 * The channel must be closed. The images are compressed with the \e codec
+	 * (unless it is null).
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openServeChannel(final int portNo,
+	                                final int timeOut, final ProgressCallback log,
+	                                final ChunkCodec codec)
+	throws IOException
+	{ return openServeChannel(portNo, timeOut, log, codec, 0); }
+
+	/**
+	 * Opens a channel to serve a sequence of images over network to someone
+	 * who is receiving/pulling it with the openRequestChannel(), it acts in fact
+	 * as the openSendChannel() but connection is initiated from the receiver.
+	 * The channel must be closed. The images are sent as deltas against
+	 * the previous image, and every \e keyFrameInterval-th image is sent in full
+	 * (unless \e keyFrameInterval is 0, which disables the delta mode).
+	 * The deltas should be compressed with the \e codec to save the bandwidth.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openServeChannel(final int portNo,
+	                                final int timeOut, final ProgressCallback log,
+	                                final ChunkCodec codec, final int keyFrameInterval)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgSendChannel(pool.bind(portNo, timeOut), pool, log, codec, keyFrameInterval);
+	}
+
+	/**
+	 * Opens a channel to serve a sequence of images over network to someone
+	 * who is receiving/pulling it with the openRequestChannel(), it acts in fact
+	 * as the openSendChannel() but connection is initiated from the receiver.
+	 * The channel must be closed.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgSendChannel openServeChannel(final int portNo)
+	throws IOException
+	{ return openServeChannel(portNo, 30, null); }
+
+	/**
+	 * Opens a channel to serve a sequence of images at the \e endpoint, e.g.
+	 * "tcp://*:3456", "ipc:///tmp/images" or "inproc://images", to someone
+	 * who is receiving/pulling it with the openRequestChannel(). The channel
+	 * must be closed. The images are compressed with the \e codec (unless it is null).
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgSendChannel openServeChannel(final String endpoint,
+	                                final int timeOut, final ProgressCallback log,
+	                                final ChunkCodec codec)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgSendChannel(pool.bind(toURL(endpoint), timeOut), pool, log, codec, 0);
+	}
+
+	/**
+	 * Opens a channel to receive/pull a sequence of images over network from
+	 * someone who is serving it with the openServeChannel(), it acts in fact
+	 * as the openReceiveChannel() but connection is initiated from this function.
+	 * The channel must be closed.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgReceiveChannel openRequestChannel(final String addr,
+	                                     final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new ImgReceiveChannel(pool.connect(toURL(addr), timeOut), pool, log);
+	}
+
+	/**
+	 * Opens a channel to receive/pull a sequence of images over network from
+	 * someone who is serving it with the openServeChannel(), it acts in fact
+	 * as the openReceiveChannel() but connection is initiated from this function.
+	 * The channel must be closed.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	ImgReceiveChannel openRequestChannel(final String addr)
+	throws IOException
+	{ return openRequestChannel(addr, 30, null); }
+
+
+	// ------------------ images pulled cell by cell ------------------
+
+	/**
+	 * Serves an image cell by cell over network to someone who is accessing
+	 * it with the requestCells(), the image is split into cells of the size
+	 * \e cellDims. Only the requested cells are sent. This function returns
+	 * once the other peer closes its RemoteCellImg, or once it stays silent
+	 * for longer than the \e timeOut.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveCells(final ImgPlus<T> imgP, final int portNo, final int[] cellDims,
+	                final int timeOut, final ProgressCallback log)
+	throws IOException
+	{ serveCells(imgP, "tcp://*:"+portNo, cellDims, timeOut, log); }
+
+	/**
+	 * Serves an image cell by cell at the \e endpoint, e.g. "tcp://*:3456",
+	 * "ipc:///tmp/images" or "inproc://images", to someone who is accessing
+	 * it with the requestCells(), the image is split into cells of the size
+	 * \e cellDims. Only the requested cells are sent.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveCells(final ImgPlus<T> imgP, final String endpoint, final int[] cellDims,
+	                final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		if (cellDims.length != imgP.numDimensions())
+			throw new IOException("cell has "+cellDims.length+" dimensions but image has "
+			                      +imgP.numDimensions()+" dimensions");
+		for (int d=0; d < cellDims.length; ++d)
+			if (cellDims[d] < 1)
+				throw new IOException("cell size must be positive, got "+cellDims[d]);
+
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		CellServer.serve(imgP, cellDims, pool.bind(toURL(endpoint), timeOut), pool, log);
+	}
+
+	/**
+	 * Serves an image cell by cell over network to someone who is accessing
+	 * it with the requestCells(), the image is split into cells of the size
+	 * \e cellDims. Only the requested cells are sent.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveCells(final ImgPlus<T> imgP, final int portNo, final int[] cellDims)
+	throws IOException
+	{ serveCells(imgP, portNo, cellDims, 30, null); }
+
+	/**
+	 * Serves an image cell by cell at the \e endpoint to someone who is
+	 * accessing it with the requestCells().
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static <T extends NativeType<T>>
+	void serveCells(final ImgPlus<T> imgP, final String endpoint, final int[] cellDims)
+	throws IOException
+	{ serveCells(imgP, endpoint, cellDims, 30, null); }
+
+	/**
+	 * Opens an image that is served cell by cell over network by someone
+	 * with the serveCells(), the cells are pulled only when accessed for the
+	 * first time, and at most \e maxCachedCells cells are kept. The first
+	 * cell is pulled before this function returns. The image must be closed.
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	RemoteCellImg<?> requestCells(final String addr, final int maxCachedCells,
+	                              final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQsessionPool pool = ZeroMQsessionPool.getDefault();
+		return new RemoteCellImg<>(pool.connect(toURL(addr), timeOut), pool, maxCachedCells, log);
+	}
+
+	/**
+	 * Opens an image that is served cell by cell over network by someone
+	 * with the serveCells(), the cells are pulled only when accessed for the
+	 * first time, and at most \e maxCachedCells cells are kept. The first
+	 * cell is pulled before this function returns. The image must be closed.
+	 * No logging/reporting is supported here, default 30 secs timeout is used.
+	 */
+	public static
+	RemoteCellImg<?> requestCells(final String addr, final int maxCachedCells)
+	throws IOException
+	{ return requestCells(addr, maxCachedCells, 30, null); }
+
+
+	// ------------------ pool of sessions ------------------
+
+	/**
+	 * Closes all network sessions that are kept for re-use by the functions
+	 * of this class, and releases the associated resources (e.g. threads).
+	 * The functions of this class can be used afterwards again.
+	 */
+	public static
+	void shutdown()
+	{ ZeroMQsessionPool.shutdownDefault(); }
+
+
+	// ------------------ prefetching of received chunks ------------------
+
+	/**
+	 * Makes the receiving of single images (incl. the receiveImageInto()) and the
+	 * receive channels receive up to \e chunks next chunks in the background while
+	 * the current chunk is being decoded, 0 (the default) turns it off. It pays off
+	 * for images of many chunks, the receiving of small images gets rather slower.
+	 * Only the transfers started afterwards are affected.
+	 */
+	public static
+	void setPrefetchedChunks(final int chunks)
+	{
+		if (chunks < 0)
+			throw new IllegalArgumentException("number of prefetched chunks must not be negative, got "+chunks);
+		prefetchedChunks = chunks;
+	}
+
+	/** returns how many chunks are received in the background, 0 if none */
+	public static
+	int getPrefetchedChunks()
+	{ return prefetchedChunks; }
+
+	private static volatile int prefetchedChunks = 0;
+
+
+	// ------------------ internal stuff ------------------
+
+	/**
+	 * Returns the \e addr if it is a full endpoint URI (e.g. "ipc:///tmp/images"
+	 * or "inproc://images"), or the tcp endpoint URI of it otherwise (e.g. of
+	 * "localhost:3456" or "*:3456"). The "inproc://" endpoints connect only
+	 * the sessions of the same ZeroMQsessionPool, e.g. of the default one.
+	 */
+	static
+	String toURL(final String addr)
+	{
+		return addr.contains("://") ? addr : "tcp://"+addr;
+	}
+
+	/**
+	 * Streams the image into the session, and gives the session back to
+	 * the pool afterwards. The session is closed if the transfer fails.
+	 */
+	private static <T extends NativeType<T>>
+	void writeImage(final ImgPlus<T> imgP, final ZeroMQsession zmq,
+	                final ZeroMQsessionPool pool, final ProgressCallback log,
+	                final ChunkCodec codec)
+	throws IOException
+	{
+		try {
+			final ZeroMQOutputStream zos = createOutputStream(zmq, codec);
+
+			final ImgStreamer is = new ImgStreamer(log);
+			is.setImageForStreaming(imgP);
+			is.write(zos);
+			zos.flush();
+
+			if (zos.isSendingChecksums()) writeDigest(zos);
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** sends the digest of the whole stream (sent so far) */
+	private static
+	void writeDigest(final ZeroMQOutputStream zos)
+	throws IOException
+	{
+		final int digest = zos.getDigest();
+		final DataOutputStream dos = new DataOutputStream(zos);
+		dos.writeInt(DIGEST_DELIMITER);
+		dos.writeInt(digest);
+		dos.flush();
+	}
+
+	/** compares the digest of the whole stream (received so far) with the digest sent next */
+	private static
+	void verifyDigest(final ZeroMQInputStream zis)
+	throws IOException
+	{
+		final int digest = zis.getDigest();
+		final DataInputStream dis = new DataInputStream(zis);
+		if (dis.readInt() != DIGEST_DELIMITER)
+			throw new IOException("digest not found, communication is broken");
+		if (dis.readInt() != digest)
+			throw new IOException("the image is corrupted (digest mismatch)");
+	}
+
+	/** the delimiter, which is followed with the digest of the stream */
+	private static final int DIGEST_DELIMITER = 0x44475354; // "DGST"
+
+	/**
+	 * Waits for the request of a region, and streams the region of the image
+	 * into the session (or the reason why the region cannot be served). The
+	 * session is given back to the pool afterwards, and closed if the transfer fails.
+	 */
+	private static <T extends NativeType<T>>
+	void writeImageRegion(final ImgPlus<T> imgP, final ZeroMQsession zmq,
+	                      final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			final DataInputStream dis = new DataInputStream(new ZeroMQInputStream(zmq));
+			if (dis.readInt() != REGION_REQUEST)
+				throw new IOException("region request not found, communication is broken");
+			final Hyperslab region = Hyperslab.read(dis);
+
+			final ZeroMQOutputStream zos = new ZeroMQOutputStream(zmq);
+			final DataOutputStream dos = new DataOutputStream(zos);
+
+			final Img<T> img = imgP.getImg();
+			final RandomAccessibleInterval<T> view;
+			try {
+				view = region.apply(img);
+			}
+			catch (IOException e) {
+				dos.writeInt(REGION_REFUSED);
+				dos.writeUTF(e.getMessage());
+				dos.flush();
+				throw e;
+			}
+
+			//the metadata travel with a tiny image of the same type (and with
+			//the calibration of the region), the pixels are streamed from the view
+			final long[] ones = new long[view.numDimensions()];
+			Arrays.fill(ones, 1);
+			dos.writeInt(REGION_SERVED);
+			final ImgStreamer is = new ImgStreamer(null);
+			is.setImageForStreaming(region.wrap(img.factory().create(ones), imgP));
+			is.write(zos);
+
+			new PixelTransfer().write(view, zos, log);
+			zos.flush();
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/**
+	 * Requests the region, and streams it from the session. The session is given
+	 * back to the pool afterwards, and closed if the transfer fails.
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private static
+	ImgPlus<?> readImageRegion(final Hyperslab region, final ZeroMQsession zmq,
+	                           final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			final DataOutputStream dos = new DataOutputStream(new ZeroMQOutputStream(zmq));
+			dos.writeInt(REGION_REQUEST);
+			region.write(dos);
+			dos.flush();
+
+			final ZeroMQInputStream zis = new ZeroMQInputStream(zmq);
+			final DataInputStream dis = new DataInputStream(zis);
+			final int reply = dis.readInt();
+			if (reply == REGION_REFUSED)
+				throw new IOException("region was refused: " + dis.readUTF());
+			if (reply != REGION_SERVED)
+				throw new IOException("region not found, communication is broken");
+
+			final ImgPlus<?> metadata = new ImgStreamer(null).read(zis);
+			return new ImgPlus(new PixelTransfer().read(zis, log).getImg(), metadata);
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** the region request (followed with the region), and the replies */
+	private static final int REGION_REQUEST = 0x52474E51; // "RGNQ"
+	private static final int REGION_SERVED  = 0x52474E53; // "RGNS"
+	private static final int REGION_REFUSED = 0x52474E52; // "RGNR"
+
+	/** returns the stream that compresses with the 'codec', or a plain stream if 'codec' is null */
+	static
+	ZeroMQOutputStream createOutputStream(final ZeroMQsession zmq, final ChunkCodec codec)
+	{
+		return codec == null ? new ZeroMQOutputStream(zmq)
+		                     : new ZeroMQOutputStream(zmq, ChunkCodecs.defaultChunkSize,
+		                                              ZeroMQbufferPool.getDefault(), codec);
+	}
+
+	/** returns the stream that prefetches as set with the setPrefetchedChunks(),
+	    the prefetching must be stopped before the session is used otherwise */
+	static
+	ZeroMQInputStream createInputStream(final ZeroMQsession zmq)
+	{
+		final ZeroMQInputStream zis = new ZeroMQInputStream(zmq);
+		final int chunks = prefetchedChunks;
+		if (chunks > 0) zis.startPrefetching(chunks);
+		return zis;
+	}
+
+	/**
+	 * Streams the image from the session, and gives the session back to
+	 * the pool afterwards. The session is closed if the transfer fails.
+	 */
+	private static
+	ImgPlus<?> readImage(final ZeroMQsession zmq,
+	                     final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQInputStream zis = createInputStream(zmq);
+		try {
+			final ImgStreamer is = new ImgStreamer(log);
+			final ImgPlus<?> imgP = is.read(zis);
+
+			if (zis.isVerifyingChecksums()) verifyDigest(zis);
+			return imgP;
+		}
+		catch (IOException | RuntimeException e) {
+			zis.close();
+			throw e;
+		}
+		finally {
+			zis.stopPrefetching();
+			pool.release(zmq);
+		}
+	}
 }
@@ -0,0 +1,87 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class hands the images over within the JVM. The single-image transfers
+ * of the ImgTransfer between the "inproc://" endpoints do not stream the image
+ * at all: the side with the image waits until the other side takes it, and the
+ * other side is given the very same ImgPlus (by reference, not a copy of it).
+ *
+ * Who binds and who connects does not matter here, the image goes always from
+ * the sender (or server) to the receiver (or requester) of the same endpoint.
+ */
+class InProcessTransfer
+{
+	/** returns true if the URL is the endpoint within the JVM */
+	static
+	boolean isInProcess(final String URL)
+	{
+		return URL.startsWith("inproc://");
+	}
+
+	/** waits (up to the 'timeOut' seconds) until the other side of the 'URL' takes the image */
+	static
+	void handOver(final ImgPlus<?> imgP, final String URL,
+	              final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			if (!exchangeFor(URL).offer(imgP, timeOut, TimeUnit.SECONDS))
+				throw new IOException("no one has taken the image even after "+timeOut+" seconds");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("handing over of the image was interrupted");
+		}
+
+		if (log != null) log.info("image handed over by reference to "+URL);
+	}
+
+	/** waits (up to the 'timeOut' seconds) until the other side of the 'URL' hands over the image */
+	static
+	ImgPlus<?> takeOver(final String URL,
+	                    final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		final ImgPlus<?> imgP;
+		try {
+			imgP = exchangeFor(URL).poll(timeOut, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("taking over of the image was interrupted");
+		}
+
+		if (imgP == null)
+			throw new IOException("no image has been handed over even after "+timeOut+" seconds");
+
+		if (log != null) log.info("image taken over by reference from "+URL);
+		return imgP;
+	}
+
+
+	// -------------- internal stuff --------------
+	/** the places where the images change hands, one per endpoint */
+	private static final ConcurrentMap<String, SynchronousQueue<ImgPlus<?>>> exchanges
+		= new ConcurrentHashMap<>();
+
+	private static
+	SynchronousQueue<ImgPlus<?>> exchangeFor(final String URL)
+	{
+		return exchanges.computeIfAbsent(URL, k -> new SynchronousQueue<>());
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+
+/**
+ * Is notified about every resolution level of an image that is transferred
+ * progressively, that is, from the coarsest to the finest level.
+ */
+public interface LevelCallback
+{
+	/** The 'levelImg' has just arrived, it is the image downsampled 2^level
+	 *  times in its first two dimensions. The level 0 is the image itself,
+	 *  and it always arrives as the last one.
+	 *
+	 * The notification comes from the receiving thread, the next level
+	 * is not received until this method returns.
+	 */
+	void levelArrived(ImgPlus<?> levelImg, int level);
+}
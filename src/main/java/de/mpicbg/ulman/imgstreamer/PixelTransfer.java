@@ -0,0 +1,591 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class transfers only the pixels of an image, without its metadata,
+ * so that they can be received into an existing image of the same type and
+ * dimensions (e.g. into the same image for every frame of a time-lapse).
+ *
+ * The pixels travel as the primitive backing arrays of the image, and they
+ * are copied in bulk between the arrays and the stream (no per-pixel cursors)
+ * if the image is an ArrayImg or a PlanarImg. The cells of a CellImg are copied
+ * row by row between their arrays and the stream. Images of other layouts are
+ * copied via a temporary ArrayImg. The arrays are sent in the byte order of
+ * the sender, the receiver converts them if needed. The pixels of a view are
+ * copied block by block via a small ArrayImg, the view is never copied as a whole.
+ *
+ * The buffers of this class are re-used for all images it transfers.
+ */
+class PixelTransfer
+{
+	/** sends the pixels of the image, and gives the session back to the pool afterwards */
+	static <T extends NativeType<T>>
+	void writeImage(final ImgPlus<T> imgP, final ZeroMQsession zmq,
+	                final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			final ZeroMQOutputStream zos = new ZeroMQOutputStream(zmq);
+			new PixelTransfer().write(imgP.getImg(), zos, log);
+			zos.flush();
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** receives the pixels into the image, and gives the session back to the pool afterwards */
+	static <T extends NativeType<T>>
+	void readImage(final Img<T> img, final ZeroMQsession zmq,
+	               final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		final ZeroMQInputStream zis = ImgTransfer.createInputStream(zmq);
+		try {
+			new PixelTransfer().read(img, zis, log);
+		}
+		catch (IOException | RuntimeException e) {
+			zis.close();
+			throw e;
+		}
+		finally {
+			zis.stopPrefetching();
+			pool.release(zmq);
+		}
+	}
+
+	/** checks that the 'source' image fits into the 'img', and copies it then */
+	@SuppressWarnings("unchecked")
+	static <T extends NativeType<T>>
+	void copyInto(final Img<T> img, final Img<?> source)
+	throws IOException
+	{
+		final long[] dims = new long[source.numDimensions()];
+		source.dimensions(dims);
+		checkFits(img, source.firstElement().getClass().getName(), dims);
+		StripedTransfer.copy((Img<T>)source, img);
+	}
+
+
+	// -------------- API stuff --------------
+	PixelTransfer()
+	{
+		this(defaultPieceSize);
+	}
+
+	/** the arrays are copied to and from the stream in pieces of 'pieceSize' bytes */
+	PixelTransfer(final int pieceSize)
+	{
+		piece = new byte[pieceSize];
+	}
+
+	/** writes the type, the dimensions and the pixels of the image */
+	<T extends NativeType<T>>
+	void write(final Img<T> img, final OutputStream os, final ProgressCallback log)
+	throws IOException
+	{
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+
+		final DataOutputStream dos = new DataOutputStream(os);
+		writeHeader(img.firstElement(), dims, dos);
+
+		List<Object> arrays = storageArrays(img);
+		if (arrays == null && hasArrayCells(img))
+			forEachCellRow((AbstractCellImg<T,?,?,?>)img,
+				(array,off,len) -> writeSegment(array,off,len, dos), log);
+		else
+		{
+			if (arrays == null)
+			{
+				final Img<T> arrayImg = new ArrayImgFactory<>(img.firstElement()).create(dims);
+				StripedTransfer.copy(img, arrayImg);
+				arrays = storageArrays(arrayImg);
+				if (arrays == null)
+					throw new IOException("cannot transfer pixels of the type "+img.firstElement().getClass().getSimpleName());
+			}
+
+			for (int i=0; i < arrays.size(); ++i)
+			{
+				writeSegment(arrays.get(i), 0, Array.getLength(arrays.get(i)), dos);
+				if (log != null) log.setProgress((i+1f) / arrays.size());
+			}
+		}
+
+		flushPiece(dos);
+		dos.flush();
+	}
+
+	/** writes the type, the dimensions and the pixels of the 'view', the pixels
+	    can be read with the read() methods as if they came from an image */
+	<T extends NativeType<T>>
+	void write(final RandomAccessibleInterval<T> view, final OutputStream os, final ProgressCallback log)
+	throws IOException
+	{
+		final RandomAccessibleInterval<T> src = Views.zeroMin(view);
+		final int n = view.numDimensions();
+		final long[] dims = new long[n];
+		view.dimensions(dims);
+		final T type = Views.flatIterable(view).firstElement();
+
+		final DataOutputStream dos = new DataOutputStream(os);
+		writeHeader(type, dims, dos);
+
+		//the block spans fully the dimensions below 'k', and at most 'span' pixels
+		//along the dimension 'k', so that it is about the piece; the blocks thus
+		//follow each other in the flat order of the view (the pixels of the types
+		//that are packed into bits cannot be split, and come in one block)
+		final List<Object> probe = storageArrays(new ArrayImgFactory<>(type).create(1L));
+		if (probe == null)
+			throw new IOException("cannot transfer pixels of the type "+type.getClass().getSimpleName());
+		final long blockPixels = type.getEntitiesPerPixel().getDenominator() == 1
+			? Math.max(piece.length / (elementSize(probe.get(0)) * type.getEntitiesPerPixel().getNumerator()), 1)
+			: Long.MAX_VALUE;
+
+		int k = 0;
+		long plane = 1;
+		while (k < n && plane*dims[k] <= blockPixels) plane *= dims[k++];
+		if (k == n)
+		{
+			//the whole view is one block
+			--k;
+			plane /= dims[k];
+		}
+		final long span = Math.max(blockPixels / plane, 1);
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d=0; d < k; ++d) max[d] = dims[d]-1;
+
+		long blocks = (dims[k]+span-1) / span;
+		for (int d=k+1; d < n; ++d) blocks *= dims[d];
+		long block = 0;
+		Img<T> blockImg = null;
+		do
+		{
+			max[k] = Math.min(min[k]+span, dims[k]) -1;
+			for (int d=k+1; d < n; ++d) max[d] = min[d];
+
+			final FinalInterval blockInterval = new FinalInterval(min,max);
+			if (blockImg == null || blockImg.dimension(k) != blockInterval.dimension(k))
+				blockImg = new ArrayImgFactory<>(type).create(blockInterval);
+			StripedTransfer.copy(Views.interval(src, blockInterval), blockImg);
+
+			final Object array = storageArrays(blockImg).get(0);
+			writeSegment(array, 0, Array.getLength(array), dos);
+			if (log != null) log.setProgress((float)++block / blocks);
+		}
+		while (nextBlock(min, k, span, dims));
+
+		flushPiece(dos);
+		dos.flush();
+	}
+
+	/** reads the pixels into the image, which must be of the same type and dimensions */
+	<T extends NativeType<T>>
+	void read(final Img<T> img, final InputStream is, final ProgressCallback log)
+	throws IOException
+	{
+		final DataInputStream dis = new DataInputStream(is);
+		checkFits(img, readHeader(dis), dims);
+
+		final List<Object> arrays = storageArrays(img);
+		if (arrays == null && hasArrayCells(img))
+		{
+			final AbstractCellImg<T,?,?,?> cellImg = (AbstractCellImg<T,?,?,?>)img;
+			remainingBytes = img.size() * img.firstElement().getEntitiesPerPixel().getNumerator()
+			               * elementSize( storageArray(cellImg.getCells().firstElement().getData()) );
+			forEachCellRow(cellImg, (array,off,len) -> readSegment(array,off,len, dis), log);
+		}
+		else if (arrays == null)
+		{
+			final Img<T> arrayImg = new ArrayImgFactory<>(img.firstElement()).create(dims);
+			readArrays(storageArrays(arrayImg), dis, log);
+			StripedTransfer.copy(arrayImg, img);
+		}
+		else readArrays(arrays, dis, log);
+	}
+
+	/** reads the pixels into a new ArrayImg of the type and dimensions that come with them */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	ImgPlus<?> read(final InputStream is, final ProgressCallback log)
+	throws IOException
+	{
+		final DataInputStream dis = new DataInputStream(is);
+		final String typeName = readHeader(dis);
+
+		final NativeType type;
+		try {
+			type = (NativeType)Class.forName(typeName).newInstance();
+		}
+		catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IOException("cannot create pixels of the type "+typeName);
+		}
+
+		final Img img = new ArrayImgFactory(type).create(dims);
+		readArrays(storageArrays(img), dis, log);
+		return new ImgPlus(img);
+	}
+
+
+	// -------------- internal stuff --------------
+	/** the pixels are preceded with this (and then with the type, dimensions and the byte order) */
+	static final int PIXELS_HEADER = 0x5058454C; // "PXEL"
+
+	static final int defaultPieceSize = 1 << 20;
+
+	/** the piece of the stream that is being filled (when writing) or drained (when
+	    reading), and its view in the byte order of the arrays in the stream */
+	private final byte[] piece;
+	private ByteBuffer pieceBytes;
+	private int piecePos = 0;
+	private int pieceEnd = 0;
+
+	/** how many bytes of the pixels are still to be read from the stream */
+	private long remainingBytes = 0;
+
+	/** the dimensions of the image that is being read */
+	private long[] dims;
+
+	/** writes the header: the type of the pixels, the dimensions and the byte order */
+	private
+	void writeHeader(final NativeType<?> type, final long[] dims, final DataOutputStream dos)
+	throws IOException
+	{
+		dos.writeInt(PIXELS_HEADER);
+		dos.writeUTF(type.getClass().getName());
+		dos.writeInt(dims.length);
+		for (long dim : dims) dos.writeLong(dim);
+		dos.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+
+		setOrder(ByteOrder.nativeOrder());
+		piecePos = 0;
+	}
+
+	/** reads the header, and returns the name of the type of the pixels */
+	private
+	String readHeader(final DataInputStream dis)
+	throws IOException
+	{
+		if (dis.readInt() != PIXELS_HEADER)
+			throw new IOException("pixels header not found, communication is broken");
+
+		final String typeName = dis.readUTF();
+		dims = new long[dis.readInt()];
+		for (int d=0; d < dims.length; ++d) dims[d] = dis.readLong();
+		setOrder(dis.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		piecePos = pieceEnd = 0;
+		return typeName;
+	}
+
+	private
+	void setOrder(final ByteOrder order)
+	{
+		pieceBytes = ByteBuffer.wrap(piece).order(order);
+	}
+
+	private static
+	void checkFits(final Img<?> img, final String typeName, final long[] dims)
+	throws IOException
+	{
+		final long[] imgDims = new long[img.numDimensions()];
+		img.dimensions(imgDims);
+		final String imgTypeName = img.firstElement().getClass().getName();
+
+		if (!imgTypeName.equals(typeName) || !Arrays.equals(imgDims, dims))
+			throw new IOException("cannot receive "+typeName+" of "+Arrays.toString(dims)
+			                      +" into "+imgTypeName+" of "+Arrays.toString(imgDims));
+	}
+
+	/** returns the primitive arrays that store the pixels (in their flat order),
+	    or null if the image is not stored in such arrays */
+	@SuppressWarnings("rawtypes")
+	private static <T extends NativeType<T>>
+	List<Object> storageArrays(final Img<T> img)
+	{
+		final List<Object> arrays = new ArrayList<>();
+		if (img instanceof ArrayImg)
+			arrays.add( storageArray(((ArrayImg)img).update(null)) );
+		else if (img instanceof PlanarImg && img.firstElement().getEntitiesPerPixel().getDenominator() == 1)
+		{
+			//(the planes of e.g. BitType are padded, and are not therefore in the flat order)
+			final PlanarImg planarImg = (PlanarImg)img;
+			for (int p=0; p < planarImg.numSlices(); ++p)
+				arrays.add( storageArray(planarImg.getPlane(p)) );
+		}
+		else return null;
+
+		return arrays.contains(null) ? null : arrays;
+	}
+
+	private static
+	Object storageArray(final Object access)
+	{
+		if (!(access instanceof ArrayDataAccess)) return null;
+
+		final Object array = ((ArrayDataAccess<?>)access).getCurrentStorageArray();
+		return array != null && elementSize(array) > 0 ? array : null;
+	}
+
+	/** returns true if the image is a CellImg whose cells store
+	    the pixels (in their flat order) in primitive arrays */
+	private static <T extends NativeType<T>>
+	boolean hasArrayCells(final Img<T> img)
+	{
+		return img instanceof AbstractCellImg
+		    && img.firstElement().getEntitiesPerPixel().getDenominator() == 1
+		    && storageArray( ((AbstractCellImg<?,?,?,?>)img).getCells().firstElement().getData() ) != null;
+	}
+
+	/** the runs of the elements of the storage arrays, in the flat order of the image */
+	private interface Segments
+	{
+		void copy(Object array, int offset, int length) throws IOException;
+	}
+
+	/** gives the 'segments' the rows of all cells, in the flat order of the image */
+	private static <T extends NativeType<T>, A, C extends Cell<A>>
+	void forEachCellRow(final AbstractCellImg<T,A,C,?> img, final Segments segments,
+	                    final ProgressCallback log)
+	throws IOException
+	{
+		final CellGrid grid = img.getCellGrid();
+		final int n = img.numDimensions();
+		final int entities = (int)img.firstElement().getEntitiesPerPixel().getNumerator();
+		final RandomAccess<C> cells = img.getCells().randomAccess();
+
+		final long rows = img.size() / img.dimension(0);
+		final long rowsPerProgress = Math.max(rows / 100, 1);
+		long row = 0;
+
+		final long[] gridPos = new long[n];
+		final long[] pos = new long[n];
+		do
+		{
+			for (int d=1; d < n; ++d) gridPos[d] = pos[d] / grid.cellDimension(d);
+			for (long gx=0; gx < grid.gridDimension(0); ++gx)
+			{
+				gridPos[0] = gx;
+				cells.setPosition(gridPos);
+				final Cell<A> cell = cells.get();
+
+				final Object array = storageArray(cell.getData());
+				if (array == null)
+					throw new IOException("cannot transfer pixels of a cell not stored in a primitive array");
+
+				pos[0] = cell.min(0);
+				segments.copy(array, entities*cell.globalPositionToIndex(pos), entities*cell.dimension(0));
+			}
+			pos[0] = 0;
+
+			if (log != null && ++row % rowsPerProgress == 0) log.setProgress((float)row / rows);
+		}
+		while (nextRow(pos, img));
+	}
+
+	/** moves the 'pos' to the beginning of the next row of the image,
+	    returns false if there is no next row */
+	private static
+	boolean nextRow(final long[] pos, final Img<?> img)
+	{
+		for (int d=1; d < pos.length; ++d)
+		{
+			if (++pos[d] < img.dimension(d)) return true;
+			pos[d] = 0;
+		}
+		return false;
+	}
+
+	/** moves the 'min' of the block to the next block (the dimension 'k' goes
+	    by 'span', the dimensions above it by one), returns false if there is no next block */
+	private static
+	boolean nextBlock(final long[] min, final int k, final long span, final long[] dims)
+	{
+		min[k] += span;
+		if (min[k] < dims[k]) return true;
+		min[k] = 0;
+
+		for (int d=k+1; d < min.length; ++d)
+		{
+			if (++min[d] < dims[d]) return true;
+			min[d] = 0;
+		}
+		return false;
+	}
+
+	private
+	void readArrays(final List<Object> arrays, final DataInputStream dis, final ProgressCallback log)
+	throws IOException
+	{
+		if (arrays == null)
+			throw new IOException("cannot receive pixels stored in other than primitive arrays");
+
+		remainingBytes = 0;
+		for (Object array : arrays) remainingBytes += (long)Array.getLength(array) * elementSize(array);
+
+		for (int i=0; i < arrays.size(); ++i)
+		{
+			readSegment(arrays.get(i), 0, Array.getLength(arrays.get(i)), dis);
+			if (log != null) log.setProgress((i+1f) / arrays.size());
+		}
+	}
+
+	/** writes 'length' elements of the 'array' from the 'offset' into the piece,
+	    the piece is written into the stream whenever it is full */
+	private
+	void writeSegment(final Object array, int offset, int length, final OutputStream os)
+	throws IOException
+	{
+		if (array instanceof byte[] && length >= piece.length)
+		{
+			//large byte arrays need no conversion, and thus no piece
+			flushPiece(os);
+			os.write((byte[])array, offset, length);
+			return;
+		}
+
+		final int elemSize = elementSize(array);
+		while (length > 0)
+		{
+			if (piece.length - piecePos < elemSize) flushPiece(os);
+
+			final int n = Math.min(length, (piece.length - piecePos) / elemSize);
+			copy(array, offset, n, true);
+			piecePos += n*elemSize;
+			offset += n; length -= n;
+		}
+	}
+
+	private
+	void flushPiece(final OutputStream os)
+	throws IOException
+	{
+		if (piecePos > 0) os.write(piece, 0, piecePos);
+		piecePos = 0;
+	}
+
+	/** reads 'length' elements of the 'array' from the 'offset' out of the piece,
+	    the piece is read from the stream whenever it is empty (but never beyond
+	    the pixels, the stream may continue with other data) */
+	private
+	void readSegment(final Object array, int offset, int length, final DataInputStream dis)
+	throws IOException
+	{
+		if (array instanceof byte[] && length >= piece.length && piecePos == pieceEnd)
+		{
+			dis.readFully((byte[])array, offset, length);
+			remainingBytes -= length;
+			return;
+		}
+
+		final int elemSize = elementSize(array);
+		while (length > 0)
+		{
+			if (piecePos == pieceEnd)
+			{
+				pieceEnd = (int)Math.min(piece.length / elemSize * elemSize, remainingBytes);
+				dis.readFully(piece, 0, pieceEnd);
+				remainingBytes -= pieceEnd;
+				piecePos = 0;
+			}
+
+			final int n = Math.min(length, (pieceEnd - piecePos) / elemSize);
+			copy(array, offset, n, false);
+			piecePos += n*elemSize;
+			offset += n; length -= n;
+		}
+	}
+
+	/** copies 'n' elements from the 'array' into the piece (at its current position), or back */
+	private
+	void copy(final Object array, final int off, final int n, final boolean intoPiece)
+	{
+		if (array instanceof byte[])
+		{
+			if (intoPiece) System.arraycopy((byte[])array, off, piece, piecePos, n);
+			else System.arraycopy(piece, piecePos, (byte[])array, off, n);
+			return;
+		}
+
+		pieceBytes.position(piecePos);
+		if (array instanceof short[])
+		{
+			if (intoPiece) pieceBytes.asShortBuffer().put((short[])array, off, n);
+			else pieceBytes.asShortBuffer().get((short[])array, off, n);
+		}
+		else if (array instanceof int[])
+		{
+			if (intoPiece) pieceBytes.asIntBuffer().put((int[])array, off, n);
+			else pieceBytes.asIntBuffer().get((int[])array, off, n);
+		}
+		else if (array instanceof long[])
+		{
+			if (intoPiece) pieceBytes.asLongBuffer().put((long[])array, off, n);
+			else pieceBytes.asLongBuffer().get((long[])array, off, n);
+		}
+		else if (array instanceof float[])
+		{
+			if (intoPiece) pieceBytes.asFloatBuffer().put((float[])array, off, n);
+			else pieceBytes.asFloatBuffer().get((float[])array, off, n);
+		}
+		else if (array instanceof double[])
+		{
+			if (intoPiece) pieceBytes.asDoubleBuffer().put((double[])array, off, n);
+			else pieceBytes.asDoubleBuffer().get((double[])array, off, n);
+		}
+		else if (array instanceof char[])
+		{
+			if (intoPiece) pieceBytes.asCharBuffer().put((char[])array, off, n);
+			else pieceBytes.asCharBuffer().get((char[])array, off, n);
+		}
+		else throw new IllegalArgumentException("pixels stored in "+array.getClass().getSimpleName()+" are not supported");
+	}
+
+	/** returns the size of the elements of the 'array', or 0 if it is not supported */
+	private static
+	int elementSize(final Object array)
+	{
+		if (array instanceof short[] || array instanceof char[]) return 2;
+		if (array instanceof int[]   || array instanceof float[]) return 4;
+		if (array instanceof long[]  || array instanceof double[]) return 8;
+		if (array instanceof byte[]) return 1;
+		return 0;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This class transfers an image as a pyramid of resolution levels, from
+ * the coarsest to the finest level. The level no. k is the image downsampled
+ * (subsampled, in fact) 2^k times in its first two dimensions, and the level
+ * no. 0 is the image itself. The calibration of a level is scaled accordingly,
+ * so all levels cover the same physical extent. Every level is sent as
+ * a standalone image, so the coarse levels can be shown while the finer
+ * levels are still arriving.
+ */
+class ProgressiveTransfer
+{
+	/** streams the levels of the image into the session, from the coarsest one */
+	static <T extends NativeType<T>>
+	void writeImage(final ImgPlus<T> imgP, final int levels,
+	                final ZeroMQsession zmq, final ZeroMQsessionPool pool,
+	                final ProgressCallback log)
+	throws IOException
+	{
+		final Img<T> img = imgP.getImg();
+		final int levelsToSend = Math.min(levels, maxLevels(img));
+
+		try {
+			final ZeroMQOutputStream zos = new ZeroMQOutputStream(zmq);
+			final DataOutputStream dos = new DataOutputStream(zos);
+			final ImgStreamer is = new ImgStreamer(log);
+
+			dos.writeInt(LEVELS_DELIMITER);
+			dos.writeInt(levelsToSend);
+
+			for (int level = levelsToSend-1; level >= 0; --level)
+			{
+				is.setImageForStreaming(level == 0 ? imgP : downsample(imgP, level));
+				is.write(zos);
+
+				//make the level available to the receiver right away
+				zos.flush();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** streams the levels of the image from the session, and returns the finest level */
+	static
+	ImgPlus<?> readImage(final LevelCallback levelCallback,
+	                     final ZeroMQsession zmq, final ZeroMQsessionPool pool,
+	                     final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			final ZeroMQInputStream zis = new ZeroMQInputStream(zmq);
+			final DataInputStream dis = new DataInputStream(zis);
+			final ImgStreamer is = new ImgStreamer(log);
+
+			if (dis.readInt() != LEVELS_DELIMITER)
+				throw new IOException("levels delimiter not found, communication is broken");
+			final int levels = dis.readInt();
+			if (levels < 1)
+				throw new IOException("image comes in "+levels+" levels, communication is broken");
+
+			ImgPlus<?> imgP = null;
+			for (int level = levels-1; level >= 0; --level)
+			{
+				imgP = is.read(zis);
+				if (levelCallback != null) levelCallback.levelArrived(imgP, level);
+			}
+			return imgP;
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+
+	// -------------- internal stuff --------------
+	/** returns the copy of the image downsampled 2^level times in the first two dimensions,
+	    the calibration of these dimensions is coarsened 2^level times as well */
+	private static <T extends NativeType<T>>
+	ImgPlus<T> downsample(final ImgPlus<T> imgP, final int level)
+	{
+		final Img<T> img = imgP.getImg();
+		final long[] min = new long[img.numDimensions()];
+		final long[] max = new long[img.numDimensions()];
+		final long[] steps = new long[img.numDimensions()];
+		for (int d=0; d < steps.length; ++d)
+		{
+			max[d] = img.dimension(d)-1;
+			steps[d] = d < 2 ? 1L << level : 1;
+		}
+
+		final RandomAccessibleInterval<T> view = Views.subsample(Views.zeroMin(img), steps);
+		final long[] dims = new long[view.numDimensions()];
+		view.dimensions(dims);
+
+		final Img<T> levelImg = img.factory().create(dims);
+		StripedTransfer.copy(view, levelImg);
+		return new Hyperslab(min, max, steps).wrap(levelImg, imgP);
+	}
+
+	/** returns the number of levels after which the first two dimensions are only a pixel long */
+	private static
+	int maxLevels(final Img<?> img)
+	{
+		long size = 1;
+		for (int d=0; d < Math.min(2,img.numDimensions()); ++d)
+			size = Math.max(size, img.dimension(d));
+
+		int levels = 1;
+		while ((1L << (levels-1)) < size) ++levels;
+		return levels;
+	}
+
+	/** the delimiter, which is followed with the number of levels */
+	private static final int LEVELS_DELIMITER = 0x4C564C53; // "LVLS"
+}
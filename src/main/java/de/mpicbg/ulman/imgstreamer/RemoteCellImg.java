@@ -0,0 +1,308 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static de.mpicbg.ulman.imgstreamer.CellServer.GRID_REQUEST;
+import static de.mpicbg.ulman.imgstreamer.CellServer.CELL_REQUEST;
+import static de.mpicbg.ulman.imgstreamer.CellServer.END_REQUEST;
+
+/**
+ * This class provides an image whose cells are pulled over network from
+ * the other side, which serves them with the ImgTransfer.serveCells(), only
+ * when they are accessed for the first time. At most 'maxCachedCells' cells
+ * are kept, the least recently used cells are forgotten (and pulled again
+ * if needed). The neighbouring cells of every pulled cell are pulled in
+ * the background in advance.
+ *
+ * The image is readable as long as this object is not closed, the pixels
+ * written into the image may get lost when their cell is forgotten.
+ */
+public class RemoteCellImg<T extends NativeType<T>> implements Closeable
+{
+	// -------------- API stuff --------------
+	/** inits the image on top of the session that was obtained from the pool,
+	    the grid and the first cell of the image are pulled right away */
+	RemoteCellImg(final ZeroMQsession session, final ZeroMQsessionPool pool,
+	              final int maxCachedCells, final ProgressCallback log)
+	throws IOException
+	{
+		if (maxCachedCells < 1)
+			throw new IOException("at least one cell must be cached, got "+maxCachedCells);
+
+		zmq = session;
+		this.pool = pool;
+		this.maxCachedCells = maxCachedCells;
+
+		try {
+			zis = new ZeroMQInputStream(zmq);
+			dis = new DataInputStream(zis);
+			zos = new ZeroMQOutputStream(zmq);
+			dos = new DataOutputStream(zos);
+			is = new ImgStreamer(log);
+
+			//the grid of the image
+			dos.writeInt(GRID_REQUEST);
+			dos.flush();
+			final int n = dis.readInt();
+			if (n < 1)
+				throw new IOException("image has "+n+" dimensions, communication is broken");
+			final long[] imgDims = new long[n];
+			final int[] cellDims = new int[n];
+			for (int d=0; d < n; ++d) imgDims[d] = dis.readLong();
+			for (int d=0; d < n; ++d) cellDims[d] = dis.readInt();
+			grid = new CellGrid(imgDims, cellDims);
+			gridDims = grid.getGridDimensions();
+
+			//the first cell determines the pixel type of the image
+			final ImgPlus<?> firstCell = pullCell(0);
+			@SuppressWarnings("unchecked")
+			final T type = ((T)firstCell.getImg().firstElement()).createVariable();
+			this.type = type;
+			cache.put(0L, toCell(0, firstCell.getImg()));
+
+			img = new ImgPlus<>(new LazyCellImg<>(grid, type, this::getCell), firstCell);
+		}
+		catch (IOException | RuntimeException e) {
+			if (!isClosed)
+			{
+				isClosed = true;
+				zmq.close();
+				pool.release(zmq);
+			}
+			throw e;
+		}
+	}
+
+	/** returns the image, whose cells are pulled when accessed */
+	public
+	ImgPlus<T> getImgPlus()
+	{
+		return img;
+	}
+
+	/** returns the grid of cells of the image */
+	public
+	CellGrid getCellGrid()
+	{
+		return grid;
+	}
+
+	/** returns how many cells have been pulled so far (incl. the repeatedly pulled ones) */
+	public
+	long getCellsPulled()
+	{
+		return cellsPulled;
+	}
+
+	/** Stops pulling the cells, and lets the other side know about it.
+	 *  The image is not readable afterwards. */
+	@Override
+	public void close()
+	{
+		prefetcher.getQueue().clear();
+		prefetcher.shutdown();
+
+		synchronized (zmq)
+		{
+			if (isClosed) return;
+			isClosed = true;
+
+			try {
+				dos.writeInt(END_REQUEST);
+				dos.flush();
+			}
+			catch (IOException e) {
+				zmq.close();
+			}
+			pool.release(zmq);
+		}
+	}
+
+
+	// -------------- internal stuff --------------
+	private final ZeroMQsession zmq;
+	private final ZeroMQsessionPool pool;
+
+	private final ZeroMQInputStream zis;
+	private final DataInputStream dis;
+	private final ZeroMQOutputStream zos;
+	private final DataOutputStream dos;
+	private final ImgStreamer is;
+
+	private final CellGrid grid;
+	private final long[] gridDims;
+	private final T type;
+	private final ImgPlus<T> img;
+
+	private long cellsPulled = 0;
+	private volatile boolean isClosed = false;
+
+	/** the least recently used cells, the eldest cell is forgotten when the cache is full */
+	private final int maxCachedCells;
+	private final Map<Long, Cell<Object>> cache = new LinkedHashMap<Long, Cell<Object>>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Long, Cell<Object>> eldest)
+		{
+			return size() > maxCachedCells;
+		}
+	};
+
+	/** one (daemon) thread that pulls the neighbouring cells, the oldest
+	    requests for pulling are dropped when too many are waiting */
+	private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<>(64), r -> {
+			final Thread t = new Thread(r, "ZMQ cell prefetcher");
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+	/** the loader of the LazyCellImg: returns the cell, the cell is pulled if not cached */
+	private
+	Cell<Object> getCell(final long index)
+	{
+		Cell<Object> cell;
+		synchronized (cache) { cell = cache.get(index); }
+		if (cell != null) return cell;
+
+		try {
+			cell = loadCell(index);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		prefetchNeighbours(index);
+		return cell;
+	}
+
+	/** pulls the cell (unless some other thread has done it meanwhile), and caches it */
+	private
+	Cell<Object> loadCell(final long index)
+	throws IOException
+	{
+		synchronized (zmq)
+		{
+			Cell<Object> cell;
+			synchronized (cache) { cell = cache.get(index); }
+			if (cell != null) return cell;
+
+			cell = toCell(index, pullCell(index).getImg());
+			synchronized (cache) { cache.put(index, cell); }
+			return cell;
+		}
+	}
+
+	/** requests the cell from the other side, the session must be locked */
+	private
+	ImgPlus<?> pullCell(final long index)
+	throws IOException
+	{
+		if (isClosed)
+			throw new IOException("the remote image is closed");
+
+		try {
+			dos.writeInt(CELL_REQUEST);
+			dos.writeLong(index);
+			dos.flush();
+
+			final ImgPlus<?> cell = is.read(zis);
+			++cellsPulled;
+			return cell;
+		}
+		catch (IOException | RuntimeException e) {
+			//the communication is in an unknown state now
+			isClosed = true;
+			zmq.close();
+			pool.release(zmq);
+			throw e;
+		}
+	}
+
+	/** wraps the pixels of the pulled cell into the cell of the grid */
+	@SuppressWarnings("unchecked")
+	private
+	Cell<Object> toCell(final long index, final Img<?> pulledCell)
+	throws IOException
+	{
+		final long[] cellMin = new long[grid.numDimensions()];
+		final int[] cellDims = new int[grid.numDimensions()];
+		grid.getCellDimensions(index, cellMin, cellDims);
+
+		for (int d=0; d < cellDims.length; ++d)
+			if (pulledCell.dimension(d) != cellDims[d])
+				throw new IOException("pulled cell "+index+" is not of the expected size");
+
+		//the pixels are needed in an array
+		ArrayImg<?,?> arrayImg;
+		if (pulledCell instanceof ArrayImg)
+			arrayImg = (ArrayImg<?,?>)pulledCell;
+		else
+		{
+			final ArrayImg<T,?> copy = new ArrayImgFactory<>(type).create(cellDims);
+			final Cursor<T> srcC = ((Img<T>)pulledCell).cursor();
+			final Cursor<T> dstC = copy.cursor();
+			while (dstC.hasNext())
+				dstC.next().set(srcC.next());
+			arrayImg = copy;
+		}
+
+		return new Cell<>(cellDims, cellMin, arrayImg.update(null));
+	}
+
+	/** plans the pulling of the cells that are next to the given cell */
+	private
+	void prefetchNeighbours(final long index)
+	{
+		if (isClosed) return;
+
+		final long[] pos = new long[grid.numDimensions()];
+		grid.getCellGridPositionFlat(index, pos);
+
+		for (int d=0; d < pos.length; ++d)
+			for (int shift=-1; shift <= 1; shift += 2)
+			{
+				pos[d] += shift;
+				if (pos[d] >= 0 && pos[d] < gridDims[d])
+				{
+					final long neighbour = IntervalIndexer.positionToIndex(pos, gridDims);
+					prefetcher.execute( () -> {
+						try {
+							if (!isClosed) loadCell(neighbour);
+						}
+						catch (IOException e) {
+							//the cell will be requested again when accessed
+						}
+					} );
+				}
+				pos[d] -= shift;
+			}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class transfers an image in sequence-numbered chunks so that the transfer
+ * survives broken connections. The receiver keeps what it has already got, and
+ * the sender, after it has (re)connected, announces the transfer ID and is told
+ * from which chunk to continue. The receiver also tells the sender, once all
+ * chunks are sent, whether some chunk is missing.
+ *
+ * The sender streams the image anew after every reconnection and skips the chunks
+ * the receiver has already got, so only the CPU time (and not the bandwidth) is
+ * spent on them. The chunks are given to the ImgStreamer on the receiver as they
+ * arrive, so the receiver never holds more than a few chunks besides the image.
+ */
+class ResumableTransfer
+{
+	/** sends the image in chunks, and reconnects (up to 'retries' times) if the transfer breaks */
+	static <T extends NativeType<T>>
+	void writeImage(final ImgPlus<T> imgP, final String URL, final long transferId,
+	                final int timeOut, final int retries,
+	                final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		int failures = 0;
+		while (true)
+		{
+			final ZeroMQsession zmq = pool.connect(URL, timeOut);
+			try {
+				zmq.setPeerMayVanish(true);
+				long nextSeq = askForNextChunk(zmq, RESUME_REQUEST, transferId);
+				while (true)
+				{
+					if (log != null && nextSeq > 0) log.info("resuming transfer "+transferId+" from chunk "+nextSeq);
+
+					final ChunkSender cs = new ChunkSender(zmq, nextSeq);
+					final ImgStreamer is = new ImgStreamer(log);
+					is.setImageForStreaming(imgP);
+					is.write(cs);
+					cs.sendChunk();
+
+					//the receiver confirms that it has got all the chunks,
+					//or it tells the first missing one (and the transfer continues)
+					nextSeq = askForNextChunk(zmq, RESUME_END, cs.seq);
+					if (nextSeq == cs.seq) break;
+				}
+
+				zmq.setPeerMayVanish(false);
+				pool.release(zmq);
+				return;
+			}
+			catch (IOException | RuntimeException e) {
+				//nothing pending is worth waiting for, the other side would
+				//not accept the new connection until this one is gone
+				zmq.abort();
+				pool.release(zmq);
+
+				if (e instanceof TransferRefusedException || ++failures > retries) throw e;
+				if (log != null) log.info("transfer "+transferId+" broke ("+e.getMessage()+"), reconnecting");
+
+				//the receiver must notice that this connection is gone, otherwise
+				//it would reject the new one (and the request sent over it)
+				try {
+					Thread.sleep(reconnectDelay);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("sending of the image was interrupted");
+				}
+			}
+		}
+	}
+
+	/** receives the image in chunks, and waits (up to 'retries' times) for the sender to reconnect */
+	static
+	ImgPlus<?> readImage(final String endpoint, final int timeOut, final int retries,
+	                     final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		final ChunkReceiver cr = new ChunkReceiver();
+		final CompletableFuture<ImgPlus<?>> reader
+			= AsyncTransfer.run( () -> new ImgStreamer(log).read(cr), AsyncTransfer.getDefaultExecutor() );
+		cr.reader = reader;
+
+		long transferId = 0;
+		boolean isTransferKnown = false;
+
+		//the sender must learn that the transfer is complete, otherwise
+		//it would come back (and it is answered even after the completion)
+		boolean isCompletionReplied = false;
+
+		int failures = 0;
+		try {
+			while (!isCompletionReplied)
+			{
+				final ZeroMQsession zmq = bind(pool, endpoint, timeOut);
+				try {
+					zmq.setPeerMayVanish(true);
+					while (!isCompletionReplied)
+					{
+						final byte[] msg = zmq.readZMQ();
+						if (msg.length < 12)
+							throw new IOException("no chunk has arrived in time");
+
+						final ByteBuffer head = ByteBuffer.wrap(msg);
+						final int type = head.getInt();
+						final long value = head.getLong();
+
+						if (type == RESUME_CHUNK)
+						{
+							//(repeated chunks are skipped, later chunks are asked for again at the end)
+							if (value == cr.nextSeq && !cr.isComplete) cr.add(msg);
+						}
+						else if (type == RESUME_REQUEST)
+						{
+							if (!isTransferKnown)
+							{
+								transferId = value;
+								isTransferKnown = true;
+							}
+							reply(zmq, value == transferId ? cr.nextSeq : -1);
+						}
+						else if (type == RESUME_END)
+						{
+							if (value == cr.nextSeq && !cr.isComplete) cr.finish();
+							reply(zmq, cr.nextSeq);
+							isCompletionReplied = cr.isComplete;
+						}
+						else throw new IOException("unknown message, communication is broken");
+					}
+					zmq.setPeerMayVanish(false);
+					pool.release(zmq);
+				}
+				catch (IOException e) {
+					zmq.abort();
+					pool.release(zmq);
+
+					if (reader.isDone() && !cr.isComplete) throw e;
+					if (++failures > retries)
+					{
+						//the image is here, even if the sender has not learned it
+						if (cr.isComplete) break;
+						throw e;
+					}
+					if (log != null) log.info("transfer "+transferId+" broke ("+e.getMessage()
+					                          +"), waiting for the sender to resume from chunk "+cr.nextSeq);
+				}
+			}
+
+			return reader.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("receiving of the image was interrupted");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("reading of the image failed: " + e.getCause().getMessage());
+		}
+		finally {
+			//interrupt the reader if the transfer has not made it
+			if (!cr.isComplete) reader.cancel(true);
+		}
+	}
+
+
+	// -------------- internal stuff --------------
+	/** binds to the endpoint, which may be still held (for a moment) by the session
+	    that has just been closed, the binding is then tried again within the 'timeOut' */
+	private static
+	ZeroMQsession bind(final ZeroMQsessionPool pool, final String endpoint, final int timeOut)
+	throws IOException, InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + 1000L*timeOut;
+		while (true)
+		{
+			try {
+				return pool.bind(endpoint, timeOut);
+			}
+			catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/** sends the message of the 'type' with the 'value', and returns
+	    the number of the chunk the receiver wants next */
+	private static
+	long askForNextChunk(final ZeroMQsession zmq, final int type, final long value)
+	throws IOException
+	{
+		final byte[] msg = new byte[12];
+		ByteBuffer.wrap(msg).putInt(type).putLong(value);
+		zmq.writeZMQ(msg,0,msg.length);
+		zmq.waitForAllConfirmations();
+
+		final byte[] reply = zmq.readUnconfirmedZMQ();
+		if (reply.length == 0)
+			throw new IOException("no reply has arrived in time");
+
+		final ByteBuffer rb = ByteBuffer.wrap(reply);
+		if (reply.length != 12 || rb.getInt() != RESUME_REPLY)
+			throw new IOException("reply not found, communication is broken");
+
+		final long nextSeq = rb.getLong();
+		if (nextSeq < 0)
+			throw new TransferRefusedException("receiver is busy with another transfer");
+		return nextSeq;
+	}
+
+	private static
+	void reply(final ZeroMQsession zmq, final long nextSeq)
+	throws IOException
+	{
+		final byte[] msg = new byte[12];
+		ByteBuffer.wrap(msg).putInt(RESUME_REPLY).putLong(nextSeq);
+
+		//the sender may have gone away meanwhile, the reply is therefore not
+		//confirmed, otherwise the confirmation could cross with the messages
+		//of the sender that comes next
+		zmq.writeUnconfirmedZMQ(msg);
+	}
+
+	/** the transfer that must not be re-tried */
+	private static class TransferRefusedException extends IOException
+	{
+		TransferRefusedException(final String message)
+		{
+			super(message);
+		}
+	}
+
+	/** cuts the written bytes into the sequence-numbered chunks, and sends
+	    away only the chunks from the 'firstSeq' on */
+	private static class ChunkSender extends OutputStream
+	{
+		ChunkSender(final ZeroMQsession zmq, final long firstSeq)
+		{
+			this.zmq = zmq;
+			this.firstSeq = firstSeq;
+		}
+
+		private final ZeroMQsession zmq;
+		private final long firstSeq;
+
+		/** the number of the current chunk */
+		long seq = 0;
+
+		/** the current chunk is written after the header of its message */
+		private final byte[] msg = new byte[HEADER_SIZE+chunkSize];
+		private int pos = HEADER_SIZE;
+
+		@Override
+		public void write(int b)
+		throws IOException
+		{
+			if (pos == msg.length) sendChunk();
+			msg[pos++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		throws IOException
+		{
+			while (len > 0)
+			{
+				if (pos == msg.length) sendChunk();
+				final int l = Math.min(len, msg.length - pos);
+				System.arraycopy(b,off, msg,pos, l);
+				off += l; pos += l; len -= l;
+			}
+		}
+
+		/** sends away the current chunk (unless it is empty or the receiver has it) */
+		void sendChunk()
+		throws IOException
+		{
+			if (pos == HEADER_SIZE) return;
+
+			//(the session notices the interrupt only while waiting, which it needs not)
+			if (Thread.currentThread().isInterrupted())
+				throw new IOException("sending of the image was interrupted");
+
+			if (seq >= firstSeq)
+			{
+				ByteBuffer.wrap(msg).putInt(RESUME_CHUNK).putLong(seq);
+				zmq.writeZMQ(msg,0,pos);
+			}
+
+			++seq;
+			pos = HEADER_SIZE;
+		}
+	}
+
+	/** gives the received chunks to the reader of the image */
+	private static class ChunkReceiver extends InputStream
+	{
+		/** the number of the chunk that is expected next */
+		long nextSeq = 0;
+		volatile boolean isComplete = false;
+
+		CompletableFuture<?> reader;
+
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(4);
+
+		/** the chunk (message) being read, and the position in it */
+		private byte[] chunk = null;
+		private int pos = 0;
+
+		/** hands over the message with the chunk, waits if the reader is behind */
+		void add(final byte[] msg)
+		throws IOException
+		{
+			try {
+				while (!chunks.offer(msg, 100, TimeUnit.MILLISECONDS))
+					if (reader.isDone())
+						throw new IOException("reader of the image has stopped");
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("receiving of the image was interrupted");
+			}
+			++nextSeq;
+		}
+
+		/** there will be no more chunks */
+		void finish()
+		throws IOException
+		{
+			add(END_OF_CHUNKS);
+			--nextSeq;
+			isComplete = true;
+		}
+
+		@Override
+		public int read()
+		throws IOException
+		{
+			if (!hasData()) return -1;
+			return chunk[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		throws IOException
+		{
+			if (len == 0) return 0;
+			if (!hasData()) return -1;
+
+			final int l = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk,pos, b,off, l);
+			pos += l;
+			return l;
+		}
+
+		private
+		boolean hasData()
+		throws IOException
+		{
+			while (chunk == null || pos == chunk.length)
+			{
+				if (chunk == END_OF_CHUNKS) return false;
+				try {
+					chunk = chunks.take();
+					pos = HEADER_SIZE;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("reading of the image was interrupted");
+				}
+			}
+			return true;
+		}
+	}
+
+	/** the messages start with one of these, and are followed with a long value */
+	private static final int RESUME_REQUEST = 0x52534D51; // "RSMQ", with the transfer ID
+	private static final int RESUME_REPLY   = 0x52534D52; // "RSMR", with the next wanted chunk
+	private static final int RESUME_CHUNK   = 0x52534D44; // "RSMD", with the chunk number, and the chunk
+	private static final int RESUME_END     = 0x52534D45; // "RSME", with the number of chunks
+
+	private static final int HEADER_SIZE = 12;
+	private static final byte[] END_OF_CHUNKS = new byte[HEADER_SIZE];
+
+	/** period of time (in milliseconds) to wait before the sender reconnects */
+	private static final long reconnectDelay = 500;
+
+	/** the unit of resumption */
+	static final int chunkSize = 1<<22; //= 4 MB
+}
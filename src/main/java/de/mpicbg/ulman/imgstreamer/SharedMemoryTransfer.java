@@ -0,0 +1,481 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.PrimitiveType;
+import net.imglib2.util.Fraction;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class transfers an image between two processes on the same host without
+ * streaming its pixels: the sender writes the pixels once into a file in /dev/shm
+ * (or in the java.io.tmpdir if there is no /dev/shm), and sends only the path of
+ * the file, the dimensions and the metadata of the image over the session. The
+ * receiver maps the file into its memory, and the mapped memory is directly the
+ * backing storage of the received image (one mapped region per plane, so that
+ * every region is smaller than 2GB), the pixels are therefore never copied again.
+ *
+ * The sender owns the file: it deletes the file as soon as the receiver replies
+ * that it has mapped it, or the transfer fails (and on exit of the JVM at the
+ * latest). The memory itself is released by the system only after the received
+ * image is garbage collected, because the mapping outlives the deleted file.
+ *
+ * The images whose pixels are not stored one primitive value per pixel (e.g.
+ * BitType, ComplexFloatType), or whose planes are too large, or that do not
+ * fit into the free space of /dev/shm are streamed as usual. The image is also
+ * streamed as usual if the receiver cannot open the file, e.g. because the
+ * receiver runs on another host. The receiver maps only a file that is directly
+ * in its shared directory, is named as the senders name it, and is exactly of
+ * the size of the announced image, it refuses any other file.
+ */
+class SharedMemoryTransfer
+{
+	/** sends the image via a shared file, or streams it if that is not possible */
+	static <T extends NativeType<T>>
+	void writeImage(final ImgPlus<T> imgP, final ZeroMQsession zmq,
+	                final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			final ZeroMQOutputStream zos = new ZeroMQOutputStream(zmq);
+			final DataOutputStream dos = new DataOutputStream(zos);
+
+			final Path file = createSharedFile(imgP, log);
+			if (file == null)
+			{
+				dos.writeInt(SHM_STREAMED);
+				streamImage(imgP, zos, log);
+				return;
+			}
+
+			try {
+				final Img<T> img = imgP.getImg();
+				final long[] dims = new long[img.numDimensions()];
+				img.dimensions(dims);
+
+				dos.writeInt(SHM_MAPPED);
+				dos.writeUTF(file.toAbsolutePath().toString());
+				dos.writeInt(dims.length);
+				for (long dim : dims) dos.writeLong(dim);
+
+				//the metadata travel with a tiny image of the same type
+				final long[] ones = new long[dims.length];
+				Arrays.fill(ones, 1);
+				final ImgStreamer is = new ImgStreamer(null);
+				is.setImageForStreaming(new ImgPlus<>(img.factory().create(ones), imgP));
+				is.write(zos);
+				zos.flush();
+
+				final DataInputStream dis = new DataInputStream(new ZeroMQInputStream(zmq));
+				final int reply = dis.readInt();
+				if (reply == SHM_REFUSED)
+				{
+					if (log != null) log.info("receiver cannot map "+file+", the image is streamed instead");
+					streamImage(imgP, zos, log);
+				}
+				else if (reply != SHM_TAKEN)
+					throw new IOException("shared memory reply not found, communication is broken");
+				else if (log != null) log.info("image handed over in "+file);
+			}
+			finally {
+				deleteSharedFile(file);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** receives the image via a shared file, or streamed if the sender could not use one */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	static
+	ImgPlus<?> readImage(final ZeroMQsession zmq,
+	                     final ZeroMQsessionPool pool, final ProgressCallback log)
+	throws IOException
+	{
+		try {
+			final ZeroMQInputStream zis = new ZeroMQInputStream(zmq);
+			final DataInputStream dis = new DataInputStream(zis);
+
+			final int header = dis.readInt();
+			if (header == SHM_STREAMED)
+				return new ImgStreamer(log).read(zis);
+			if (header != SHM_MAPPED)
+				throw new IOException("shared memory header not found, communication is broken");
+
+			final Path file = Paths.get(dis.readUTF()).normalize();
+			final long[] dims = new long[dis.readInt()];
+			for (int d=0; d < dims.length; ++d) dims[d] = dis.readLong();
+			final ImgPlus<?> metadata = new ImgStreamer(null).read(zis);
+			final NativeType type = (NativeType)metadata.firstElement();
+
+			final DataOutputStream dos = new DataOutputStream(new ZeroMQOutputStream(zmq));
+			final Img<?> img;
+			try {
+				//only the files created by some sender are mapped, and never resized,
+				//otherwise the other side could make this side write into any file
+				if (!isSharedFile(file))
+					throw new IOException("not a shared image file");
+
+				final long fileBytes = fileBytes(dims, type);
+				if (fileBytes <= 0)
+					throw new IOException("image cannot be mapped");
+
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+				                                           StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+					if (channel.size() != fileBytes)
+						throw new IOException("file is not of the size of the image");
+
+					//the mapping stays valid after the channel is closed
+					img = mapImage(channel, dims, type);
+				}
+			}
+			catch (IOException e) {
+				if (log != null) log.info("cannot map "+file+" ("+e.getMessage()+"), the image is streamed instead");
+				dos.writeInt(SHM_REFUSED);
+				dos.flush();
+				return new ImgStreamer(log).read(zis);
+			}
+
+			dos.writeInt(SHM_TAKEN);
+			dos.flush();
+
+			if (log != null) log.info("image mapped from "+file);
+			return new ImgPlus(img, metadata);
+		}
+		catch (IOException | RuntimeException e) {
+			zmq.close();
+			throw e;
+		}
+		finally {
+			pool.release(zmq);
+		}
+	}
+
+	/** the header of the image in a shared file (followed with the file, dims and metadata), or of the streamed image */
+	private static final int SHM_MAPPED   = 0x53484D46; // "SHMF"
+	private static final int SHM_STREAMED = 0x53484D53; // "SHMS"
+	/** the replies whether the receiver has mapped the shared file */
+	private static final int SHM_TAKEN    = 0x53484D54; // "SHMT"
+	private static final int SHM_REFUSED  = 0x53484D52; // "SHMR"
+
+
+	// -------------- internal stuff --------------
+	private static <T extends NativeType<T>>
+	void streamImage(final ImgPlus<T> imgP, final ZeroMQOutputStream zos, final ProgressCallback log)
+	throws IOException
+	{
+		final ImgStreamer is = new ImgStreamer(log);
+		is.setImageForStreaming(imgP);
+		is.write(zos);
+		zos.flush();
+	}
+
+	/**
+	 * Creates the shared file, and copies the pixels of the image into it.
+	 * Returns null if the image cannot be transferred via the shared file.
+	 */
+	private static <T extends NativeType<T>>
+	Path createSharedFile(final ImgPlus<T> imgP, final ProgressCallback log)
+	throws IOException
+	{
+		final Img<T> img = imgP.getImg();
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+
+		final T type = img.firstElement();
+		final long fileBytes = fileBytes(dims, type);
+		if (fileBytes <= 0)
+			return null;
+
+		final Path dir = sharedDirectory();
+		if (Files.getFileStore(dir).getUsableSpace() < fileBytes)
+		{
+			if (log != null) log.info("not enough space in "+dir+", the image is streamed instead");
+			return null;
+		}
+
+		final Path file = Files.createTempFile(dir, SHARED_FILE_PREFIX, ".img");
+		liveFiles.add(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			StripedTransfer.copy(img, mapImage(channel, dims, type));
+		}
+		catch (IOException | RuntimeException e) {
+			deleteSharedFile(file);
+			throw e;
+		}
+		return file;
+	}
+
+	private static
+	void deleteSharedFile(final Path file)
+	throws IOException
+	{
+		Files.deleteIfExists(file);
+		liveFiles.remove(file);
+	}
+
+	/** the shared files that have not been deleted yet; unlike File.deleteOnExit(),
+	    which remembers every file until the JVM exits, the deleted files are forgotten */
+	private static final Set<Path> liveFiles = ConcurrentHashMap.newKeySet();
+
+	static
+	{
+		//deletes the files of the transfers that are still running when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread( () -> {
+			for (Path file : liveFiles)
+			{
+				try {
+					Files.deleteIfExists(file);
+				}
+				catch (IOException e) {
+					//nothing can be done about it now
+				}
+			}
+		}, "imglib2ZMQ shared files cleaner"));
+	}
+
+	/** returns /dev/shm if it is available, or java.io.tmpdir otherwise */
+	private static
+	Path sharedDirectory()
+	{
+		final Path shm = Paths.get("/dev/shm");
+		return Files.isDirectory(shm) && Files.isWritable(shm) ?
+			shm : Paths.get(System.getProperty("java.io.tmpdir"));
+	}
+
+	/** the names of the shared files start with this */
+	private static final String SHARED_FILE_PREFIX = "imglib2ZMQ-";
+
+	/** returns true if the (normalized) 'file' is directly in the sharedDirectory(),
+	    is named as the shared files are, and is not a link */
+	private static
+	boolean isSharedFile(final Path file)
+	{
+		return file.isAbsolute()
+			&& sharedDirectory().toAbsolutePath().normalize().equals(file.getParent())
+			&& file.getFileName().toString().startsWith(SHARED_FILE_PREFIX)
+			&& Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/** returns the size of the whole image in the file, or 0 if the image cannot be mapped */
+	private static
+	long fileBytes(final long[] dims, final NativeType<?> type)
+	{
+		final long planeBytes = planeBytes(dims, type);
+		if (planeBytes <= 0 || planeBytes > Integer.MAX_VALUE) return 0;
+
+		try {
+			long planes = 1;
+			for (int d=2; d < dims.length; ++d) planes = Math.multiplyExact(planes, dims[d]);
+			return planes > Integer.MAX_VALUE ? 0 : Math.multiplyExact(planeBytes, planes);
+		}
+		catch (ArithmeticException e) {
+			return 0;
+		}
+	}
+
+	/** returns the size of one plane of the image in the file, or 0 if the 'type' cannot be mapped */
+	private static
+	long planeBytes(final long[] dims, final NativeType<?> type)
+	{
+		final Fraction entities = type.getEntitiesPerPixel();
+		if (entities.getNumerator() != 1 || entities.getDenominator() != 1) return 0;
+
+		if (dims.length == 0) return 0;
+		for (long dim : dims) if (dim <= 0) return 0;
+
+		try {
+			final long planePixels = dims.length == 1 ? dims[0] : Math.multiplyExact(dims[0], dims[1]);
+			switch (type.getNativeTypeFactory().getPrimitiveType())
+			{
+			case BYTE:   return planePixels;
+			case SHORT:  return Math.multiplyExact(planePixels, 2);
+			case INT:
+			case FLOAT:  return Math.multiplyExact(planePixels, 4);
+			case LONG:
+			case DOUBLE: return Math.multiplyExact(planePixels, 8);
+			default:     return 0;
+			}
+		}
+		catch (ArithmeticException e) {
+			return 0;
+		}
+	}
+
+	/** returns the image whose every plane is backed directly by its own region of the file */
+	private static <T extends NativeType<T>>
+	MappedImg<T> mapImage(final FileChannel channel, final long[] dims, final T type)
+	throws IOException
+	{
+		final long planeBytes = planeBytes(dims, type);
+		final PrimitiveType primitiveType = type.getNativeTypeFactory().getPrimitiveType();
+
+		//every plane is one cell of the image
+		final int[] planeDims = new int[dims.length];
+		for (int d=0; d < dims.length; ++d) planeDims[d] = d < 2 ? (int)dims[d] : 1;
+		final CellGrid grid = new CellGrid(dims, planeDims);
+
+		final int planes = PlanarImg.numberOfSlices(dims);
+		final List<Cell<Object>> cells = new ArrayList<>(planes);
+		for (int p=0; p < planes; ++p)
+		{
+			//both sides are on the same host, the native order is therefore the fastest one
+			final ByteBuffer buffer = channel.map(MapMode.READ_WRITE, p*planeBytes, planeBytes);
+			buffer.order(ByteOrder.nativeOrder());
+
+			final Object access;
+			switch (primitiveType)
+			{
+			case BYTE:   access = new MappedByteAccess(buffer); break;
+			case SHORT:  access = new MappedShortAccess(buffer.asShortBuffer()); break;
+			case INT:    access = new MappedIntAccess(buffer.asIntBuffer()); break;
+			case LONG:   access = new MappedLongAccess(buffer.asLongBuffer()); break;
+			case FLOAT:  access = new MappedFloatAccess(buffer.asFloatBuffer()); break;
+			case DOUBLE: access = new MappedDoubleAccess(buffer.asDoubleBuffer()); break;
+			default:
+				throw new IOException("cannot map pixels of the type "+type.getClass().getSimpleName());
+			}
+
+			final long[] planeMin = new long[dims.length];
+			final int[] cellDims = new int[dims.length];
+			grid.getCellDimensions(p, planeMin, cellDims);
+			cells.add( new Cell<>(cellDims, planeMin, access) );
+		}
+
+		return new MappedImg<>(grid, type, cells);
+	}
+
+	/**
+	 * The image whose planes are mapped from the file. The planes are not arrays
+	 * (and they do not pretend to be, unlike the planes of a PlanarImg), so the image
+	 * is a cell image with one cell per plane. Unlike the LazyCellImg, it can
+	 * create new (heap) images of its kind, and copy itself into one.
+	 */
+	static class MappedImg<T extends NativeType<T>> extends LazyCellImg<T,Object>
+	{
+		MappedImg(final CellGrid grid, final T type, final List<Cell<Object>> planes)
+		{
+			super(grid, type, index -> planes.get((int)index));
+			this.type = type.createVariable();
+		}
+
+		private final T type;
+
+		@Override
+		public ImgFactory<T> factory()
+		{
+			return new PlanarImgFactory<>(type);
+		}
+
+		@Override
+		public Img<T> copy()
+		{
+			final Img<T> copy = factory().create(this);
+			StripedTransfer.copy(this, copy);
+			return copy;
+		}
+	}
+
+
+	/** the planes of the mapped images */
+	static class MappedByteAccess implements ByteAccess
+	{
+		private final ByteBuffer buffer;
+		MappedByteAccess(final ByteBuffer buffer) { this.buffer = buffer; }
+
+		@Override public byte getValue(final int index) { return buffer.get(index); }
+		@Override public void setValue(final int index, final byte value) { buffer.put(index, value); }
+	}
+
+	static class MappedShortAccess implements ShortAccess
+	{
+		private final ShortBuffer buffer;
+		MappedShortAccess(final ShortBuffer buffer) { this.buffer = buffer; }
+
+		@Override public short getValue(final int index) { return buffer.get(index); }
+		@Override public void setValue(final int index, final short value) { buffer.put(index, value); }
+	}
+
+	static class MappedIntAccess implements IntAccess
+	{
+		private final IntBuffer buffer;
+		MappedIntAccess(final IntBuffer buffer) { this.buffer = buffer; }
+
+		@Override public int getValue(final int index) { return buffer.get(index); }
+		@Override public void setValue(final int index, final int value) { buffer.put(index, value); }
+	}
+
+	static class MappedLongAccess implements LongAccess
+	{
+		private final LongBuffer buffer;
+		MappedLongAccess(final LongBuffer buffer) { this.buffer = buffer; }
+
+		@Override public long getValue(final int index) { return buffer.get(index); }
+		@Override public void setValue(final int index, final long value) { buffer.put(index, value); }
+	}
+
+	static class MappedFloatAccess implements FloatAccess
+	{
+		private final FloatBuffer buffer;
+		MappedFloatAccess(final FloatBuffer buffer) { this.buffer = buffer; }
+
+		@Override public float getValue(final int index) { return buffer.get(index); }
+		@Override public void setValue(final int index, final float value) { buffer.put(index, value); }
+	}
+
+	static class MappedDoubleAccess implements DoubleAccess
+	{
+		private final DoubleBuffer buffer;
+		MappedDoubleAccess(final DoubleBuffer buffer) { this.buffer = buffer; }
+
+		@Override public double getValue(final int index) { return buffer.get(index); }
+		@Override public void setValue(final int index, final double value) { buffer.put(index, value); }
+	}
+}
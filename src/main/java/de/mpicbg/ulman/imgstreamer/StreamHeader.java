@@ -0,0 +1,126 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class describes the header message that the ZeroMQOutputStream sends
+ * ahead of the first chunk of every stream. It tells the ZeroMQInputStream how
+ * the chunks come: how large they can be, with which codec (if any), and
+ * whether every chunk is followed with its checksum (and which one).
+ *
+ * The header is a two-frame (multipart) message, the tag frame followed with
+ * the description frame. A stream without the header (e.g. one sent with a plain
+ * ZMQ socket) starts with a single-frame message, so the header is never confused
+ * with the content of a stream, whatever bytes the content starts with.
+ */
+class StreamHeader
+{
+	/** the largest chunk (before it is encoded) the sender sends */
+	final int chunkSize;
+
+	/** the name of the codec of the chunks, or null if they come as they are */
+	final String codecName;
+
+	/** the name of the checksum that follows every chunk, or null if none follows */
+	final String checksumName;
+
+	StreamHeader(final int chunkSize, final String codecName, final String checksumName)
+	{
+		this.chunkSize = chunkSize;
+		this.codecName = codecName;
+		this.checksumName = checksumName;
+	}
+
+	/** sends this header as the first message of the stream */
+	void write(final ZeroMQsession zmq)
+	throws IOException
+	{
+		final byte[] description = getDescription();
+		zmq.writeZMQ(TAG,0,TAG.length, description);
+	}
+
+	/** returns the description frame of this header */
+	byte[] getDescription()
+	{
+		final byte[] codec = nameToBytes(codecName);
+		final byte[] checksum = nameToBytes(checksumName);
+
+		final ByteBuffer description = ByteBuffer.allocate(7 + codec.length + checksum.length);
+		description.put(VERSION).putInt(chunkSize);
+		description.put((byte)codec.length).put(codec);
+		description.put((byte)checksum.length).put(checksum);
+		return description.array();
+	}
+
+	/** Returns the header from its two frames.
+	 *
+	 * @throws IOException If the frames do not make a valid header.
+	 */
+	static
+	StreamHeader parse(final byte[] tag, final byte[] description)
+	throws IOException
+	{
+		if (!Arrays.equals(tag, TAG))
+			throw new IOException("stream header not found, communication is broken");
+
+		try {
+			final ByteBuffer db = ByteBuffer.wrap(description);
+			if (db.get() != VERSION)
+				throw new IOException("stream header is of unknown version");
+
+			final int chunkSize = db.getInt();
+			if (chunkSize < 1)
+				throw new IOException("stream header is corrupted, communication is broken");
+
+			final String codecName = readName(db);
+			final String checksumName = readName(db);
+			if (db.hasRemaining())
+				throw new IOException("stream header is corrupted, communication is broken");
+
+			return new StreamHeader(chunkSize, codecName, checksumName);
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("stream header is truncated, communication is broken");
+		}
+	}
+
+
+	// -------------- internal stuff --------------
+	/** the content of the tag frame */
+	static final byte[] TAG = "ZMQSTRM".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte VERSION = 1;
+
+	/** returns the 'name' as UTF-8 bytes, no bytes if it is null */
+	private static
+	byte[] nameToBytes(final String name)
+	{
+		if (name == null) return new byte[0];
+
+		final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 255)
+			throw new IllegalStateException("name is too long: "+name);
+		return bytes;
+	}
+
+	/** reads the name stored with the nameToBytes() and its length byte,
+	    returns null if it had no bytes */
+	private static
+	String readName(final ByteBuffer db)
+	{
+		final byte[] bytes = new byte[db.get() & 0xFF];
+		db.get(bytes);
+		return bytes.length > 0 ? new String(bytes, StandardCharsets.UTF_8) : null;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class splits an image into several stripes (contiguous ranges along
+ * the last dimension of the image), and transfers every stripe as a standalone
+ * image in its own thread over its own network session. The stripe no. i is
+ * transferred via the port (firstPortNo + i), or via the endpoint suffixed with
+ * "-i" if it has no port (e.g. "ipc:///tmp/images-1"). The receiver assembles the stripes
+ * back into one image, the stripes must be therefore sent and received in the
+ * same number.
+ */
+class StripedTransfer
+{
+	/** sends the image in 'stripes' stripes, the stripe no. i is sent to stripeURL(URL,i) */
+	static <T extends NativeType<T>>
+	void sendImage(final ImgPlus<T> imgP, final String URL,
+	               final int stripes, final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		stripeURL(URL, 0); //(fails early if the URL has no valid port)
+
+		final Img<T> img = imgP.getImg();
+		final int lastDim = img.numDimensions()-1;
+		final long length = img.dimension(lastDim);
+
+		if (stripes < 1 || stripes > length)
+			throw new IOException("cannot split "+length+" slices into "+stripes+" stripes");
+
+		final List<Callable<Object>> tasks = new ArrayList<>(stripes);
+		for (int i=0; i < stripes; ++i)
+		{
+			final int stripe = i;
+			tasks.add( () -> {
+				//the copying of the stripes happens in parallel too
+				final long from = length * stripe / stripes;
+				final long to   = length * (stripe+1) / stripes -1;
+				final Img<T> stripeImg = img.factory().create( stripeDimensions(img, to-from+1) );
+				copy( Views.interval(img, stripeInterval(img, from,to)), stripeImg );
+
+				ImgTransfer.sendImage(new ImgPlus<>(stripeImg, imgP), stripeURL(URL, stripe),
+				                      timeOut, stripe == 0 ? log : null);
+				return null;
+			} );
+		}
+
+		runAll(tasks);
+	}
+
+	/** receives the image in 'stripes' stripes, the stripe no. i is received at stripeURL(endpoint,i) */
+	static
+	ImgPlus<?> receiveImage(final String endpoint, final int stripes,
+	                        final int timeOut, final ProgressCallback log)
+	throws IOException
+	{
+		if (stripes < 1)
+			throw new IOException("cannot receive in "+stripes+" stripes");
+		stripeURL(endpoint, 0);
+
+		final List<Callable<ImgPlus<?>>> tasks = new ArrayList<>(stripes);
+		for (int i=0; i < stripes; ++i)
+		{
+			final int stripe = i;
+			tasks.add( () -> ImgTransfer.receiveImage(stripeURL(endpoint, stripe), timeOut, stripe == 0 ? log : null) );
+		}
+
+		return assemble( runAll(tasks) );
+	}
+
+
+	// -------------- internal stuff --------------
+	/** returns the URL of the stripe no. 'stripe': the port of the "tcp://" URL is
+	    increased by 'stripe', other URLs are suffixed with "-stripe" (but the first one) */
+	private static
+	String stripeURL(final String URL, final int stripe)
+	throws IOException
+	{
+		if (!URL.startsWith("tcp://"))
+			return stripe == 0 ? URL : URL+"-"+stripe;
+
+		final int colonPos = URL.lastIndexOf(':');
+		try {
+			return URL.substring(0,colonPos+1) + (Integer.parseInt(URL.substring(colonPos+1)) + stripe);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("address must be in the form host:port, got "+URL);
+		}
+	}
+
+	/** concatenates the stripes (along their last dimension) into a new image */
+	@SuppressWarnings("unchecked")
+	private static <T extends NativeType<T>>
+	ImgPlus<T> assemble(final List<ImgPlus<?>> stripes)
+	throws IOException
+	{
+		final Img<T> firstStripe = (Img<T>)stripes.get(0).getImg();
+		final int lastDim = firstStripe.numDimensions()-1;
+
+		//check the stripes are compatible, and determine the full length
+		long length = 0;
+		for (ImgPlus<?> stripe : stripes)
+		{
+			final Img<?> stripeImg = stripe.getImg();
+			if (stripeImg.numDimensions() != firstStripe.numDimensions()
+			    || stripeImg.firstElement().getClass() != firstStripe.firstElement().getClass())
+				throw new IOException("received stripes are not of the same image");
+
+			for (int d=0; d < lastDim; ++d)
+				if (stripeImg.dimension(d) != firstStripe.dimension(d))
+					throw new IOException("received stripes are not of the same image");
+
+			length += stripeImg.dimension(lastDim);
+		}
+
+		final Img<T> img = firstStripe.factory().create( stripeDimensions(firstStripe, length) );
+
+		//copy the stripes into the image in parallel
+		final List<Callable<Object>> tasks = new ArrayList<>(stripes.size());
+		long from = 0;
+		for (ImgPlus<?> stripe : stripes)
+		{
+			final Img<T> stripeImg = (Img<T>)stripe.getImg();
+			final long stripeFrom = from;
+			final long stripeTo   = from + stripeImg.dimension(lastDim) -1;
+			tasks.add( () -> {
+				copy( stripeImg, Views.interval(img, stripeInterval(img, stripeFrom,stripeTo)) );
+				return null;
+			} );
+			from = stripeTo+1;
+		}
+		runAll(tasks);
+
+		return new ImgPlus<>(img, stripes.get(0));
+	}
+
+	/** returns dimensions of the 'img' except for the last one that is 'length' */
+	private static
+	long[] stripeDimensions(final Img<?> img, final long length)
+	{
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		dims[dims.length-1] = length;
+		return dims;
+	}
+
+	/** returns the interval of the 'img' whose last dimension is restricted to [from,to] */
+	private static
+	Interval stripeInterval(final Img<?> img, final long from, final long to)
+	{
+		final long[] min = new long[img.numDimensions()];
+		final long[] max = new long[img.numDimensions()];
+		img.min(min);
+		img.max(max);
+		min[min.length-1] = from;
+		max[max.length-1] = to;
+		return new FinalInterval(min, max);
+	}
+
+	/** copies pixels between two equally-sized images */
+	static <T extends NativeType<T>>
+	void copy(final RandomAccessibleInterval<T> src, final RandomAccessibleInterval<T> dst)
+	{
+		final IterableInterval<T> srcII = Views.flatIterable(src);
+		final IterableInterval<T> dstII = Views.flatIterable(dst);
+		final Cursor<T> srcC = srcII.cursor();
+		final Cursor<T> dstC = dstII.cursor();
+		while (srcC.hasNext())
+			dstC.next().set(srcC.next());
+	}
+
+	/** runs every task in its own thread, and waits for all of them */
+	private static <V>
+	List<V> runAll(final List<Callable<V>> tasks)
+	throws IOException
+	{
+		final ExecutorService workers = Executors.newFixedThreadPool(tasks.size());
+		try {
+			final List<Future<V>> futures = new ArrayList<>(tasks.size());
+			for (Callable<V> task : tasks) futures.add( workers.submit(task) );
+
+			final List<V> results = new ArrayList<>(tasks.size());
+			for (Future<V> future : futures) results.add( future.get() );
+			return results;
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IOException("striped transfer failed: " + e.getCause().getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("striped transfer was interrupted");
+		}
+		finally {
+			//stops the other stripes if some has failed
+			workers.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class collects the metrics of the transfers: the ZeroMQsessions count
+ * the messages, the confirmations and the waiting, the ZeroMQ streams count
+ * the copying. Every session records into the metrics of its endpoint, which
+ * pass everything on to the global metrics. All metrics are registered as
+ * the MXBeans with the platform MBean server (see TransferMetricsMXBean).
+ * The metrics of an endpoint are kept (and registered) only while some
+ * session with the endpoint is open.
+ *
+ * The recording does not allocate (and does not lock), the counters are
+ * LongAdders and the round-trip times are counted into fixed buckets,
+ * so the metrics are always collected.
+ */
+public class TransferMetrics implements TransferMetricsMXBean
+{
+	/** returns the metrics of all transfers together */
+	public static
+	TransferMetrics getGlobal()
+	{
+		return global;
+	}
+
+	/** returns the metrics of the sessions with the given endpoint, which is
+	    e.g. "tcp://*:3456" or "tcp://localhost:3456", or null if no session
+	    with the endpoint is open (the metrics of an endpoint are kept only
+	    while some session with it is open) */
+	public static
+	TransferMetrics getForEndpoint(final String endpoint)
+	{
+		return endpoints.get(endpoint);
+	}
+
+
+	// -------------- MXBean stuff --------------
+	@Override
+	public String getEndpoint()
+	{ return endpoint; }
+
+	@Override
+	public long getBytesSent()
+	{ return bytesSent.sum(); }
+
+	@Override
+	public long getChunksSent()
+	{ return chunksSent.sum(); }
+
+	@Override
+	public long getBytesReceived()
+	{ return bytesReceived.sum(); }
+
+	@Override
+	public long getChunksReceived()
+	{ return chunksReceived.sum(); }
+
+	@Override
+	public long getTimeouts()
+	{ return timeouts.sum(); }
+
+	@Override
+	public long getActiveSessions()
+	{ return activeSessions.sum(); }
+
+	@Override
+	public long getWaitingTimeMillis()
+	{ return waitingNanos.sum() / 1000000; }
+
+	@Override
+	public long getCopyingTimeMillis()
+	{ return copyingNanos.sum() / 1000000; }
+
+	@Override
+	public long getAckRoundTrips()
+	{
+		long sum = 0;
+		for (LongAdder b : ackBuckets) sum += b.sum();
+		return sum;
+	}
+
+	@Override
+	public long[] getAckRoundTripBucketBounds()
+	{
+		final long[] bounds = new long[ackBuckets.length];
+		for (int i=0; i < bounds.length-1; ++i) bounds[i] = firstBucketBound << i;
+		bounds[bounds.length-1] = Long.MAX_VALUE;
+		return bounds;
+	}
+
+	@Override
+	public long[] getAckRoundTripHistogram()
+	{
+		final long[] counts = new long[ackBuckets.length];
+		for (int i=0; i < counts.length; ++i) counts[i] = ackBuckets[i].sum();
+		return counts;
+	}
+
+	@Override
+	public void reset()
+	{
+		bytesSent.reset();
+		chunksSent.reset();
+		bytesReceived.reset();
+		chunksReceived.reset();
+		timeouts.reset();
+		waitingNanos.reset();
+		copyingNanos.reset();
+		for (LongAdder b : ackBuckets) b.reset();
+	}
+
+
+	// -------------- recording stuff --------------
+	void addSent(final long bytes)
+	{
+		bytesSent.add(bytes);
+		chunksSent.increment();
+		if (parent != null) parent.addSent(bytes);
+	}
+
+	void addReceived(final long bytes)
+	{
+		bytesReceived.add(bytes);
+		chunksReceived.increment();
+		if (parent != null) parent.addReceived(bytes);
+	}
+
+	void addTimeout()
+	{
+		timeouts.increment();
+		if (parent != null) parent.addTimeout();
+	}
+
+	void addSession(final int delta)
+	{
+		activeSessions.add(delta);
+		if (parent != null) parent.addSession(delta);
+	}
+
+	/** returns the metrics of the given endpoint, into which the just opened
+	    session is counted; the metrics are created (and registered) if needed */
+	static synchronized
+	TransferMetrics sessionOpened(final String endpoint)
+	{
+		TransferMetrics metrics = endpoints.get(endpoint);
+		if (metrics == null)
+		{
+			metrics = register(new TransferMetrics(endpoint, global));
+			endpoints.put(endpoint, metrics);
+		}
+		++metrics.openSessions;
+		metrics.addSession(+1);
+		return metrics;
+	}
+
+	/** counts the closed session out of these metrics; once the last session
+	    of the endpoint is closed, the metrics are forgotten (and unregistered),
+	    so that the endpoints that come and go (e.g. ephemeral ports) do not pile up */
+	void sessionClosed()
+	{
+		addSession(-1);
+		synchronized (TransferMetrics.class)
+		{
+			if (--openSessions == 0 && endpoints.remove(endpoint, this)) unregister(this);
+		}
+	}
+
+	void addWaiting(final long nanos)
+	{
+		waitingNanos.add(nanos);
+		if (parent != null) parent.addWaiting(nanos);
+	}
+
+	void addCopying(final long nanos)
+	{
+		copyingNanos.add(nanos);
+		if (parent != null) parent.addCopying(nanos);
+	}
+
+	void addAckRoundTrip(final long nanos)
+	{
+		//bucket 'i' counts the times from [firstBucketBound << (i-1), firstBucketBound << i) microseconds
+		final long micros = nanos / 1000;
+		final int i = 64 - Long.numberOfLeadingZeros(micros / firstBucketBound);
+		ackBuckets[Math.min(i, ackBuckets.length-1)].increment();
+		if (parent != null) parent.addAckRoundTrip(nanos);
+	}
+
+
+	// -------------- internal stuff --------------
+	private final String endpoint;
+	private final TransferMetrics parent;
+
+	/** how many sessions with the endpoint are open, guarded by the TransferMetrics.class */
+	private int openSessions = 0;
+
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder chunksSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder chunksReceived = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder activeSessions = new LongAdder();
+	private final LongAdder waitingNanos = new LongAdder();
+	private final LongAdder copyingNanos = new LongAdder();
+
+	/** the round-trip time histogram, from below 16 us up to 16 s and above */
+	private final LongAdder[] ackBuckets = new LongAdder[22];
+	private static final long firstBucketBound = 16;
+
+	private
+	TransferMetrics(final String endpoint, final TransferMetrics parent)
+	{
+		this.endpoint = endpoint;
+		this.parent = parent;
+		for (int i=0; i < ackBuckets.length; ++i) ackBuckets[i] = new LongAdder();
+	}
+
+	private static final TransferMetrics global = register(new TransferMetrics("global", null));
+	/** the metrics of the endpoints with open sessions */
+	private static final Map<String,TransferMetrics> endpoints = new ConcurrentHashMap<>();
+
+	/** registers the metrics with the platform MBean server, the metrics are collected
+	    even if the registration fails (e.g. when the same name is registered already) */
+	private static
+	TransferMetrics register(final TransferMetrics metrics)
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName(metrics));
+		}
+		catch (JMException | SecurityException e) {
+			//the metrics are just not visible over the JMX
+		}
+		return metrics;
+	}
+
+	private static
+	void unregister(final TransferMetrics metrics)
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(metrics));
+		}
+		catch (JMException | SecurityException e) {
+			//the metrics have not been registered
+		}
+	}
+
+	private static
+	ObjectName objectName(final TransferMetrics metrics)
+	throws JMException
+	{
+		return new ObjectName(metrics.parent == null
+			? "de.mpicbg.ulman.imgstreamer:type=TransferMetrics,name=global"
+			: "de.mpicbg.ulman.imgstreamer:type=TransferMetrics,name=endpoint,endpoint="
+			  + ObjectName.quote(metrics.endpoint));
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+/**
+ * The transfer metrics as they are seen over the JMX, e.g. in the JConsole
+ * under the "de.mpicbg.ulman.imgstreamer" domain. There is one bean for
+ * all transfers together, and one bean for every endpoint (the bound port
+ * or the connected URL) of the ZeroMQsessions.
+ */
+public interface TransferMetricsMXBean
+{
+	/** returns the endpoint of the sessions, or "global" for all sessions */
+	String getEndpoint();
+
+	/** returns the number of bytes (and messages) sent so far */
+	long getBytesSent();
+	long getChunksSent();
+
+	/** returns the number of bytes (and messages) received so far */
+	long getBytesReceived();
+	long getChunksReceived();
+
+	/** returns the number of waitings that have run out of time, that is,
+	    the missing confirmations, the messages not received nor sent in time */
+	long getTimeouts();
+
+	/** returns the number of sessions that are open right now */
+	long getActiveSessions();
+
+	/** returns the time (in milliseconds) spent waiting for the other side,
+	    that is, for the incoming messages and the confirmations */
+	long getWaitingTimeMillis();
+
+	/** returns the time (in milliseconds) spent copying the data between the
+	    caller's arrays and the messages, it is measured per message (from when
+	    the message is started to be filled or read until it is sent or done
+	    with), so it includes also the caller's own work between its writes
+	    or reads, the large arrays that are sent directly are not counted */
+	long getCopyingTimeMillis();
+
+	/** returns the number of confirmations that have arrived so far */
+	long getAckRoundTrips();
+
+	/** returns the upper bounds (in microseconds, exclusive) of the buckets of the
+	    round-trip time histogram, the last bucket has no upper bound (Long.MAX_VALUE) */
+	long[] getAckRoundTripBucketBounds();
+
+	/** returns how many round trips (from sending a message to its confirmation)
+	    have fallen into the buckets, see getAckRoundTripBucketBounds() */
+	long[] getAckRoundTripHistogram();
+
+	/** sets all counters, except for the active sessions, to zero */
+	void reset();
+}
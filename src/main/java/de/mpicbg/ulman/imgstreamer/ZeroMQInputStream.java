@@ -9,6 +9,17 @@ package de.mpicbg.ulman.imgstreamer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
 
 public class ZeroMQInputStream extends InputStream
 {
@@ -16,6 +27,8 @@ public class ZeroMQInputStream extends InputStream
 	private byte[] buf = new byte[0]; //initially an empty buffer
 	private int pos = 0;
 
+	private int end = 0;
+
 	/** Reads one (1) byte from the underlying buffer, which is populated
 	 *  from the underlying ZMQ communication.
 	 *
@@ -26,29 +39,449 @@ public class ZeroMQInputStream extends InputStream
 	public int read()
 	throws IOException
 	{
-		if (pos == buf.length)
-		{
-			buf = zmq.readZMQ();
-			pos = 0;
-		}
+		if (pos == end) readNextMessage();
 
-		if (pos < buf.length) return buf[pos++] & 0xFF;
+		if (pos < end) return buf[pos++] & 0xFF;
 		else return -1;
 	}
 
+	/** Reads up to 'len' bytes from the underlying buffer into the 'b',
+	 *  the underlying buffer is populated from the underlying ZMQ communication.
+	 *  At most the remainder of the current ZMQ message is read.
+	 *
+	 * @return The number of bytes read, or -1 if none available.
+	 * @throws IOException If ZMQ.recv() will have some trouble.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len)
+	throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0) return 0;
+
+		if (pos == end) readNextMessage();
+		if (pos == end) return -1;
+
+		len = Math.min(len, end - pos);
+		System.arraycopy(buf,pos, b,off, len);
+		pos += len;
+		return len;
+	}
+
+	/** Skips over up to 'n' bytes, possibly over several ZMQ messages.
+	 *
+	 * @return The number of bytes skipped, which is less than 'n'
+	 * only if the end of the stream has been reached.
+	 * @throws IOException If ZMQ.recv() will have some trouble.
+	 */
+	@Override
+	public long skip(long n)
+	throws IOException
+	{
+		long skipped = 0;
+		while (skipped < n)
+		{
+			if (pos == end) readNextMessage();
+			if (pos == end) break;
+
+			final int len = (int)Math.min(n - skipped, end - pos);
+			pos += len;
+			skipped += len;
+		}
+		return skipped;
+	}
+
 	@Override
 	public int available()
 	{
-		return buf.length - pos;
+		return end - pos;
+	}
+
+	/** Returns the not-yet-read remainder of the current ZMQ message (or of
+	 *  the next ZMQ message if the current one has been read completely)
+	 *  without copying it, and considers it read.
+	 *
+	 * The returned buffer is a read-only view on the received data,
+	 * and it has no bytes remaining if the end of the stream has been reached.
+	 *
+	 * @throws IOException If ZMQ.recv() will have some trouble.
+	 */
+	public ByteBuffer readChunk()
+	throws IOException
+	{
+		if (pos == end) readNextMessage();
+
+		final ByteBuffer chunk = ByteBuffer.wrap(buf, pos, end - pos).slice().asReadOnlyBuffer();
+		pos = end;
+		return chunk;
+	}
+
+	/** Returns a channel view of this stream, reading from the channel
+	 *  reads from this stream (and vice versa). Closing the channel
+	 *  closes this stream. */
+	public ReadableByteChannel getChannel()
+	{
+		return channel;
+	}
+
+	private final ReadableByteChannel channel = new ReadableByteChannel()
+	{
+		private boolean isOpen = true;
+
+		@Override
+		public int read(ByteBuffer dst)
+		throws IOException
+		{
+			if (!isOpen) throw new ClosedChannelException();
+			if (!dst.hasRemaining()) return 0;
+
+			if (pos == end) readNextMessage();
+			if (pos == end) return -1;
+
+			final int len = Math.min(dst.remaining(), end - pos);
+			dst.put(buf,pos,len);
+			pos += len;
+			return len;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return isOpen;
+		}
+
+		@Override
+		public void close()
+		{
+			isOpen = false;
+			ZeroMQInputStream.this.close();
+		}
+	};
+
+	/** when the current message has become available, the copying out of it
+	    is timed per message (and not per read, which could be a few bytes only),
+	    that is, from this moment until the next message is asked for */
+	private long drainStartTime = 0;
+
+	private
+	void readNextMessage()
+	throws IOException
+	{
+		if (end > 0) zmq.getMetrics().addCopying(System.nanoTime() - drainStartTime);
+
+		buf = nextMessage();
+		pos = 0;
+
+		if (isFirstMessage)
+		{
+			//the ZeroMQOutputStream starts with its header, which is the only multipart
+			//message a stream can start with
+			isFirstMessage = false;
+			if (isMoreFrames)
+			{
+				final StreamHeader header = StreamHeader.parse(buf, nextMessage());
+				if (isMoreFrames)
+					throw new IOException("stream header is corrupted, communication is broken");
+
+				maxChunkSize = header.chunkSize;
+				if (header.codecName != null) codec = ChunkCodecs.get(header.codecName);
+				if (header.checksumName != null)
+				{
+					checksum = ChunkChecksums.create(header.checksumName);
+					digest = ChunkChecksums.create(header.checksumName);
+				}
+				buf = nextMessage();
+			}
+		}
+
+		end = buf.length;
+		if (checksum != null) verifyChecksum();
+
+		if (codec != null && end > 0)
+		{
+			buf = decode(buf, end);
+			end = buf.length;
+		}
+
+		drainStartTime = System.nanoTime();
+	}
+
+	// -------------- checksum stuff --------------
+	/** the checksum of every received message, or null if the messages come without them */
+	private Checksum checksum = null;
+
+	/** the checksum of the checksums of all messages received so far */
+	private Checksum digest = null;
+
+	private final byte[] digestScratch = new byte[8];
+
+	/** verifies the content of the message against the checksum
+	    that follows it in the trailing frame of the message */
+	private
+	void verifyChecksum()
+	throws IOException
+	{
+		//(the end of the stream is always explicit when the checksums are used)
+		if (end == 0)
+			throw new IOException("no data has arrived in time, the stream is truncated");
+
+		final byte[] trailer = nextMessage();
+		if (trailer.length != ChunkChecksums.CHECKSUM_SIZE)
+			throw new IOException("chunk is not followed with its checksum, communication is broken");
+
+		final int crc = ChunkChecksums.compute(checksum, buf,0,end);
+		if (crc != ChunkChecksums.getInt(trailer,0))
+			throw new IOException("chunk of "+end+" bytes is corrupted (checksum mismatch)");
+
+		ChunkChecksums.addToDigest(digest, end, crc, digestScratch);
+	}
+
+	/** returns true if every message is verified against its checksum
+	    (which is decided by the sender, see ChunkChecksums.setEnabled()),
+	    this is known only after the first message has arrived */
+	public
+	boolean isVerifyingChecksums()
+	{
+		return checksum != null;
+	}
+
+	/** returns the digest of the whole stream received so far, see
+	    the ZeroMQOutputStream.getDigest(); returns 0 if no checksums come */
+	public
+	int getDigest()
+	{
+		return digest != null ? (int)digest.getValue() : 0;
+	}
+
+	/** the codec of the received chunks, or null if the chunks come as they are */
+	private ChunkCodec codec = null;
+	private boolean isFirstMessage = true;
+
+	/** the largest chunk the sender sends (as announced in the header of the stream) */
+	private int maxChunkSize = 0;
+
+	/** returns the raw chunk from the first 'length' bytes of the message, with
+	    the length of the chunk (4 bytes) followed by the encoded content of the chunk */
+	private
+	byte[] decode(final byte[] msg, final int length)
+	throws IOException
+	{
+		if (length < 4)
+			throw new IOException("encoded chunk is too short, communication is broken");
+
+		//(the length is not trusted beyond what the sender may send)
+		final int rawLength = ByteBuffer.wrap(msg).getInt();
+		if (rawLength < 0 || rawLength > maxChunkSize)
+			throw new IOException("encoded chunk is corrupted, communication is broken");
+
+		final byte[] raw = new byte[rawLength];
+		codec.decode(msg,4,length-4, raw);
+		return raw;
 	}
 
 	/** request to close the stream */
 	@Override
 	public void close()
 	{
+		stopPrefetching();
 		zmq.close();
 	}
 
+	// -------------- prefetching stuff --------------
+	/** Starts receiving (and confirming) the messages in a background thread,
+	 *  so that up to 'chunks' messages are already here when this stream needs
+	 *  them, and the sender does not wait while this stream is being read.
+	 *
+	 * While the prefetching is on, the session must not be used otherwise (e.g.
+	 * for sending), and it must be stopped with stopPrefetching() before the session
+	 * is used otherwise or given back to the pool. The prefetching stops by itself
+	 * when no message arrives within the timeout of the session.
+	 */
+	public
+	void startPrefetching(final int chunks)
+	{
+		if (chunks < 1)
+			throw new IllegalArgumentException("number of prefetched chunks must be positive, got "+chunks);
+		if (prefetcher != null)
+			throw new IllegalStateException("the stream is prefetching already");
+
+		freeSlots = new Semaphore(chunks);
+		keepPrefetching = true;
+		prefetcher = new Thread(this::prefetch, "ZeroMQInputStream prefetcher");
+		prefetcher.setDaemon(true);
+		prefetcher.start();
+	}
+
+	/** Stops the prefetching, and waits for the background thread to finish.
+	 *  The messages that have been prefetched but not read yet are read from
+	 *  this stream before any other, or they are read from the session itself
+	 *  (e.g. with another stream) if not read from this stream. */
+	public
+	void stopPrefetching()
+	{
+		if (prefetcher == null) return;
+
+		//the session must not be used until the thread has ended, the waiting
+		//is therefore not given up when interrupted (the interrupt is kept for later)
+		keepPrefetching = false;
+		boolean isInterrupted = false;
+		while (prefetcher.isAlive())
+		{
+			try {
+				prefetcher.join();
+			}
+			catch (InterruptedException e) {
+				isInterrupted = true;
+			}
+		}
+		if (isInterrupted) Thread.currentThread().interrupt();
+
+		final List<byte[][]> unread = new ArrayList<>(prefetched.size()+1);
+		if (currentMsg != null)
+			unread.add( Arrays.copyOfRange(currentMsg, currentFrame, currentMsg.length) );
+		for (byte[][] msg : prefetched)
+			if (msg != endOfStream) unread.add(msg);
+		prefetched.clear();
+		zmq.unreadZMQ(unread);
+		currentMsg = null;
+
+		prefetcher = null;
+		prefetchFailure = null;
+	}
+
+	/** returns true if the messages are being received in the background */
+	public
+	boolean isPrefetching()
+	{
+		return prefetcher != null && prefetcher.isAlive();
+	}
+
+	private Thread prefetcher = null;
+	private volatile boolean keepPrefetching = false;
+	private volatile IOException prefetchFailure = null;
+
+	/** the received messages (each with all its frames), and how many more of them may be received */
+	private final BlockingQueue<byte[][]> prefetched = new LinkedBlockingQueue<>();
+	private Semaphore freeSlots;
+
+	/** the prefetched message whose frames are being read, and its next frame */
+	private byte[][] currentMsg = null;
+	private int currentFrame = 0;
+
+	/** the prefetched "message" that tells the reader that nothing has arrived in time */
+	private static final byte[][] endOfStream = { new byte[0] };
+
+	/** how often (in milliseconds) the prefetching checks if it is to stop */
+	private static final long prefetchCheckPeriod = 10;
+
+	/** the body of the background thread */
+	private
+	void prefetch()
+	{
+		try {
+			while (keepPrefetching)
+			{
+				if (!freeSlots.tryAcquire(prefetchCheckPeriod, TimeUnit.MILLISECONDS)) continue;
+
+				//the timeout counts only the waiting for the message, not for the free slot
+				final long waitStart = System.currentTimeMillis();
+
+				byte[][] msg = null;
+				while (msg == null && keepPrefetching)
+				{
+					msg = readWholeMessage(prefetchCheckPeriod);
+					if (msg == null && System.currentTimeMillis()-waitStart > 1000L*zmq.getWaitTimeOut())
+					{
+						//the timeout, which the reader learns as the end of the stream
+						zmq.getMetrics().addTimeout();
+						prefetched.add(endOfStream);
+						return;
+					}
+				}
+				if (msg == null)
+				{
+					freeSlots.release();
+					return;
+				}
+
+				prefetched.add(msg);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			prefetchFailure = e instanceof IOException ? (IOException)e : new IOException(e);
+		}
+		catch (InterruptedException e) {
+			prefetchFailure = new IOException("prefetching was interrupted");
+		}
+	}
+
+	/** reads all frames of the next message from the session, or returns
+	    null if no message has arrived within the 'waitTime' milliseconds */
+	private
+	byte[][] readWholeMessage(final long waitTime)
+	throws IOException
+	{
+		final byte[] frame = zmq.readZMQ(waitTime);
+		if (frame == null) return null;
+		if (!zmq.hasMoreFrames()) return new byte[][] { frame };
+
+		//(the rest of the message has arrived together with its first frame)
+		final List<byte[]> frames = new ArrayList<>(2);
+		frames.add(frame);
+		do frames.add( zmq.readZMQ() ); while (zmq.hasMoreFrames());
+		return frames.toArray(new byte[frames.size()][]);
+	}
+
+	/** is the frame last returned by the nextMessage() followed with more frames? */
+	private boolean isMoreFrames = false;
+
+	/** returns the next message (or the next frame of a multipart message),
+	    either the prefetched one or from the session */
+	private
+	byte[] nextMessage()
+	throws IOException
+	{
+		while (prefetcher != null && currentMsg == null)
+		{
+			final boolean isFinished = !prefetcher.isAlive();
+			final byte[][] msg;
+			try {
+				msg = prefetched.poll(isFinished ? 0 : prefetchCheckPeriod, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("reading was interrupted");
+			}
+
+			if (msg != null)
+			{
+				freeSlots.release();
+				currentMsg = msg;
+				currentFrame = 0;
+			}
+			else if (isFinished)
+			{
+				//everything prefetched has been read, the session is read directly from now on
+				final IOException failure = prefetchFailure;
+				stopPrefetching();
+				if (failure != null) throw failure;
+			}
+		}
+
+		if (currentMsg != null)
+		{
+			final byte[] frame = currentMsg[currentFrame++];
+			isMoreFrames = currentFrame < currentMsg.length;
+			if (!isMoreFrames) currentMsg = null;
+			return frame;
+		}
+
+		final byte[] frame = zmq.readZMQ();
+		isMoreFrames = zmq.hasMoreFrames();
+		return frame;
+	}
+
 	// -------------- ZMQ stuff --------------
 	private final ZeroMQsession zmq;
 
@@ -83,4 +516,12 @@ public class ZeroMQInputStream extends InputStream
 	{
 		zmq = new ZeroMQsession(URL,timeOut);
 	}
+
+	/** inits this InputStream on top of an already established session,
+	    closing this stream closes also the session */
+	public
+	ZeroMQInputStream(final ZeroMQsession session)
+	{
+		zmq = session;
+	}
 }
@@ -9,12 +9,35 @@ package de.mpicbg.ulman.imgstreamer;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
 
 public class ZeroMQOutputStream extends OutputStream
 {
 	// -------------- buffering stuff --------------
-	private final byte[] buf = new byte[1<<25]; //= 32 MB
-	private int pos = 0;
+	/** pool of buffers, one for every message that can be "in flight",
+	    the buffers are leased from the bufPool only when needed */
+	private ByteBuffer[] bufs;
+	private int bufIdx = 0;
+
+	/** the current buffer, its position is the number of bytes written into it */
+	private ByteBuffer buf = noBuffer;
+
+	/** size of every full buffer (and thus of every ZMQ message) */
+	private int chunkSize = defaultChunkSize;
+	public static final int defaultChunkSize = 1<<25; //= 32 MB
+
+	/** size of the first buffer, the buffer grows up to the chunkSize
+	    before its content is sent away (so small transfers need small buffers) */
+	private static final int initialBufSize = 1<<16; //= 64 kB
+
+	private ZeroMQbufferPool bufPool = ZeroMQbufferPool.getDefault();
+
+	private static final ByteBuffer noBuffer = ByteBuffer.allocate(0);
 
 	/** Writes one (1) byte into the underlying buffer, which is possibly
 	 *  flushed away into the underlying ZMQ communication.
@@ -25,20 +48,321 @@ public class ZeroMQOutputStream extends OutputStream
 	public void write(int b)
 	throws IOException
 	{
-		if (pos == buf.length)
+		if (!buf.hasRemaining()) makeRoomInBuffer();
+
+		buf.put((byte)b);
+	}
+
+	/** Writes 'len' bytes from the 'b' into the underlying buffer, which is
+	 *  possibly flushed away into the underlying ZMQ communication.
+	 *
+	 * If 'len' is at least the chunk size, the content of the 'b' is sent
+	 * directly (in messages of the chunk size) without copying it into the
+	 * underlying buffer. The caller may modify the 'b' right afterwards as
+	 * the ZMQ takes its own copy of every sent message, so no confirmations
+	 * are waited for. This does not apply when the chunks are encoded with a codec.
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len)
+	throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+
+		if (len >= chunkSize && codec == null)
 		{
-			zmq.writeZMQ(buf,pos);
-			pos = 0;
+			//send away the current buffer first
+			if (buf.position() > 0) sendBuffer();
+			sendHeaders();
+
+			//send whole chunk-sized portions right from the 'b'
+			while (len >= chunkSize)
+			{
+				if (checksum != null)
+					zmq.writeZMQ(b,off,chunkSize, trailerOf(chunkSize,
+						ChunkChecksums.compute(checksum, b,off,chunkSize)));
+				else
+					zmq.writeZMQ(b,off,chunkSize);
+				off += chunkSize; len -= chunkSize;
+			}
 		}
 
-		buf[pos++] = (byte)b;
+		//copy the (rest of the) 'b' into the buffers
+		while (len > 0)
+		{
+			if (!buf.hasRemaining()) makeRoomInBuffer();
+
+			final int l = Math.min(len, buf.remaining());
+			buf.put(b,off,l);
+			off += l; len -= l;
+		}
 	}
 
+	/** Sends away what has been written so far, and waits
+	 *  until all of it is confirmed by the receiver. The buffers
+	 *  are given back to the buffer pool afterwards.
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble, or if
+	 * no confirmation arrives in time.
+	 */
 	@Override
 	public void flush()
 	throws IOException
 	{
-		zmq.writeZMQ(buf,pos);
+		if (buf.position() > 0) sendBuffer();
+		while (!encodedChunks.isEmpty()) sendEncodedChunk();
+		zmq.waitForAllConfirmations();
+
+		//all buffers are confirmed now, and thus not needed
+		for (int i=0; i < bufs.length; ++i)
+			if (bufs[i] != null)
+			{
+				bufPool.release(bufs[i]);
+				bufs[i] = null;
+			}
+		buf = noBuffer;
+	}
+
+	/** the current buffer is full: it is either replaced with a larger one
+	    (if it is smaller than the chunk size), or its content is sent away */
+	private
+	void makeRoomInBuffer()
+	throws IOException
+	{
+		if (buf.capacity() < chunkSize)
+		{
+			final int newSize = buf.capacity() == 0 ? Math.min(initialBufSize,chunkSize)
+			                                        : (int)Math.min(2L*buf.capacity(),chunkSize);
+			final ByteBuffer newBuf = bufPool.lease(newSize);
+			if (buf == noBuffer) fillStartTime = System.nanoTime();
+
+			buf.flip();
+			newBuf.put(buf);
+			if (buf != noBuffer) bufPool.release(buf);
+
+			buf = newBuf;
+			bufs[bufIdx] = newBuf;
+		}
+		else sendBuffer();
+	}
+
+	/** sends away the current buffer, and switches to the next one */
+	private
+	void sendBuffer()
+	throws IOException
+	{
+		metrics.addCopying(System.nanoTime() - fillStartTime);
+		sendHeaders();
+
+		if (codec != null)
+		{
+			encodeBuffer();
+			return;
+		}
+
+		//the message must span the whole (sliced) buffer,
+		//the partially filled buffers are not sent correctly otherwise
+		final ByteBuffer msg = buf.duplicate();
+		msg.flip();
+
+		if (checksum != null)
+		{
+			if (checksumScratch == null && !buf.hasArray()) checksumScratch = new byte[1<<16];
+			final byte[] trailer = trailerOf(msg.remaining(),
+				ChunkChecksums.compute(checksum, msg, checksumScratch));
+
+			if (buf.hasArray())
+				zmq.writeZMQ(buf.array(),buf.arrayOffset(),buf.position(), trailer);
+			else
+				zmq.writeZMQ(msg.slice(), trailer);
+		}
+		else if (buf.hasArray())
+			zmq.writeZMQ(buf.array(),buf.arrayOffset(),buf.position());
+		else
+			zmq.writeZMQ(msg.slice());
+
+		switchToNextBuffer();
+	}
+
+	/** the buffers are used in the round-robin fashion, the session
+	    guarantees that the next buffer is already confirmed (and thus
+	    safe to be overwritten) once the writeZMQ() has returned */
+	private
+	void switchToNextBuffer()
+	{
+		bufIdx = (bufIdx+1) % bufs.length;
+		if (bufs[bufIdx] == null) bufs[bufIdx] = bufPool.lease(chunkSize);
+
+		buf = bufs[bufIdx];
+		buf.clear();
+		fillStartTime = System.nanoTime();
+	}
+
+	private
+	void initBuffers()
+	{
+		metrics = zmq.getMetrics();
+
+		if (ChunkChecksums.isEnabled())
+		{
+			try {
+				checksumName = ChunkChecksums.getAlgorithm();
+				checksum = ChunkChecksums.create(checksumName);
+				digest = ChunkChecksums.create(checksumName);
+			}
+			catch (IOException e) {
+				//cannot happen, the algorithm is offered by the ChunkChecksums itself
+				throw new IllegalStateException(e);
+			}
+		}
+
+		//with a codec, there must be enough buffers to keep all encoding threads busy
+		bufs = new ByteBuffer[codec == null ? zmq.getWindowSize()
+		                                    : Math.max(zmq.getWindowSize(), ChunkCodecs.getEncodingThreads())];
+	}
+
+
+	// -------------- encoding stuff --------------
+	/** the codec of the sent chunks, or null if the chunks are sent as they are */
+	private ChunkCodec codec = null;
+
+	/** chunks that are being encoded, in the order in which they are to be sent */
+	private final ArrayDeque<Future<byte[]>> encodedChunks = new ArrayDeque<>();
+
+	private boolean isHeaderSent = false;
+
+	/** sends the header of the stream, which announces the chunk size, the codec
+	    and the checksums (only once, before the first chunk) */
+	private
+	void sendHeaders()
+	throws IOException
+	{
+		if (isHeaderSent) return;
+		isHeaderSent = true;
+
+		new StreamHeader(chunkSize, codec != null ? codec.getName() : null,
+		                 checksum != null ? checksumName : null).write(zmq);
+	}
+
+	/** submits the current buffer for encoding, and switches to the next one;
+	    the oldest encoded chunks are sent away so that the next buffer
+	    is not being encoded anymore (and thus safe to be overwritten) */
+	private
+	void encodeBuffer()
+	throws IOException
+	{
+		final ByteBuffer raw = buf.duplicate();
+		raw.flip();
+
+		encodedChunks.add( ChunkCodecs.getEncodingPool().submit( () -> encode(raw) ) );
+		while (encodedChunks.size() >= bufs.length) sendEncodedChunk();
+
+		switchToNextBuffer();
+	}
+
+	/** returns the message with the length of the 'raw' chunk (4 bytes)
+	    followed by the encoded content of the 'raw' chunk (and its checksum) */
+	private
+	byte[] encode(final ByteBuffer raw)
+	throws IOException
+	{
+		final byte[] src;
+		final int srcOffset;
+		final int srcLength = raw.remaining();
+		if (raw.hasArray())
+		{
+			src = raw.array();
+			srcOffset = raw.arrayOffset() + raw.position();
+		}
+		else
+		{
+			src = new byte[srcLength];
+			raw.get(src);
+			srcOffset = 0;
+		}
+
+		final int trailerSize = checksum != null ? ChunkChecksums.CHECKSUM_SIZE : 0;
+		final byte[] msg = new byte[4 + codec.maxEncodedLength(srcLength) + trailerSize];
+		ByteBuffer.wrap(msg).putInt(srcLength);
+		final int len = codec.encode(src,srcOffset,srcLength, msg,4) + 4;
+		final byte[] cmsg = len+trailerSize == msg.length ? msg : Arrays.copyOf(msg, len+trailerSize);
+
+		//the checksum (computed in parallel too) is parked after the encoded content,
+		//and it is sent away from there as the trailer of the message
+		if (checksum != null)
+			ChunkChecksums.putInt(cmsg,len, ChunkChecksums.compute(ChunkChecksums.create(checksumName), cmsg,0,len));
+		return cmsg;
+	}
+
+	/** waits for the oldest chunk to be encoded, and sends it away */
+	private
+	void sendEncodedChunk()
+	throws IOException
+	{
+		try {
+			final byte[] msg = encodedChunks.poll().get();
+			if (checksum != null)
+			{
+				final int len = msg.length - ChunkChecksums.CHECKSUM_SIZE;
+				zmq.writeZMQ(msg,0,len, trailerOf(len, ChunkChecksums.getInt(msg,len)));
+			}
+			else
+				zmq.writeZMQ(msg,0,msg.length);
+		}
+		catch (ExecutionException e) {
+			throw new IOException("encoding of a chunk failed: " + e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("encoding of a chunk was interrupted");
+		}
+	}
+
+
+	// -------------- checksum stuff --------------
+	/** the checksum of every sent message, or null if the messages are sent without them */
+	private Checksum checksum = null;
+	private String checksumName;
+
+	/** the checksum of the checksums of all messages sent so far */
+	private Checksum digest = null;
+
+	/** the last frame of every message, it carries the checksum of the message
+	    (ZMQ copies it when sending, so the same array serves all messages) */
+	private final byte[] trailer = new byte[ChunkChecksums.CHECKSUM_SIZE];
+
+	/** the scratch arrays for the checksums, the latter is allocated only
+	    when the checksums are computed over the direct buffers */
+	private final byte[] digestScratch = new byte[8];
+	private byte[] checksumScratch = null;
+
+	/** adds the message of 'length' bytes with the checksum 'crc'
+	    to the digest, and returns its trailer */
+	private
+	byte[] trailerOf(final int length, final int crc)
+	{
+		ChunkChecksums.addToDigest(digest, length, crc, digestScratch);
+		ChunkChecksums.putInt(trailer,0, crc);
+		return trailer;
+	}
+
+	/** returns true if every message is followed with its checksum,
+	    see ChunkChecksums.setEnabled() */
+	public
+	boolean isSendingChecksums()
+	{
+		return checksum != null;
+	}
+
+	/** returns the digest of the whole stream sent so far (that is, of the checksums
+	    of all its messages), the ZeroMQInputStream.getDigest() should return the same
+	    after the same messages have arrived; returns 0 if no checksums are sent */
+	public
+	int getDigest()
+	{
+		return digest != null ? (int)digest.getValue() : 0;
 	}
 
 	/** request to close the stream */
@@ -51,12 +375,22 @@ public class ZeroMQOutputStream extends OutputStream
 	// -------------- ZMQ stuff --------------
 	private final ZeroMQsession zmq;
 
+	/** the metrics of the session, the copying into the buffers is recorded there,
+	    per buffer (and not per write, which could be a few bytes only), that is,
+	    from the moment the buffer has become the current one until it is sent */
+	private TransferMetrics metrics;
+	private long fillStartTime = 0;
+
+	/** how many buffers may be "in flight" unless specified otherwise */
+	public static final int defaultWindowSize = 4;
+
 	/** inits this OutputStream by binding to a local port */
 	public
 	ZeroMQOutputStream(final int portNo)
 	throws IOException
 	{
-		zmq = new ZeroMQsession(portNo);
+		zmq = new ZeroMQsession(portNo,ZeroMQsession.defaultTimeOut,defaultWindowSize);
+		initBuffers();
 	}
 
 	/** inits this OutputStream by binding to a local port */
@@ -64,7 +398,18 @@ public class ZeroMQOutputStream extends OutputStream
 	ZeroMQOutputStream(final int portNo, final int timeOut)
 	throws IOException
 	{
-		zmq = new ZeroMQsession(portNo,timeOut);
+		zmq = new ZeroMQsession(portNo,timeOut,defaultWindowSize);
+		initBuffers();
+	}
+
+	/** inits this OutputStream by binding to a local port,
+	    up to 'windowSize' buffers may be "in flight" at the same time */
+	public
+	ZeroMQOutputStream(final int portNo, final int timeOut, final int windowSize)
+	throws IOException
+	{
+		zmq = new ZeroMQsession(portNo,timeOut,windowSize);
+		initBuffers();
 	}
 
 	/** inits this OutputStream by connecting to given URL */
@@ -72,7 +417,8 @@ public class ZeroMQOutputStream extends OutputStream
 	ZeroMQOutputStream(final String URL)
 	throws IOException
 	{
-		zmq = new ZeroMQsession(URL);
+		zmq = new ZeroMQsession(URL,ZeroMQsession.defaultTimeOut,defaultWindowSize);
+		initBuffers();
 	}
 
 	/** inits this OutputStream by connecting to given URL */
@@ -80,6 +426,55 @@ public class ZeroMQOutputStream extends OutputStream
 	ZeroMQOutputStream(final String URL, final int timeOut)
 	throws IOException
 	{
-		zmq = new ZeroMQsession(URL,timeOut);
+		zmq = new ZeroMQsession(URL,timeOut,defaultWindowSize);
+		initBuffers();
+	}
+
+	/** inits this OutputStream by connecting to given URL,
+	    up to 'windowSize' buffers may be "in flight" at the same time */
+	public
+	ZeroMQOutputStream(final String URL, final int timeOut, final int windowSize)
+	throws IOException
+	{
+		zmq = new ZeroMQsession(URL,timeOut,windowSize);
+		initBuffers();
+	}
+
+	/** inits this OutputStream on top of an already established session,
+	    closing this stream closes also the session */
+	public
+	ZeroMQOutputStream(final ZeroMQsession session)
+	{
+		zmq = session;
+		initBuffers();
+	}
+
+	/** inits this OutputStream on top of an already established session,
+	    closing this stream closes also the session, the stream will send
+	    messages of 'chunkSize' bytes in buffers leased from the 'pool' */
+	public
+	ZeroMQOutputStream(final ZeroMQsession session,
+	                   final int chunkSize, final ZeroMQbufferPool pool)
+	{
+		this(session, chunkSize, pool, null);
+	}
+
+	/** inits this OutputStream on top of an already established session,
+	    closing this stream closes also the session, the stream will encode
+	    chunks of 'chunkSize' bytes with the 'codec' in parallel (unless
+	    the 'codec' is null), the ZeroMQInputStream decodes them automatically */
+	public
+	ZeroMQOutputStream(final ZeroMQsession session,
+	                   final int chunkSize, final ZeroMQbufferPool pool,
+	                   final ChunkCodec codec)
+	{
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunk size must be positive, got "+chunkSize);
+
+		zmq = session;
+		this.chunkSize = chunkSize;
+		bufPool = pool;
+		this.codec = codec;
+		initBuffers();
 	}
 }
@@ -0,0 +1,105 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the buffers that are not used at the moment so that
+ * they can be re-used (leased) later again, instead of allocating new ones.
+ * The buffers are either on the Java heap, or "direct" (outside the heap).
+ *
+ * The pool keeps at most the given amount of bytes, buffers
+ * that are released beyond that are left to the garbage collector.
+ */
+public class ZeroMQbufferPool
+{
+	// -------------- API stuff --------------
+	/** inits the pool of heap buffers that keeps at most 'maxPooledBytes' bytes */
+	public
+	ZeroMQbufferPool(final long maxPooledBytes)
+	{
+		this(false, maxPooledBytes);
+	}
+
+	/** inits the pool of heap or direct buffers that keeps at most 'maxPooledBytes' bytes */
+	public
+	ZeroMQbufferPool(final boolean useDirectBuffers, final long maxPooledBytes)
+	{
+		this.useDirectBuffers = useDirectBuffers;
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/** returns a cleared buffer of exactly the given capacity,
+	    the buffer should be given back to this pool with release() */
+	public synchronized
+	ByteBuffer lease(final int capacity)
+	{
+		final ArrayDeque<ByteBuffer> buffers = freeBuffers.get(capacity);
+		if (buffers != null && !buffers.isEmpty())
+		{
+			pooledBytes -= capacity;
+			final ByteBuffer buf = buffers.pop();
+			buf.clear();
+			return buf;
+		}
+
+		return useDirectBuffers ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/** gives the buffer back to this pool, the buffer must not be used afterwards */
+	public synchronized
+	void release(final ByteBuffer buf)
+	{
+		if (buf.isDirect() != useDirectBuffers) return;
+		if (pooledBytes + buf.capacity() > maxPooledBytes) return;
+
+		pooledBytes += buf.capacity();
+		freeBuffers.computeIfAbsent(buf.capacity(), k -> new ArrayDeque<>()).push(buf);
+	}
+
+	/** returns true if the leased buffers are "direct" (outside the heap) */
+	public
+	boolean isUsingDirectBuffers()
+	{
+		return useDirectBuffers;
+	}
+
+
+	/** returns the pool shared within this JVM, the pool is created when needed,
+	    and it keeps heap buffers of up to 256 MB in total */
+	public static synchronized
+	ZeroMQbufferPool getDefault()
+	{
+		if (defaultPool == null) defaultPool = new ZeroMQbufferPool(false, 1L<<28);
+		return defaultPool;
+	}
+
+	/** replaces the pool shared within this JVM, e.g. with
+	    the pool that leases the direct buffers */
+	public static synchronized
+	void setDefault(final ZeroMQbufferPool pool)
+	{
+		defaultPool = pool;
+	}
+
+
+	// -------------- internal stuff --------------
+	private final boolean useDirectBuffers;
+	private final long maxPooledBytes;
+
+	private long pooledBytes = 0;
+
+	/** buffers that are not in use, grouped by their capacities */
+	private final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+
+	private static ZeroMQbufferPool defaultPool = null;
+}
@@ -11,6 +11,11 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ZeroMQsession
 {
@@ -20,7 +25,7 @@ public class ZeroMQsession
 	ZeroMQsession(final int portNo)
 	throws IOException
 	{
-		initSocketWithBind(portNo);
+		initSocketWithBind("tcp://*:" + portNo);
 	}
 
 	/** inits this ZMQ session by binding to a local port */
@@ -29,7 +34,7 @@ public class ZeroMQsession
 	throws IOException
 	{
 		waitTimeOut = timeOut;
-		initSocketWithBind(portNo);
+		initSocketWithBind("tcp://*:" + portNo);
 	}
 
 	/** inits this ZMQ session by connecting to given URL */
@@ -49,7 +54,65 @@ public class ZeroMQsession
 		initSocketWithConnect(URL);
 	}
 
+	/** inits this ZMQ session by binding to a local port,
+	    up to 'windowSize' messages may await their confirmation */
+	public
+	ZeroMQsession(final int portNo, final int timeOut, final int windowSize)
+	throws IOException
+	{
+		waitTimeOut = timeOut;
+		setWindowSize(windowSize);
+		initSocketWithBind("tcp://*:" + portNo);
+	}
+
+	/** inits this ZMQ session by connecting to given URL,
+	    up to 'windowSize' messages may await their confirmation */
+	public
+	ZeroMQsession(final String URL, final int timeOut, final int windowSize)
+	throws IOException
+	{
+		waitTimeOut = timeOut;
+		setWindowSize(windowSize);
+		initSocketWithConnect(URL);
+	}
+
+	/** inits this ZMQ session by binding to the given endpoint (e.g. "tcp://*:3456",
+	    "ipc:///tmp/images" or "inproc://images") if 'isBinding', or by connecting
+	    to it otherwise; the session uses the given (shared) context and does not
+	    terminate it on close(), the "inproc://" endpoints work only within this context */
+	ZeroMQsession(final ZMQ.Context sharedContext, final int lingerTime, final int highWaterMark,
+	              final String endpoint, final boolean isBinding, final int timeOut, final int windowSize)
+	throws IOException
+	{
+		this(sharedContext, lingerTime, highWaterMark, endpoint, isBinding, timeOut, windowSize, ZMQ.PAIR);
+	}
+
+	/** inits this ZMQ session exactly as the constructor above, but with a socket of
+	    the given type (e.g. ZMQ.DEALER to talk to a ZMQ.ROUTER) instead of the ZMQ.PAIR one */
+	ZeroMQsession(final ZMQ.Context sharedContext, final int lingerTime, final int highWaterMark,
+	              final String endpoint, final boolean isBinding, final int timeOut, final int windowSize,
+	              final int socketType)
+	throws IOException
+	{
+		zmqContext = sharedContext;
+		isContextOwner = false;
+		this.lingerTime = lingerTime;
+		this.highWaterMark = highWaterMark;
+		this.socketType = socketType;
+		waitTimeOut = timeOut;
+		setWindowSize(windowSize);
+		if (isBinding) initSocketWithBind(endpoint);
+		else initSocketWithConnect(endpoint);
+	}
+
 	/** Sends the content of the buffer as a solo ZMQ message.
+	 *
+	 * Up to this.windowSize messages can be sent without waiting for
+	 * their confirmations. Once the window is exhausted, this method waits
+	 * for the confirmation of the oldest sent message. When this method
+	 * returns, the caller may therefore re-use the buffer that it has given
+	 * to this method 'windowSize' calls ago (or the current buffer if the
+	 * window size is 1).
 	 *
 	 * This method should never block longer than this.waitTimeOut.
 	 * If the timeout occurs, exception is raised to notify the caller.
@@ -60,9 +123,96 @@ public class ZeroMQsession
 	public
 	void writeZMQ(byte[] buf, int pos)
 	throws IOException
+	{
+		writeZMQ(buf,0,pos);
+	}
+
+	/** Sends the 'length' bytes of the buffer, starting from the 'offset',
+	 *  as a solo ZMQ message. Otherwise, it behaves exactly as writeZMQ(buf,pos).
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble, or if
+	 * no confirmation arrives within the waitTimeOut.
+	 */
+	public
+	void writeZMQ(byte[] buf, int offset, int length)
+	throws IOException
 	{
 		//send the data
-		zmqSocket.send(buf,0,pos,0);
+		if (!zmqSocket.send(buf,offset,length,0)) throwNotSent();
+		metrics.addSent(length);
+		consumeCredit();
+	}
+
+	/** Sends the remaining content of the buffer (between its position and
+	 *  its limit) as a solo ZMQ message, the buffer itself is not modified.
+	 *  Otherwise, it behaves exactly as writeZMQ(buf,pos). This variant
+	 *  is meant mainly for the direct (off-heap) buffers.
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble, or if
+	 * no confirmation arrives within the waitTimeOut.
+	 */
+	public
+	void writeZMQ(ByteBuffer buf)
+	throws IOException
+	{
+		//send the data
+		final int length = zmqSocket.sendByteBuffer(buf,0);
+		if (length < 0) throwNotSent();
+		metrics.addSent(length);
+		consumeCredit();
+	}
+
+	/** Sends the 'length' bytes of the buffer, starting from the 'offset', followed
+	 *  with the 'trailer' as the last frame of the same ZMQ message, the receiver
+	 *  reads (with readZMQ()) both frames one after another but confirms them once.
+	 *  Otherwise, it behaves exactly as writeZMQ(buf,pos).
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble, or if
+	 * no confirmation arrives within the waitTimeOut.
+	 */
+	public
+	void writeZMQ(byte[] buf, int offset, int length, byte[] trailer)
+	throws IOException
+	{
+		if (!zmqSocket.send(buf,offset,length,ZMQ.SNDMORE)) throwNotSent();
+		if (!zmqSocket.send(trailer,0,trailer.length,0)) throwNotSent();
+		metrics.addSent(length + trailer.length);
+		consumeCredit();
+	}
+
+	/** Sends the remaining content of the buffer followed with the 'trailer',
+	 *  exactly as writeZMQ(buf,offset,length,trailer) does.
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble, or if
+	 * no confirmation arrives within the waitTimeOut.
+	 */
+	public
+	void writeZMQ(ByteBuffer buf, byte[] trailer)
+	throws IOException
+	{
+		final int length = zmqSocket.sendByteBuffer(buf,ZMQ.SNDMORE);
+		if (length < 0) throwNotSent();
+		if (!zmqSocket.send(trailer,0,trailer.length,0)) throwNotSent();
+		metrics.addSent(length + trailer.length);
+		consumeCredit();
+	}
+
+	/** the message cannot be sent when the other side is not connected (e.g. when
+	    it has gone away), the sending waits for it then only up to the waitTimeOut */
+	private
+	void throwNotSent()
+	throws IOException
+	{
+		metrics.addTimeout();
+		throw new IOException("message could not be sent even after "+waitTimeOut+" seconds");
+	}
+
+	private
+	void consumeCredit()
+	throws IOException
+	{
+		sentTimes[(int)(sentCount++ % windowSize)] = System.nanoTime();
+		--credits;
 		//
 		//beware! ZMQ does not make a copy of the 'buf' and if it does not send it
 		//right away, the future content of the 'buf' will be sent instead of
@@ -70,35 +220,43 @@ public class ZeroMQsession
 		//and if the same 'buf' is re-used)...
 		//
 		//so, we wait for the confirmation (that assures us the 'buf' has really
-		//been transmitted over), or complain
+		//been transmitted over), or complain; we, however, wait only when
+		//the sender has no other unconfirmed buffer to fill, i.e. when
+		//all credits have been used
 
-		//wait until we hear back from the recipient,
-		//or until we timeout
-		int waitTime = 0;
-		while (!isRecvReady() && waitTime < waitTimeOut)
-		{
-			//we wait 1 second
-			waitTime += 1;
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				//stop waiting for timeout and move forward...
-				waitTime = waitTimeOut;
-			}
-		}
+		//collect confirmations that have arrived meanwhile
+		while (credits < windowSize && isRecvReady())
+			readConfirmation();
 
-		if (isRecvReady())
-		{
-			final byte[] confMsg = zmqSocket.recv();
+		//(a signal may come instead of the confirmation)
+		while (credits == 0) waitForConfirmation();
+	}
 
-			if (confMsg[0] != 'O')
-				throw new IOException("wrong confirmation detected, communication is broken");
-		}
-		else
-			throw new IOException("no confirmation detected even after "+waitTimeOut+" seconds");
+	/** Waits until all messages sent so far are confirmed.
+	 *
+	 * This method should never block longer than this.waitTimeOut per
+	 * every unconfirmed message. If the timeout occurs, exception is raised
+	 * to notify the caller.
+	 *
+	 * @throws IOException If no confirmation arrives within the waitTimeOut.
+	 */
+	public
+	void waitForAllConfirmations()
+	throws IOException
+	{
+		while (credits < windowSize) waitForConfirmation();
+	}
+
+	/** returns how many messages may be sent before
+	    their confirmations are waited for */
+	public
+	int getWindowSize()
+	{
+		return windowSize;
 	}
 
-	/** Reads the ZMQ message into a new buffer.
+	/** Reads the ZMQ message into a new buffer. The frames of a multipart
+	 *  message (see writeZMQ(buf,offset,length,trailer)) are read one by one.
 	 *
 	 * This method should never block longer than this.waitTimeOut.
 	 * If the timeout occurs, the method quits returning with
@@ -111,61 +269,452 @@ public class ZeroMQsession
 	byte[] readZMQ()
 	throws IOException
 	{
-		int waitTime = 0;
-		while (!isRecvReady() && waitTime < waitTimeOut)
+		final byte[] buf = readZMQ(1000L*waitTimeOut);
+		if (buf != null) return buf;
+
+		metrics.addTimeout();
+		return zeroLengthByteArray;
+	}
+
+	/** Reads the ZMQ message into a new buffer, exactly as readZMQ(),
+	 *  but waits for it only up to 'waitTime' milliseconds, and returns
+	 *  null (and it is not considered a timeout) if none has arrived.
+	 *
+	 * @throws IOException If ZMQ.recv() will have some trouble.
+	 */
+	byte[] readZMQ(final long waitTime)
+	throws IOException
+	{
+		if (!unreadMessages.isEmpty())
 		{
-			//we wait 1 second
-			waitTime += 1;
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				//stop waiting for timeout and move forward...
-				waitTime = waitTimeOut;
+			final byte[][] msg = unreadMessages.peek();
+			final byte[] frame = msg[unreadFrameIdx++];
+			isMoreFrames = unreadFrameIdx < msg.length;
+			if (!isMoreFrames)
+			{
+				unreadMessages.poll();
+				unreadFrameIdx = 0;
 			}
+			return frame;
 		}
 
-		if (isRecvReady())
+		isMoreFrames = false;
+		if (waitForRecvReady(waitTime))
 		{
 			byte[] buf = zmqSocket.recv();
 			if (buf == null)
 				 throw new IOException("network reading error");
 
-			zmqSocket.send(confirmationMsg);
+			//a multipart message is confirmed (and counted) only once, after its last frame
+			isMoreFrames = zmqSocket.hasReceiveMore();
+			if (isMoreFrames)
+			{
+				receivedFrameBytes += buf.length;
+				return buf;
+			}
+			metrics.addReceived(receivedFrameBytes + buf.length);
+			receivedFrameBytes = 0;
+
+			//the confirmation is dropped if the other side may have gone away meanwhile,
+			//(blocking) PAIR socket would otherwise wait for it to come back
+			if (mayPeerVanish) zmqSocket.send(confirmationMsg, ZMQ.DONTWAIT);
+			else if (!zmqSocket.send(confirmationMsg, 0))
+				throw new IOException("confirmation could not be sent, communication is broken");
+			return buf;
+		}
+		return null;
+	}
+
+	/** returns true if the frame last returned by the readZMQ() is followed with
+	    more frames of the same (multipart) message, the readZMQ() returns them
+	    right away as the whole message is always delivered at once */
+	boolean hasMoreFrames()
+	{
+		return isMoreFrames;
+	}
+
+	/** Returns the messages, which have been read with the readZMQ() (and so
+	 *  confirmed) but not used, back to this session, the readZMQ() returns
+	 *  them (in their order, frame by frame) before any other message. */
+	void unreadZMQ(final Collection<byte[][]> messages)
+	{
+		unreadMessages.addAll(messages);
+	}
+
+	/** Sends the message that the other side reads with the readUnconfirmedZMQ(),
+	 *  the message is not confirmed (and so no confirmation is waited for).
+	 *
+	 * @throws IOException If the message cannot be sent within the waitTimeOut.
+	 */
+	void writeUnconfirmedZMQ(final byte[] buf)
+	throws IOException
+	{
+		if (!zmqSocket.send(buf,0,buf.length,0)) throwNotSent();
+		metrics.addSent(buf.length);
+	}
+
+	/** Reads the message sent with the writeUnconfirmedZMQ(), no confirmation is sent
+	 *  back. Otherwise, it behaves exactly as readZMQ(), incl. the zero-length buffer
+	 *  returned on timeout.
+	 *
+	 * @throws IOException If ZMQ.recv() will have some trouble.
+	 */
+	byte[] readUnconfirmedZMQ()
+	throws IOException
+	{
+		if (waitForRecvReady())
+		{
+			byte[] buf = zmqSocket.recv();
+			if (buf == null)
+				 throw new IOException("network reading error");
+			metrics.addReceived(buf.length);
 			return buf;
 		}
 
+		metrics.addTimeout();
 		return zeroLengthByteArray;
 	}
 
-	/** request to close the session */
+	/** returns the period of time (in seconds) to wait
+	    for the next ZMQ communication */
+	public
+	int getWaitTimeOut()
+	{
+		return waitTimeOut;
+	}
+
+	/** changes the period of time (in seconds) to wait
+	    for the next ZMQ communication */
+	public
+	void setWaitTimeOut(final int timeOut)
+	{
+		waitTimeOut = timeOut;
+		if (zmqSocket != null && mayPeerVanish) zmqSocket.setSendTimeOut(1000*waitTimeOut);
+	}
+
+	/** Declares that the other side may go away (and come back) in the middle
+	 *  of the transfer: the sending then waits for it only up to the waitTimeOut,
+	 *  and the confirmations are dropped if they cannot be sent right away.
+	 *  Otherwise (the default), the sending waits for the other side as long
+	 *  as it takes, and a confirmation that cannot be sent breaks the reading.
+	 */
+	void setPeerMayVanish(final boolean mayVanish)
+	{
+		mayPeerVanish = mayVanish;
+		zmqSocket.setSendTimeOut(mayVanish ? 1000*waitTimeOut : -1);
+	}
+
+	/** request to close the session, the session's own ZMQ context
+	    is terminated too (the shared one is not) */
 	public
 	void close()
 	{
+		if (isClosed) return;
+		isClosed = true;
+		metrics.sessionClosed();
+
+		//pending messages (e.g. the last confirmation) are given
+		//the lingerTime to make it over before the socket is closed
+		zmqSocket.setLinger(lingerTime);
+		zmqContext.close(zmqSelector);
 		zmqSocket.close();
+		closeWakeUps();
+		if (isContextOwner) zmqContext.term();
+	}
+
+	/** closes the session right away, the pending messages are dropped,
+	    which is useful when the other side is known to have gone away */
+	void abort()
+	{
+		lingerTime = 0;
+		close();
+	}
+
+	/** returns the metrics of the endpoint of this session */
+	TransferMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/** returns true if close() has been called on this session */
+	public
+	boolean isClosed()
+	{
+		return isClosed;
+	}
+
+	/** returns true if this session is ready to start a new transfer,
+	    that is, it is not closed and all sent messages are confirmed
+	    (incoming messages may be waiting, e.g. the next pushed image);
+	    the session that has carried demand signals is never re-used
+	    as late signals could still be arriving */
+	boolean isIdle()
+	{
+		return !isClosed && credits == windowSize && !hasSignals;
 	}
 
 
 	// -------------- internal stuff --------------
 	/** period of time (in seconds) to wait
 	    for the next ZMQ communication */
-	protected int waitTimeOut = 120;
+	protected int waitTimeOut = defaultTimeOut;
+
+	/** the default period of time (in seconds) */
+	public static final int defaultTimeOut = 120;
+
+	/** period of time (in milliseconds) the pending messages are still
+	    being sent after close() has been called, and the default value */
+	private int lingerTime = defaultLingerTime;
+	public static final int defaultLingerTime = 1000;
+
+	/** the high water mark of the socket, or -1 to keep ZMQ's default */
+	private int highWaterMark = -1;
+
+	/** see setPeerMayVanish() */
+	private boolean mayPeerVanish = false;
+
+	/** the size of the frames of the currently received multipart message */
+	private long receivedFrameBytes = 0;
+
+	/** is the last frame returned by the readZMQ() followed with more frames? */
+	private boolean isMoreFrames = false;
+
+	/** the messages given back with the unreadZMQ() (each with all its frames),
+	    and the frame of the first of them that the readZMQ() returns next */
+	private final ArrayDeque<byte[][]> unreadMessages = new ArrayDeque<>();
+	private int unreadFrameIdx = 0;
+
+	/** how many messages may be sent without their confirmations,
+	    and how many of them may be sent right now (credits) */
+	private int windowSize = 1;
+	private int credits = 1;
+
+	/** when the unconfirmed messages were sent (in the order of sending,
+	    in the round-robin fashion), and how many messages have been sent
+	    and confirmed so far, for the round-trip times of the confirmations */
+	private long[] sentTimes = new long[1];
+	private long sentCount = 0;
+	private long confirmedCount = 0;
+
+	private
+	void setWindowSize(final int windowSize)
+	throws IOException
+	{
+		if (windowSize < 1)
+			throw new IOException("window size must be positive, got "+windowSize);
+
+		this.windowSize = windowSize;
+		credits = windowSize;
+		sentTimes = new long[windowSize];
+	}
+
+	private
+	void waitForConfirmation()
+	throws IOException
+	{
+		//wait until we hear back from the recipient,
+		//or until we timeout
+		if (waitForRecvReady())
+			readConfirmation();
+		else
+		{
+			metrics.addTimeout();
+			throw new IOException("no confirmation detected even after "+waitTimeOut+" seconds");
+		}
+	}
+
+	private
+	void readConfirmation()
+	throws IOException
+	{
+		final byte[] confMsg = zmqSocket.recv();
+
+		if (confMsg != null && confMsg.length == 9 && confMsg[0] == 'D')
+		{
+			//not a confirmation but the demand signal
+			final long n = ByteBuffer.wrap(confMsg,1,8).getLong();
+			hasSignals = true;
+			if (n < 0) isCancelSignalled = true;
+			else signalledDemand = signalledDemand+n < 0 ? Long.MAX_VALUE : signalledDemand+n;
+			return;
+		}
+
+		if (confMsg == null || confMsg.length == 0 || confMsg[0] != 'O')
+			throw new IOException("wrong confirmation detected, communication is broken");
+
+		metrics.addAckRoundTrip(System.nanoTime() - sentTimes[(int)(confirmedCount++ % windowSize)]);
+		++credits;
+	}
+
+
+	// -------------- demand signals --------------
+	/** how many items the other side wants (and has not been given yet) */
+	private long signalledDemand = 0;
+	private boolean isCancelSignalled = false;
+	private boolean hasSignals = false;
+
+	/** Lets the other side (which is sending via this session) know that
+	 *  'n' more items are wanted, or that no more items are wanted if 'n' < 0;
+	 *  the signal is not confirmed.
+	 *
+	 * @throws IOException If ZMQ.send() will have some trouble.
+	 */
+	void signalDemand(final long n)
+	throws IOException
+	{
+		final byte[] msg = new byte[9];
+		msg[0] = 'D';
+		ByteBuffer.wrap(msg,1,8).putLong(n);
+		hasSignals = true;
+
+		//a lost signal would stall the stream, or leave the other side sending
+		if (!zmqSocket.send(msg, 0))
+			throw new IOException("demand signal could not be sent, communication is broken");
+		metrics.addSent(msg.length);
+	}
+
+	/** Returns the demand signalled by the other side so far (and forgets it),
+	 *  or -1 if the other side wants no more items. This method does not block.
+	 *
+	 * @throws IOException If some message other than a signal or confirmation has arrived.
+	 */
+	long takeSignalledDemand()
+	throws IOException
+	{
+		while (isRecvReady()) readConfirmation();
+
+		if (isCancelSignalled) return -1;
+		final long n = signalledDemand;
+		signalledDemand = 0;
+		return n;
+	}
+
+	// -------------- wake ups --------------
+	/** the wakeUp() sends into the wakeupSender, and the waitForMessageOrWakeUp()
+	    polls the wakeupReceiver together with the zmqSocket; the wakeupSender is
+	    used under the wakeupLock as the wakeUp() is called from any thread */
+	private ZMQ.Socket wakeupReceiver = null;
+	private ZMQ.Socket wakeupSender = null;
+	private ZMQ.PollItem[] wakeupPollItems = null;
+	private final Object wakeupLock = new Object();
+
+	/** for the unique names of the wakeup endpoints */
+	private static final AtomicLong wakeupsCount = new AtomicLong(0);
+
+	/** Prepares this session for the waitForMessageOrWakeUp(), the session
+	 *  is never re-used afterwards (as if it has carried demand signals).
+	 *
+	 * @throws IOException If the wakeup sockets cannot be created.
+	 */
+	void enableWakeUps()
+	throws IOException
+	{
+		final String endpoint = "inproc://ZeroMQsession-wakeup-" + wakeupsCount.incrementAndGet();
+		synchronized (wakeupLock)
+		{
+			try {
+				wakeupReceiver = zmqContext.socket(ZMQ.PAIR);
+				wakeupReceiver.bind(endpoint);
+				wakeupSender = zmqContext.socket(ZMQ.PAIR);
+				wakeupSender.connect(endpoint);
+			}
+			catch (ZMQException e) {
+				closeWakeUps();
+				throw new IOException("network error: " + e.getMessage());
+			}
+		}
+		wakeupPollItems = new ZMQ.PollItem[] { new ZMQ.PollItem(zmqSocket, ZMQ.Poller.POLLIN),
+		                                       new ZMQ.PollItem(wakeupReceiver, ZMQ.Poller.POLLIN) };
+		hasSignals = true;
+	}
+
+	/** lets the thread that waits in the waitForMessageOrWakeUp() go on,
+	    unlike the other methods, this one may be called from any thread */
+	void wakeUp()
+	{
+		synchronized (wakeupLock)
+		{
+			//(if the wakeup cannot be queued, other wakeups are still pending)
+			if (wakeupSender != null) wakeupSender.send(wakeupMsg, ZMQ.DONTWAIT);
+		}
+	}
+
+	/** Waits, with no timeout and no periodic wake ups, until some message
+	 *  from the other side is available or until the wakeUp() is called.
+	 *
+	 * @throws IOException If the waiting thread got interrupted.
+	 */
+	void waitForMessageOrWakeUp()
+	throws IOException
+	{
+		//the poller would not notice the interrupt
+		if (Thread.currentThread().isInterrupted())
+			throw new IOException("waiting was interrupted");
+
+		if (!isRecvReady() && !isWakeUpReady())
+			ZMQ.poll(zmqSelector, wakeupPollItems, -1);
+
+		//(the wakeups only tell to look around)
+		while (isWakeUpReady()) wakeupReceiver.recv();
+	}
+
+	private
+	boolean isWakeUpReady()
+	{
+		return ( (wakeupReceiver.getEvents() & ZMQ.Poller.POLLIN) == ZMQ.Poller.POLLIN );
+	}
+
+	private
+	void closeWakeUps()
+	{
+		synchronized (wakeupLock)
+		{
+			for (ZMQ.Socket socket : new ZMQ.Socket[] { wakeupReceiver, wakeupSender })
+				if (socket != null)
+				{
+					socket.setLinger(0);
+					socket.close();
+				}
+			wakeupReceiver = null;
+			wakeupSender = null;
+		}
+	}
+
+	private static final byte[] wakeupMsg = new byte[] { 'W' };
+
 
 	//init the communication side
-	private ZMQ.Context zmqContext = ZMQ.context(1);
+	private ZMQ.Context zmqContext = null;
+	private boolean isContextOwner = true;
 	private ZMQ.Socket zmqSocket = null;
+	private int socketType = ZMQ.PAIR;
+	private boolean isClosed = false;
+
+	/** the metrics of the endpoint of this session (until it is known, the global ones) */
+	private TransferMetrics metrics = TransferMetrics.getGlobal();
+
+	//for waiting on the incoming messages
+	private Selector zmqSelector = null;
+	private ZMQ.PollItem[] zmqPollItems = null;
 
 	private
-	void initSocketWithBind(final int portNo)
+	void initSocketWithBind(final String endpoint)
 	throws IOException
 	{
 		try {
-			zmqSocket = zmqContext.socket(ZMQ.PAIR);
-			zmqSocket.bind("tcp://*:" + portNo);
+			if (zmqContext == null) zmqContext = ZMQ.context(1);
+			zmqSocket = zmqContext.socket(socketType);
+			if (highWaterMark > -1) zmqSocket.setHWM(highWaterMark);
+			zmqSocket.bind(endpoint);
+			registerPoller();
+			metrics = TransferMetrics.sessionOpened(endpoint);
 		}
 		catch (ZMQException e) {
+			closeAfterFailedInit();
 			throw new IOException("network error: " + e.getMessage());
 		}
 		catch (Exception e) {
+			closeAfterFailedInit();
 			throw new IOException("other error: " + e.getMessage());
 		}
 	}
@@ -175,25 +724,96 @@ public class ZeroMQsession
 	throws IOException
 	{
 		try {
-			zmqSocket = zmqContext.socket(ZMQ.PAIR);
+			if (zmqContext == null) zmqContext = ZMQ.context(1);
+			zmqSocket = zmqContext.socket(socketType);
+			if (highWaterMark > -1) zmqSocket.setHWM(highWaterMark);
 			zmqSocket.connect(URL);
+			registerPoller();
+			metrics = TransferMetrics.sessionOpened(URL);
 		}
 		catch (ZMQException e) {
+			closeAfterFailedInit();
 			throw new IOException("network error: " + e.getMessage());
 		}
 		catch (Exception e) {
+			closeAfterFailedInit();
 			throw new IOException("other error: " + e.getMessage());
 		}
 	}
 
+	/** the socket that could not be bound (or connected) would otherwise
+	    stay open, and the (shared) context could never be terminated */
+	private
+	void closeAfterFailedInit()
+	{
+		if (zmqSocket != null)
+		{
+			zmqSocket.setLinger(0);
+			zmqSocket.close();
+		}
+		if (isContextOwner && zmqContext != null) zmqContext.term();
+		isClosed = true;
+	}
+
+	private
+	void registerPoller()
+	{
+		zmqSelector = zmqContext.selector();
+		zmqPollItems = new ZMQ.PollItem[] { new ZMQ.PollItem(zmqSocket, ZMQ.Poller.POLLIN) };
+	}
+
 	/** non-blocking pooling of ZMQ message queue,
 	 *  returns true if some message is available */
 	private
 	boolean isRecvReady()
 	{
-		return ( (zmqSocket.getEvents() & ZMQ.EVENT_CONNECTED) == ZMQ.EVENT_CONNECTED );
+		return ( (zmqSocket.getEvents() & ZMQ.Poller.POLLIN) == ZMQ.Poller.POLLIN );
 	}
 
+	/** blocking waiting on the ZMQ message queue, returns as soon as some
+	 *  message is available (and returns true) or when this.waitTimeOut
+	 *  has elapsed or the calling thread got interrupted (and returns
+	 *  whether some message is available at that moment) */
+	private
+	boolean waitForRecvReady()
+	{
+		return waitForRecvReady(1000L*waitTimeOut);
+	}
+
+	/** blocking waiting on the ZMQ message queue, exactly as waitForRecvReady(),
+	 *  but it waits only up to 'waitTime' milliseconds */
+	private
+	boolean waitForRecvReady(final long waitTime)
+	{
+		//(no waiting, and thus nothing to measure, if a message is here already)
+		if (isRecvReady()) return true;
+
+		final long startTime = System.nanoTime();
+		final long deadline = System.currentTimeMillis() + waitTime;
+		long remainingTime = waitTime;
+		boolean isReady = false;
+
+		//the poller wakes up right when a message arrives, it may
+		//however return prematurely (e.g. on a spurious wake up);
+		//it also ignores interrupts, so it polls only for short periods
+		while (remainingTime > 0 && !Thread.currentThread().isInterrupted())
+		{
+			if (ZMQ.poll(zmqSelector, zmqPollItems, Math.min(remainingTime,interruptCheckPeriod)) > 0
+			    && zmqPollItems[0].isReadable())
+			{
+				isReady = true;
+				break;
+			}
+			remainingTime = deadline - System.currentTimeMillis();
+		}
+
+		metrics.addWaiting(System.nanoTime() - startTime);
+		return isReady || isRecvReady();
+	}
+
+	/** how often (in milliseconds) the waiting checks if it got interrupted */
+	private static final long interruptCheckPeriod = 100;
+
 	private static final byte[] zeroLengthByteArray = new byte[0];
 	private static final byte[] confirmationMsg = new byte[] { 'O','K' };
 }
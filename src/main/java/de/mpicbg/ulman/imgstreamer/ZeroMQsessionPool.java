@@ -0,0 +1,218 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * This class holds one ZMQ context that is shared among all sessions
+ * created from it, and it keeps the sessions that are not used at the
+ * moment (but are still connected or bound) so that they can be re-used
+ * for the next transfer with the same address.
+ *
+ * The pool must be shut down explicitly with shutdown().
+ */
+public class ZeroMQsessionPool
+{
+	// -------------- API stuff --------------
+	/** inits the pool with one I/O thread, default linger time and default high water mark */
+	public
+	ZeroMQsessionPool()
+	{
+		this(1, ZeroMQsession.defaultLingerTime, -1);
+	}
+
+	/** inits the pool whose context will have 'ioThreads' I/O threads,
+	    and whose sessions will wait 'lingerTime' milliseconds for their
+	    pending messages when closed, and will use the 'highWaterMark'
+	    (-1 to keep ZMQ's default) */
+	public
+	ZeroMQsessionPool(final int ioThreads, final int lingerTime, final int highWaterMark)
+	{
+		zmqContext = ZMQ.context(ioThreads);
+		this.lingerTime = lingerTime;
+		this.highWaterMark = highWaterMark;
+	}
+
+	/** Returns an idle session bound to the local port, or a new one.
+	 *  The session should be given back to this pool with release().
+	 *
+	 * @throws IOException If the pool is shut down, or if the session
+	 * cannot be created.
+	 */
+	public
+	ZeroMQsession bind(final int portNo, final int timeOut)
+	throws IOException
+	{
+		return bind("tcp://*:"+portNo, timeOut);
+	}
+
+	/** Returns an idle session bound to the given endpoint (e.g. "tcp://*:3456",
+	 *  "ipc:///tmp/images" or "inproc://images"), or a new one.
+	 *  The session should be given back to this pool with release().
+	 *
+	 * @throws IOException If the pool is shut down, or if the session
+	 * cannot be created.
+	 */
+	public synchronized
+	ZeroMQsession bind(final String endpoint, final int timeOut)
+	throws IOException
+	{
+		//(the bound "ipc://" or "inproc://" endpoint is the same as the connected one)
+		final String key = "bind:"+endpoint;
+		ZeroMQsession session = pollIdleSession(key);
+		if (session == null)
+			session = new ZeroMQsession(zmqContext, lingerTime, highWaterMark,
+			                            endpoint, true, timeOut, ZeroMQOutputStream.defaultWindowSize);
+
+		return borrow(session, key, timeOut);
+	}
+
+	/** Returns an idle session connected to the given URL, or a new one.
+	 *  The session should be given back to this pool with release().
+	 *
+	 * @throws IOException If the pool is shut down, or if the session
+	 * cannot be created.
+	 */
+	public
+	ZeroMQsession connect(final String URL, final int timeOut)
+	throws IOException
+	{
+		return connect(URL, timeOut, ZMQ.PAIR);
+	}
+
+	/** Returns an idle session connected to the given URL with a socket of the
+	 *  given type (e.g. ZMQ.DEALER to talk to a ZMQ.ROUTER), or a new one.
+	 *  The session should be given back to this pool with release().
+	 *
+	 * @throws IOException If the pool is shut down, or if the session
+	 * cannot be created.
+	 */
+	public synchronized
+	ZeroMQsession connect(final String URL, final int timeOut, final int socketType)
+	throws IOException
+	{
+		//(only the sessions of the same type are re-used)
+		final String key = socketType == ZMQ.PAIR ? URL : "type"+socketType+":"+URL;
+		ZeroMQsession session = pollIdleSession(key);
+		if (session == null)
+			session = new ZeroMQsession(zmqContext, lingerTime, highWaterMark,
+			                            URL, false, timeOut, ZeroMQOutputStream.defaultWindowSize, socketType);
+
+		return borrow(session, key, timeOut);
+	}
+
+	/** Gives the session back to this pool. If the session is not ready to
+	    start a new transfer (e.g. because the last transfer has failed),
+	    or if the pool is shut down, the session is closed instead. */
+	public synchronized
+	void release(final ZeroMQsession session)
+	{
+		final String endpoint = borrowedSessions.remove(session);
+
+		if (endpoint == null || isShutdown || !session.isIdle())
+		{
+			session.close();
+			return;
+		}
+
+		idleSessions.computeIfAbsent(endpoint, k -> new ArrayDeque<>()).push(session);
+	}
+
+	/** Closes all idle sessions and terminates the shared context, the sessions
+	    that are still in use must be closed or released before this method
+	    can return. */
+	public
+	void shutdown()
+	{
+		synchronized (this)
+		{
+			if (isShutdown) return;
+			isShutdown = true;
+
+			for (ArrayDeque<ZeroMQsession> sessions : idleSessions.values())
+				for (ZeroMQsession session : sessions) session.close();
+			idleSessions.clear();
+		}
+
+		//blocks until all sessions are closed
+		zmqContext.term();
+	}
+
+
+	/** returns the pool shared within this JVM, the pool is created when needed */
+	public static synchronized
+	ZeroMQsessionPool getDefault()
+	{
+		if (defaultPool == null) defaultPool = new ZeroMQsessionPool();
+		return defaultPool;
+	}
+
+	/** shuts down the pool shared within this JVM (if it exists),
+	    the next getDefault() will create a new one */
+	public static
+	void shutdownDefault()
+	{
+		final ZeroMQsessionPool pool;
+		synchronized (ZeroMQsessionPool.class)
+		{
+			pool = defaultPool;
+			defaultPool = null;
+		}
+
+		if (pool != null) pool.shutdown();
+	}
+
+
+	// -------------- internal stuff --------------
+	/** returns the context of the sessions of this pool, the sockets that talk
+	    to them over the "inproc://" endpoints must be created within it */
+	ZMQ.Context getContext()
+	{
+		return zmqContext;
+	}
+
+	private final ZMQ.Context zmqContext;
+	private final int lingerTime;
+	private final int highWaterMark;
+
+	private boolean isShutdown = false;
+
+	/** sessions that are not in use, grouped by their endpoints */
+	private final Map<String, ArrayDeque<ZeroMQsession>> idleSessions = new HashMap<>();
+
+	/** sessions that are in use, and their endpoints */
+	private final Map<ZeroMQsession, String> borrowedSessions = new IdentityHashMap<>();
+
+	private static ZeroMQsessionPool defaultPool = null;
+
+	private
+	ZeroMQsession pollIdleSession(final String endpoint)
+	throws IOException
+	{
+		if (isShutdown)
+			throw new IOException("the pool of ZMQ sessions is shut down");
+
+		final ArrayDeque<ZeroMQsession> sessions = idleSessions.get(endpoint);
+		return sessions != null ? sessions.poll() : null;
+	}
+
+	private
+	ZeroMQsession borrow(final ZeroMQsession session, final String endpoint, final int timeOut)
+	{
+		session.setWaitTimeOut(timeOut);
+		borrowedSessions.put(session, endpoint);
+		return session;
+	}
+}
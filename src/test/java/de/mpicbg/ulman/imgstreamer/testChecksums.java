@@ -0,0 +1,169 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.zeromq.ZMQ;
+
+import static de.mpicbg.ulman.imgstreamer.testStreams.areBothImagesTheSame;
+import static de.mpicbg.ulman.imgstreamer.testStreams.fillImg;
+
+/**
+ * Checks that the chunk checksums detect a corrupted chunk, and measures
+ * how much the checksums cost (compared to the streaming without them).
+ */
+public class testChecksums
+{
+	public static void main(String... args)
+	{
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Checksums(new UnsignedShortType(), null);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Checksums(new UnsignedShortType(), new DeflateCodec());
+
+		System.out.println("-------------------------------------------------");
+		testCorruptedChunk();
+
+		System.out.println("-------------------------------------------------");
+		measureChecksum("CRC32C", 1<<22, 1L<<32);
+		measureChecksum("CRC32", 1<<22, 1L<<32);
+
+		for (boolean enabled : new boolean[] { false, true, false, true })
+		{
+			System.out.println("-------------------------------------------------");
+			System.out.println("checksums enabled: "+enabled);
+			ChunkChecksums.setEnabled(enabled);
+			testHandshakeLatency.measureStreamThroughput(4, 1<<20, 1L<<31);
+			//(writes of the chunk size are sent right from the caller's array)
+			testHandshakeLatency.measureStreamThroughput(4, ZeroMQOutputStream.defaultChunkSize, 1L<<31);
+		}
+		ChunkChecksums.setEnabled(false);
+
+		ImgTransfer.shutdown();
+	}
+
+
+	/** transfers an image with the checksums (and the digest of the whole image) */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Checksums(final T type, final ChunkCodec codec)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(2000,1000,5) ) );
+
+		ChunkChecksums.setEnabled(true);
+		final Thread sender = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					ImgTransfer.sendImage(imgP, "localhost:3486", 10, null, codec);
+				}
+				catch (IOException e) {
+					System.out.println("sender problem:");
+					e.printStackTrace();
+				}
+			}
+		};
+
+		try {
+			sender.start();
+			final ImgPlus<?> imgPP = ImgTransfer.receiveImage(3486, 10, null);
+			sender.join();
+
+			System.out.println("--> send and receive images ("+ChunkChecksums.getAlgorithm()+", "
+				+(codec != null ? codec.getName() : "no codec")+") are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)imgPP) +"\n");
+		}
+		catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+		finally {
+			ChunkChecksums.setEnabled(false);
+		}
+	}
+
+
+	/** sends (with a plain ZMQ socket) a chunk whose checksum does not fit */
+	static
+	void testCorruptedChunk()
+	{
+		ZMQ.Context zmqContext = ZMQ.context(1);
+		ZMQ.Socket zmqSocket = zmqContext.socket(ZMQ.PAIR);
+		zmqSocket.connect("tcp://localhost:3487");
+
+		try {
+			zmqSocket.sendMore(StreamHeader.TAG);
+			zmqSocket.send(new StreamHeader(1000, null, "CRC32").getDescription());
+
+			final byte[] msg = new byte[1000];
+			new Random(42).nextBytes(msg);
+			final Checksum crc = ChunkChecksums.create("CRC32");
+			final byte[] trailer = ByteBuffer.allocate(ChunkChecksums.CHECKSUM_SIZE)
+				.putInt(ChunkChecksums.compute(crc, msg,0,1000)).array();
+			msg[500] ^= 1; //one flipped bit
+			zmqSocket.sendMore(msg);
+			zmqSocket.send(trailer);
+
+			final ZeroMQInputStream zis = new ZeroMQInputStream(3487, 5);
+			try {
+				zis.read();
+				System.out.println("--> corrupted chunk was NOT detected");
+			}
+			catch (IOException e) {
+				System.out.println("--> corrupted chunk was detected: "+e.getMessage()+"\n");
+			}
+			zis.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			zmqSocket.close();
+			zmqContext.term();
+		}
+	}
+
+
+	/** computes the checksum over 'totalBytes' bytes, in chunks of 'chunkSize' bytes */
+	static
+	void measureChecksum(final String algorithm, final int chunkSize, final long totalBytes)
+	{
+		final byte[] chunk = new byte[chunkSize];
+		new Random(42).nextBytes(chunk);
+
+		try {
+			final Checksum checksum = ChunkChecksums.create(algorithm);
+
+			//warm-up, so that the JIT compiles (and intrinsifies) the checksum
+			for (int i=0; i < 100; ++i) ChunkChecksums.compute(checksum, chunk,0,chunkSize);
+
+			int crc = 0;
+			long time = System.nanoTime();
+			for (long done = 0; done < totalBytes; done += chunkSize)
+				crc += ChunkChecksums.compute(checksum, chunk,0,chunkSize);
+			time = System.nanoTime() - time;
+
+			System.out.println(algorithm+": "+totalBytes+" B in "+(time/1000000)+" ms, i.e. "
+				+(totalBytes*1000/time)+" MB/s (result "+Integer.toHexString(crc)+")");
+		}
+		catch (IOException e) {
+			System.out.println(algorithm+": "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+
+/**
+ * Measures how long a single chunk takes to make it over the loopback,
+ * including the confirmation handshake of the ZeroMQsession.
+ */
+public class testHandshakeLatency
+{
+	public static void main(String... args)
+	{
+		System.out.println("-------------------------------------------------");
+		measureHandshake(16, 2000);
+
+		System.out.println("-------------------------------------------------");
+		measureHandshake(1<<20, 200);
+
+		System.out.println("-------------------------------------------------");
+		measureHandshake(4<<20, 50);
+
+		System.out.println("-------------------------------------------------");
+		measureStreamThroughput(1, 1<<20, 1<<30);
+
+		System.out.println("-------------------------------------------------");
+		measureStreamThroughput(4, 1<<20, 1<<30);
+
+		System.out.println("-------------------------------------------------");
+		measureStreamThroughput(4, 1<<26, 1<<30);
+	}
+
+
+	static
+	void measureHandshake(final int chunkSize, final int repetitions)
+	{
+		class LocalReceiver extends Thread
+		{
+			long bytesReceived = 0;
+
+			@Override
+			public void run()
+			{
+				try {
+					final ZeroMQsession zmq = new ZeroMQsession(3456, 10);
+					for (int i=0; i < repetitions; ++i)
+						bytesReceived += zmq.readZMQ().length;
+					zmq.close();
+				}
+				catch (IOException e) {
+					System.out.println("receiver problem:");
+					e.printStackTrace();
+				}
+			}
+		}
+
+		final byte[] buf = new byte[chunkSize];
+		final LocalReceiver lrecv = new LocalReceiver();
+
+		try {
+			lrecv.start();
+			final ZeroMQsession zmq = new ZeroMQsession("tcp://localhost:3456", 10);
+
+			//the first round trip includes the connection establishment
+			long time = System.nanoTime();
+			zmq.writeZMQ(buf,chunkSize);
+			time = System.nanoTime() - time;
+			System.out.println("chunk size "+chunkSize+" B: first handshake took "+(time/1000)+" us");
+
+			time = System.nanoTime();
+			for (int i=1; i < repetitions; ++i)
+				zmq.writeZMQ(buf,chunkSize);
+			time = System.nanoTime() - time;
+
+			zmq.close();
+			lrecv.join();
+
+			System.out.println("chunk size "+chunkSize+" B: "+(repetitions-1)+" chunks, "
+				+(time/1000/(repetitions-1))+" us per chunk incl. confirmation, "
+				+"received "+lrecv.bytesReceived+" B in total");
+		}
+		catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/** pushes 'totalBytes' bytes, in portions of 'writeSize' bytes, through
+	    the ZeroMQ streams that use 'windowSize' buffers "in flight" */
+	static
+	void measureStreamThroughput(final int windowSize, final int writeSize, final long totalBytes)
+	{
+		class LocalReceiver extends Thread
+		{
+			long bytesReceived = 0;
+
+			@Override
+			public void run()
+			{
+				try {
+					final ZeroMQInputStream zis = new ZeroMQInputStream(3456, 10);
+					while (bytesReceived < totalBytes && zis.read() > -1)
+					{
+						bytesReceived += 1 + zis.available();
+						zis.skip(zis.available());
+					}
+					zis.close();
+				}
+				catch (IOException e) {
+					System.out.println("receiver problem:");
+					e.printStackTrace();
+				}
+			}
+		}
+
+		final byte[] buf = new byte[writeSize];
+		final LocalReceiver lrecv = new LocalReceiver();
+
+		try {
+			lrecv.start();
+			final ZeroMQOutputStream zos
+				= new ZeroMQOutputStream("tcp://localhost:3456", 10, windowSize);
+
+			long time = System.nanoTime();
+			for (long sent = 0; sent < totalBytes; sent += buf.length)
+				zos.write(buf);
+			zos.flush();
+			time = System.nanoTime() - time;
+
+			zos.close();
+			lrecv.join();
+
+			System.out.println("window size "+windowSize+", write size "+writeSize+": sent "+totalBytes+" B in "
+				+(time/1000000)+" ms, i.e. "+(totalBytes*1000/time)+" MB/s, "
+				+"received "+lrecv.bytesReceived+" B in total");
+		}
+		catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package de.mpicbg.ulman.imgstreamer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import static de.mpicbg.ulman.imgstreamer.testStreams.areBothImagesTheSame;
+import static de.mpicbg.ulman.imgstreamer.testStreams.fillImg;
+
+/**
+ * Transfers an image, and reads the transfer metrics back over the JMX.
+ */
+public class testMetrics
+{
+	public static void main(String... args)
+	{
+		final ImgPlus<UnsignedShortType> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory<>(new UnsignedShortType()).create(2000,1000,5) ) );
+
+		final Thread sender = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					ImgTransfer.sendImage(imgP, "localhost:3488", 10, null);
+				}
+				catch (IOException e) {
+					System.out.println("sender problem:");
+					e.printStackTrace();
+				}
+			}
+		};
+
+		try {
+			System.out.println("-------------------------------------------------");
+			sender.start();
+			final ImgPlus<?> imgPP = ImgTransfer.receiveImage(3488, 10, null);
+			sender.join();
+			System.out.println("--> send and receive images are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)imgPP)+"\n");
+
+			final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			for (ObjectName name : mbs.queryNames(new ObjectName("de.mpicbg.ulman.imgstreamer:type=TransferMetrics,*"), null))
+			{
+				System.out.println(name);
+				for (String attr : new String[] { "BytesSent", "ChunksSent", "BytesReceived", "ChunksReceived",
+				                                  "Timeouts", "ActiveSessions", "WaitingTimeMillis", "CopyingTimeMillis",
+				                                  "AckRoundTrips" })
+					System.out.println("  "+attr+": "+mbs.getAttribute(name, attr));
+				System.out.println("  AckRoundTripHistogram: "
+					+Arrays.toString((long[])mbs.getAttribute(name, "AckRoundTripHistogram")));
+			}
+
+			final TransferMetrics global = TransferMetrics.getGlobal();
+			System.out.println("\n--> global bytes sent and received are the same: "
+				+(global.getBytesSent() == global.getBytesReceived()));
+
+			//closes all (pooled) sessions, the metrics of their endpoints are gone then
+			ImgTransfer.shutdown();
+			System.out.println("--> only the global metrics are left after the shutdown: "
+				+(mbs.queryNames(new ObjectName("de.mpicbg.ulman.imgstreamer:type=TransferMetrics,*"), null).size() == 1));
+		}
+		catch (IOException | InterruptedException | JMException e) {
+			e.printStackTrace();
+			ImgTransfer.shutdown();
+		}
+	}
+}
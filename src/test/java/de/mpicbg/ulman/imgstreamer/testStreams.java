@@ -17,6 +17,7 @@ import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
 public class testStreams
 {
@@ -35,10 +36,11 @@ public class testStreams
 	static <T extends RealType<T>, U extends RealType<U>>
 	boolean areBothImagesTheSame(final ImgPlus<T> imgA, final ImgPlus<U> imgB)
 	{
-		Cursor<T> cA = imgA.getImg().cursor();
+		//(the images may be of different layouts, but their flat order is the same)
+		Cursor<T> cA = Views.flatIterable(imgA.getImg()).cursor();
 		cA.jumpFwd(50);
 
-		Cursor<U> cB = imgB.getImg().cursor();
+		Cursor<U> cB = Views.flatIterable(imgB.getImg()).cursor();
 		cB.jumpFwd(50);
 
 		if (cA.get().getRealDouble() != cB.get().getRealDouble())
@@ -59,6 +61,34 @@ public class testStreams
 		return true;
 	}
 
+	/** compares the sizes and every pixel of the images (in their flat order) */
+	static <T extends RealType<T>, U extends RealType<U>>
+	boolean areBothImagesIdentical(final ImgPlus<T> imgA, final ImgPlus<U> imgB)
+	{
+		if (imgA.numDimensions() != imgB.numDimensions())
+		{
+			System.out.println("----------> DIMENSIONALITY MISMATCH! <----------");
+			return false;
+		}
+		for (int d=0; d < imgA.numDimensions(); ++d)
+			if (imgA.dimension(d) != imgB.dimension(d))
+			{
+				System.out.println("----------> IMAGE SIZES MISMATCH! <----------");
+				return false;
+			}
+
+		final Cursor<T> cA = Views.flatIterable(imgA.getImg()).cursor();
+		final Cursor<U> cB = Views.flatIterable(imgB.getImg()).cursor();
+		while (cA.hasNext())
+			if (cA.next().getRealDouble() != cB.next().getRealDouble())
+			{
+				System.out.println("----------> PIXEL VALUES MISMATCH! <----------");
+				return false;
+			}
+
+		return true;
+	}
+
 	static <T extends RealType<T>>
 	Img<T> fillImg(final Img<T> img)
 	{
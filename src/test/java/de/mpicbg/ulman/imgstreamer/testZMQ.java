@@ -8,21 +8,42 @@
 package de.mpicbg.ulman.imgstreamer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
 import org.zeromq.ZMQ;
 
+import static de.mpicbg.ulman.imgstreamer.testStreams.areBothImagesIdentical;
 import static de.mpicbg.ulman.imgstreamer.testStreams.areBothImagesTheSame;
 import static de.mpicbg.ulman.imgstreamer.testStreams.fillImg;
 
 public class testZMQ
 {
 	public static void main(String... args)
+	throws Exception
 	{
 		/*
 		System.out.println("-------------------------------------------------");
@@ -40,6 +61,63 @@ public class testZMQ
 
 		System.out.println("-------------------------------------------------");
 		testImage2Image_ConcurrentThreads(new UnsignedShortType());
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_RepeatedTransfers(new UnsignedShortType(), 10);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Channel(new UnsignedShortType(), 10);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Striped(new UnsignedShortType(), 4);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Compressed(new UnsignedShortType(), new DeflateCodec());
+		testStreamHeader();
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_DeltaChannel(new UnsignedShortType(), 10, 4);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_RemoteCells(new UnsignedShortType(), 8);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Region(new UnsignedShortType());
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Progressive(new UnsignedShortType(), 4);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_FanOut(new UnsignedShortType(), 5);
+
+		System.out.println("-------------------------------------------------");
+		testImgServer(new UnsignedShortType(), 8);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Async(new UnsignedShortType());
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Reactive(new UnsignedShortType(), 6);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Resumable(new UnsignedShortType());
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Endpoints(new UnsignedShortType(), "tcp://*:3489", "tcp://localhost:3489");
+		testImgTransfer_Endpoints(new UnsignedShortType(), "ipc:///tmp/imglib2ZMQ-test", "ipc:///tmp/imglib2ZMQ-test");
+		testImgTransfer_Endpoints(new UnsignedShortType(), "inproc://test", "inproc://test");
+		testImgTransfer_InprocChannel(new UnsignedShortType(), 5);
+		testImgTransfer_EndpointVariants(new UnsignedShortType());
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Shared(new UnsignedShortType());
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Into(new UnsignedShortType(), 10);
+
+		System.out.println("-------------------------------------------------");
+		testImgTransfer_Prefetched(new UnsignedShortType(), 4, 5);
+		ImgTransfer.shutdown();
 	}
 
 
@@ -348,4 +426,904 @@ public class testZMQ
 
 		//ImgPlus<? extends RealType<?>> imgPP = lrecv.imgPP;
 	}
+
+
+	/** sends the same image 'repetitions' times with the ImgTransfer
+	    functions, the network sessions are re-used among the transfers */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_RepeatedTransfers(final T type, final int repetitions)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+
+		final long time = System.currentTimeMillis();
+		final List<ImgPlus<?>> imgsPP = sendAndReceive(
+			() -> {
+				for (int i=0; i < repetitions; ++i)
+					ImgTransfer.sendImage(imgP, "localhost:3457", 10);
+				return null;
+			},
+			() -> {
+				final List<ImgPlus<?>> imgs = new ArrayList<>(repetitions);
+				for (int i=0; i < repetitions; ++i)
+					imgs.add( ImgTransfer.receiveImage(3457, 10) );
+				return imgs;
+			} );
+
+		for (ImgPlus<?> imgPP : imgsPP)
+			assertSameImages(imgP, imgPP, "repeated transfer");
+		System.out.println("--> received "+imgsPP.size()+" images in "
+			+(System.currentTimeMillis()-time)+" ms, all are the same\n");
+	}
+
+
+	/** sends the same image 'repetitions' times over one ImgTransfer channel */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Channel(final T type, final int repetitions)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+
+		final long time = System.currentTimeMillis();
+		final List<ImgPlus<?>> imgsPP = sendAndReceive(
+			() -> {
+				final ImgSendChannel channel = ImgTransfer.openSendChannel("localhost:3457", 10, null);
+				for (int i=0; i < repetitions; ++i)
+					channel.send(imgP);
+				channel.close();
+				return null;
+			},
+			() -> receiveAll(ImgTransfer.openReceiveChannel(3457, 10, null)) );
+
+		if (imgsPP.size() != repetitions)
+			throw new AssertionError("channel: received "+imgsPP.size()+" images instead of "+repetitions);
+		for (ImgPlus<?> imgPP : imgsPP)
+			assertSameImages(imgP, imgPP, "channel");
+		System.out.println("--> received "+imgsPP.size()+" images in "
+			+(System.currentTimeMillis()-time)+" ms, all are the same\n");
+	}
+
+
+	/** sends an image split into 'stripes' parallel transfers */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Striped(final T type, final int stripes)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new PlanarImgFactory(type).create(200,100,15) ) );
+
+		final ImgPlus<?> imgPP = sendAndReceive(
+			() -> { ImgTransfer.sendImageStriped(imgP, "localhost:3460", stripes, 10, null); return null; },
+			() -> ImgTransfer.receiveImageStriped(3460, stripes, 10, null) );
+
+		System.out.println("got this image: "+imgPP.getImg().toString()
+		                  +" of "+imgPP.getImg().firstElement().getClass().getSimpleName());
+		assertSameImages(imgP, imgPP, "striped transfer");
+		System.out.println("--> send and receive images are the same\n");
+	}
+
+
+	/** sends an image whose content is compressed with the 'codec' */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Compressed(final T type, final ChunkCodec codec)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(2000,1000,5) ) );
+
+		final long time = System.currentTimeMillis();
+		final ImgPlus<?> imgPP = sendAndReceive(
+			() -> { ImgTransfer.sendImage(imgP, "localhost:3457", 10, null, codec); return null; },
+			() -> ImgTransfer.receiveImage(3457, 10, null) );
+
+		System.out.println("got this image in "+(System.currentTimeMillis()-time)
+			+" ms using the "+codec.getName()+" codec");
+		assertSameImages(imgP, imgPP, "compressed transfer");
+		System.out.println("--> send and receive images are the same\n");
+	}
+
+
+	/** sends (with a plain ZMQ socket) a raw stream that starts like the headers used
+	    to, and then a stream whose encoded chunk claims to be larger than announced */
+	static
+	void testStreamHeader()
+	throws Exception
+	{
+		final ZMQ.Context zmqContext = ZMQ.context(1);
+		try {
+			//a raw stream is read as it is, whatever it starts with
+			final byte[] raw = "ZMQCODECdeflate, ZMQCHECKCRC32 and ZMQSTRM".getBytes(StandardCharsets.US_ASCII);
+			ZMQ.Socket zmqSocket = zmqContext.socket(ZMQ.PAIR);
+			zmqSocket.connect("tcp://localhost:3499");
+			zmqSocket.send(raw);
+
+			final byte[] received = new byte[raw.length];
+			final ZeroMQInputStream zis = new ZeroMQInputStream(3499, 5);
+			new DataInputStream(zis).readFully(received);
+			zis.close();
+			zmqSocket.close();
+			if (!Arrays.equals(raw, received))
+				throw new AssertionError("raw stream was not read as it is");
+			System.out.println("--> raw stream that starts like a header is read as it is");
+
+			//the encoded chunk must not be larger than the chunk size in the header
+			zmqSocket = zmqContext.socket(ZMQ.PAIR);
+			zmqSocket.connect("tcp://localhost:3499");
+			zmqSocket.sendMore(StreamHeader.TAG);
+			zmqSocket.send(new StreamHeader(1000, DeflateCodec.NAME, null).getDescription());
+			zmqSocket.send(ByteBuffer.allocate(8).putInt(1<<30).array());
+
+			final ZeroMQInputStream bzis = new ZeroMQInputStream(3499, 5);
+			try {
+				bzis.read();
+				throw new AssertionError("oversized encoded chunk was not detected");
+			}
+			catch (IOException e) {
+				System.out.println("--> oversized encoded chunk was detected: "+e.getMessage()+"\n");
+			}
+			finally {
+				bzis.close();
+				zmqSocket.close();
+			}
+		}
+		finally {
+			zmqContext.term();
+		}
+	}
+
+
+	/** sends a sequence of slightly changing images in the delta mode */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_DeltaChannel(final T type, final int repetitions, final int keyFrameInterval)
+	throws Exception
+	{
+		//every image differs from the previous one in a few pixels
+		final List<ImgPlus<T>> imgs = new ArrayList<>(repetitions);
+		for (int i=0; i < repetitions; ++i)
+		{
+			final Img<T> img = fillImg( new ArrayImgFactory(type).create(1000,500,5) );
+			final RandomAccess<T> ra = img.randomAccess();
+			for (int x=0; x < 10*i; ++x)
+			{
+				ra.setPosition(new int[] {x,i,0});
+				ra.get().setReal(i);
+			}
+			imgs.add( new ImgPlus<>(img) );
+		}
+
+		final long time = System.currentTimeMillis();
+		final List<ImgPlus<?>> imgsPP = sendAndReceive(
+			() -> {
+				final ImgSendChannel channel
+					= ImgTransfer.openSendChannel("localhost:3457", 10, null, new DeflateCodec(), keyFrameInterval);
+				for (ImgPlus<T> imgP : imgs)
+					channel.send(imgP);
+				channel.close();
+				return null;
+			},
+			() -> receiveAll(ImgTransfer.openReceiveChannel(3457, 10, null)) );
+
+		if (imgsPP.size() != repetitions)
+			throw new AssertionError("delta channel: received "+imgsPP.size()+" images instead of "+repetitions);
+		for (int i=0; i < repetitions; ++i)
+			assertSameImages(imgs.get(i), imgsPP.get(i), "delta channel, image #"+i);
+		System.out.println("--> received "+imgsPP.size()+" delta-encoded images in "
+			+(System.currentTimeMillis()-time)+" ms, all are the same\n");
+	}
+
+
+	/** accesses an image that is pulled cell by cell, with only 'maxCachedCells' cells in memory */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_RemoteCells(final T type, final int maxCachedCells)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(500,300,5) ) );
+
+		//(the cells are served until the requester closes the image, so it is checked right away)
+		final long time = System.currentTimeMillis();
+		final long cellsPulled = sendAndReceive(
+			() -> { ImgTransfer.serveCells(imgP, 3457, new int[] {128,128,1}, 10, null); return null; },
+			() -> {
+				try (RemoteCellImg<?> remoteImg = ImgTransfer.requestCells("localhost:3457", maxCachedCells, 10, null))
+				{
+					assertSameImages(imgP, remoteImg.getImgPlus(), "remote cells");
+					return remoteImg.getCellsPulled();
+				}
+			} );
+
+		System.out.println("--> pulled "+cellsPulled+" cells in "+(System.currentTimeMillis()-time)
+			+" ms, all pixels are the same\n");
+	}
+
+
+	/** requests only a region (a crop and every other slice) of an image */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Region(final T type)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+		final Hyperslab region = new Hyperslab(new long[] {10,20,0}, new long[] {109,69,4}, new long[] {1,1,2});
+
+		final ImgPlus<?> imgPP = sendAndReceive(
+			() -> { ImgTransfer.serveImageRegion(imgP, 3457, 10, null); return null; },
+			() -> ImgTransfer.requestImageRegion("localhost:3457", region, 10, null) );
+
+		//the expected region, copied into an image of its own
+		final RandomAccessibleInterval<T> view = region.apply(imgP.getImg());
+		final Img<T> regionImg = new ArrayImgFactory(type).create(view);
+		final Cursor<T> cR = Views.flatIterable(regionImg).cursor();
+		for (T px : Views.flatIterable(view))
+			cR.next().set(px);
+
+		System.out.println("got this region: "+imgPP.getImg().toString()+" of "+region);
+		assertSameImages(new ImgPlus<>(regionImg), imgPP, "region");
+		System.out.println("--> requested region and received image are the same\n");
+	}
+
+
+	/** requests an image progressively, that is, from its coarsest resolution level */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Progressive(final T type, final int levels)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(2000,1000,5) ) );
+
+		final long time = System.currentTimeMillis();
+		final ImgPlus<?> imgPP = sendAndReceive(
+			() -> { ImgTransfer.serveImageProgressive(imgP, 3457, levels, 10, null); return null; },
+			() -> ImgTransfer.requestImageProgressive("localhost:3457",
+				(levelImg, level) -> System.out.println("level "+level+" arrived after "
+					+(System.currentTimeMillis()-time)+" ms: "+levelImg.getImg().toString()),
+				10, null) );
+
+		assertSameImages(imgP, imgPP, "progressive transfer");
+		System.out.println("--> send and receive images are the same\n");
+	}
+
+
+	/** serves one image to 'requesters' requesters at the same time */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_FanOut(final T type, final int requesters)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(2000,1000,5) ) );
+
+		final List<Callable<ImgPlus<?>>> requests = new ArrayList<>(requesters);
+		for (int i=0; i < requesters; ++i)
+			requests.add( () -> ImgTransfer.requestSharedImage("localhost:3480", 10, null) );
+
+		final long time = System.currentTimeMillis();
+		final List<ImgPlus<?>> imgsPP = sendAndReceive(
+			() -> {
+				final int served = ImgTransfer.serveImageToMany(imgP, 3480, requesters, 10, null);
+				if (served != requesters)
+					throw new AssertionError("fan-out: served "+served+" requesters instead of "+requesters);
+				return null;
+			},
+			requests );
+
+		for (ImgPlus<?> imgPP : imgsPP)
+			assertSameImages(imgP, imgPP, "fan-out");
+		System.out.println("--> served "+imgsPP.size()+" requesters in "
+			+(System.currentTimeMillis()-time)+" ms, all images are the same\n");
+	}
+
+
+	/** serves two named images to 'clients' concurrent clients */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgServer(final T type, final int clients)
+	throws Exception
+	{
+		final ImgPlus<T> imgA
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(2000,1000,3) ) );
+		final ImgPlus<T> imgB
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+
+		try (ImgServer server = new ImgServer(3481, 2, 10))
+		{
+			server.register("A", imgA);
+			server.register("B", imgB);
+
+			final List<Callable<ImgPlus<?>>> requests = new ArrayList<>(clients);
+			for (int i=0; i < clients; ++i)
+			{
+				final String name = i % 2 == 0 ? "A" : "B";
+				requests.add( () -> ImgTransfer.requestImage("localhost:3481", name, 10, null) );
+			}
+
+			final long time = System.currentTimeMillis();
+			final List<ImgPlus<?>> imgsPP = sendAndReceive(null, requests);
+			for (int i=0; i < clients; ++i)
+				assertSameImages(i % 2 == 0 ? imgA : imgB, imgsPP.get(i), "server, client #"+i);
+			System.out.println("--> served "+server.getImagesServed()+" images in "
+				+(System.currentTimeMillis()-time)+" ms, all images are the same");
+
+			try {
+				ImgTransfer.requestImage("localhost:3481", "C", 10, null);
+				throw new AssertionError("server: the unknown image has been served");
+			}
+			catch (IOException e) {
+				System.out.println("--> this should complain about the unknown image: "+e.getMessage());
+			}
+
+			//(the server learns only a moment later that the refusal has been read)
+			Thread.sleep(200);
+			if (server.getImagesServed() != clients)
+				throw new AssertionError("server: served "+server.getImagesServed()+" images instead of "+clients);
+			System.out.println("--> the refusal is not counted as a served image\n");
+		}
+	}
+
+
+	/** transfers an image asynchronously, and cancels a transfer that cannot succeed */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Async(final T type)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final CompletableFuture<Void> served = ImgTransfer.serveImageAsync(imgP, 3482, 10, null);
+			final ImgPlus<?> imgPP = ImgTransfer.requestImageAsync("localhost:3482", 10, null, executor).get();
+			served.get();
+			System.out.println("--> send and receive images are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)imgPP));
+
+			//nobody serves here, the transfer would wait for 60 seconds
+			final CompletableFuture<ImgPlus<?>> hopeless = ImgTransfer.requestImageAsync("localhost:3483", 60, null, executor);
+			Thread.sleep(500);
+			hopeless.cancel(true);
+
+			//the executor's only thread must be available again soon
+			final long time = System.currentTimeMillis();
+			executor.submit( () -> {} ).get();
+			System.out.println("--> cancelled transfer has released its thread after "
+				+(System.currentTimeMillis()-time)+" ms\n");
+		}
+		catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+
+	/** streams the images to a slow subscriber that requests them one by one,
+	    the sender is waiting for the demand longer than its timeout */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Reactive(final T type, final int frames)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+
+		//publishes the same image 'frames' times, only as they are requested
+		final ImgFlow.Publisher<ImgPlus<T>> producer = subscriber ->
+			subscriber.onSubscribe(new ImgFlow.Subscription()
+			{
+				int produced = 0;
+
+				@Override
+				public synchronized void request(long n)
+				{
+					while (n-- > 0 && produced < frames)
+					{
+						++produced;
+						subscriber.onNext(imgP);
+					}
+					if (produced == frames) subscriber.onComplete();
+				}
+
+				@Override
+				public void cancel() {}
+			});
+
+		final CompletableFuture<Boolean> received = new CompletableFuture<>();
+		final ImgFlow.Subscriber<ImgPlus<?>> consumer = new ImgFlow.Subscriber<ImgPlus<?>>()
+		{
+			ImgFlow.Subscription subscription;
+			int count = 0;
+			boolean allSame = true;
+
+			@Override
+			public void onSubscribe(ImgFlow.Subscription s)
+			{
+				subscription = s;
+				s.request(1);
+			}
+
+			@Override
+			public void onNext(ImgPlus<?> imgPP)
+			{
+				allSame &= areBothImagesTheSame(imgP,(ImgPlus)imgPP);
+				System.out.println("--> consumed image #"+(++count));
+				try {
+					//slower than the sender's timeout once
+					Thread.sleep(count == 2 ? 1500 : 100);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable t)
+			{
+				received.completeExceptionally(t);
+			}
+
+			@Override
+			public void onComplete()
+			{
+				received.complete(allSame && count == frames);
+			}
+		};
+
+		try {
+			ImgTransfer.openReceivePublisher(3484, 1, null).subscribe(consumer);
+
+			final ImgSendSubscriber<T> sender = ImgTransfer.openSendSubscriber("localhost:3484", 1, null);
+			producer.subscribe(sender);
+
+			System.out.println("--> all "+frames+" send and receive images are the same: "+received.get());
+			sender.whenDone().get();
+			System.out.println("--> sender has sent "+sender.getImagesSent()+" images\n");
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/** breaks the transfer by interrupting the sender, and resumes it with another sender */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Resumable(final T type)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(2000,2000,10) ) );
+
+		final ProgressCallback log = new ProgressCallback()
+		{
+			@Override
+			public void info(String msg)
+			{
+				if (msg.startsWith("resuming") || msg.startsWith("transfer")) System.out.println("--> "+msg);
+			}
+
+			@Override
+			public void setProgress(float howFar) {}
+		};
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<ImgPlus<?>> received
+				= executor.submit( () -> ImgTransfer.receiveImageResumable(3485, 2, 3, log) );
+
+			//the first sender is not allowed to resume, and gets interrupted soon
+			final Future<?> broken
+				= executor.submit( () -> { ImgTransfer.sendImageResumable(imgP, "localhost:3485", 42, 2, 0, log); return null; } );
+			Thread.sleep(500);
+			broken.cancel(true);
+			try {
+				broken.get();
+			}
+			catch (CancellationException e) {
+				//expected
+			}
+
+			ImgTransfer.sendImageResumable(imgP, "localhost:3485", 42, 2, 3, log);
+			System.out.println("--> send and receive images are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)received.get())+"\n");
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+
+	/** sends an image from the 'addr' to the 'endpoint' (where it is received) */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Endpoints(final T type, final String endpoint, final String addr)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(1000,1000,10) ) );
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			long time = System.currentTimeMillis();
+			final Future<?> sent
+				= executor.submit( () -> { ImgTransfer.sendImage(imgP, addr, 10, null); return null; } );
+			final ImgPlus<?> imgPP = ImgTransfer.receiveImage(endpoint, 10, null);
+			sent.get();
+			time = System.currentTimeMillis() - time;
+
+			System.out.println("--> image received at "+endpoint+" in "+time+" ms (by reference: "
+				+(imgPP == imgP)+"), send and receive images are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)imgPP));
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/** serves the pixels and the shared image at the "inproc://" endpoints,
+	    and sends the stripes to the "ipc://" endpoints */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_EndpointVariants(final T type)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(1000,1000,10) ) );
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> served
+				= executor.submit( () -> { ImgTransfer.serveImagePixels(imgP, "inproc://pixels", 10, null); return null; } );
+			Thread.sleep(200); //(the "inproc://" endpoint must be bound before it is connected to)
+			final Img<T> img = new ArrayImgFactory<>(type).create(1000,1000,10);
+			ImgTransfer.requestImageInto(img, "inproc://pixels", 10, null);
+			served.get();
+			System.out.println("--> pixels requested from inproc://, send and receive images are the same: "
+				+areBothImagesTheSame(imgP, new ImgPlus<>(img)));
+
+			final Future<Integer> servedToMany
+				= executor.submit( () -> ImgTransfer.serveImageToMany(imgP, "inproc://many", 2, 10, null) );
+			Thread.sleep(200);
+			final Future<ImgPlus<?>> requested
+				= executor.submit( () -> ImgTransfer.requestSharedImage("inproc://many", 10, null) );
+			final ImgPlus<?> imgPP = ImgTransfer.requestSharedImage("inproc://many", 10, null);
+			System.out.println("--> shared image requested from inproc:// by "+servedToMany.get()
+				+" requesters, send and receive images are the same: "
+				+(areBothImagesTheSame(imgP,(ImgPlus)imgPP) && areBothImagesTheSame(imgP,(ImgPlus)requested.get())));
+
+			served = executor.submit( () -> {
+				ImgTransfer.sendImageStriped(imgP, "ipc:///tmp/imglib2ZMQ-stripes", 3, 10, null);
+				return null; } );
+			final ImgPlus<?> stripedImgP = ImgTransfer.receiveImageStriped("ipc:///tmp/imglib2ZMQ-stripes", 3, 10, null);
+			served.get();
+			System.out.println("--> stripes received at ipc://, send and receive images are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)stripedImgP)+"\n");
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/** sends a sequence of images over the ZMQ "inproc://" sockets (of the default pool) */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_InprocChannel(final T type, final int repetitions)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(200,100,5) ) );
+
+		try {
+			final ImgReceiveChannel rchannel = ImgTransfer.openReceiveChannel("inproc://channel", 10, null);
+
+			final ExecutorService executor = Executors.newSingleThreadExecutor();
+			final Future<?> sent = executor.submit( () ->
+			{
+				final ImgSendChannel channel = ImgTransfer.openSendChannel("inproc://channel", 10, null);
+				for (int i=0; i < repetitions; ++i)
+					channel.send(imgP);
+				channel.close();
+				return null;
+			} );
+			executor.shutdown();
+
+			boolean allSame = true;
+			ImgPlus<?> imgPP = rchannel.receive();
+			while (imgPP != null)
+			{
+				allSame &= areBothImagesTheSame(imgP,(ImgPlus)imgPP);
+				imgPP = rchannel.receive();
+			}
+			rchannel.close();
+			sent.get();
+
+			System.out.println("--> received "+rchannel.getFramesReceived()
+				+" images over inproc://, all are the same: "+allSame+"\n");
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/** sends an image via the /dev/shm to the port 3491 */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Shared(final T type)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(1000,1000,10) ) );
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			long time = System.currentTimeMillis();
+			final Future<?> sent
+				= executor.submit( () -> { ImgTransfer.sendImageShared(imgP, "localhost:3491", 10, null); return null; } );
+			final ImgPlus<?> imgPP = ImgTransfer.receiveImageShared(3491, 10, null);
+			sent.get();
+			time = System.currentTimeMillis() - time;
+
+			System.out.println("--> image received via shared memory in "+time+" ms (as "
+				+imgPP.getImg().getClass().getSimpleName()+"), send and receive images are the same: "
+				+areBothImagesTheSame(imgP,(ImgPlus)imgPP));
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+
+	/** sends the pixels into the existing images, first a single image, then 'repetitions' frames */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Into(final T type, final int repetitions)
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(1000,1000,10) ) );
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			//ArrayImg into PlanarImg
+			final Img<T> planarImg = new PlanarImgFactory<>(type).create(1000,1000,10);
+			long time = System.currentTimeMillis();
+			Future<?> sent
+				= executor.submit( () -> { ImgTransfer.sendImagePixels(imgP, "localhost:3492", 10, null); return null; } );
+			ImgTransfer.receiveImageInto(planarImg, 3492, 10, null);
+			sent.get();
+			time = System.currentTimeMillis() - time;
+			System.out.println("--> pixels received into PlanarImg in "+time+" ms, send and receive images are the same: "
+				+areBothImagesTheSame(imgP, new ImgPlus<>(planarImg)));
+
+			//ArrayImg into CellImg (with cells that do not tile the image exactly), and back
+			final Img<T> cellImg = new CellImgFactory<>(type, 64,50,3).create(1000,1000,10);
+			time = System.currentTimeMillis();
+			sent = executor.submit( () -> { ImgTransfer.sendImagePixels(imgP, "localhost:3492", 10, null); return null; } );
+			ImgTransfer.receiveImageInto(cellImg, 3492, 10, null);
+			sent.get();
+			time = System.currentTimeMillis() - time;
+			System.out.println("--> pixels received into CellImg in "+time+" ms, send and receive images are the same: "
+				+areBothImagesTheSame(imgP, new ImgPlus<>(cellImg)));
+
+			final Img<T> fromCellsImg = new ArrayImgFactory<>(type).create(1000,1000,10);
+			sent = executor.submit( () -> { ImgTransfer.sendImagePixels(new ImgPlus<>(cellImg), "localhost:3492", 10, null); return null; } );
+			ImgTransfer.receiveImageInto(fromCellsImg, 3492, 10, null);
+			sent.get();
+			System.out.println("--> pixels sent from CellImg, send and receive images are the same: "
+				+areBothImagesTheSame(imgP, new ImgPlus<>(fromCellsImg)));
+
+			//image of other size is refused
+			final Img<T> smallImg = new ArrayImgFactory<>(type).create(100,100,10);
+			sent = executor.submit( () -> { ImgTransfer.sendImagePixels(imgP, "localhost:3492", 2, null); return null; } );
+			try {
+				ImgTransfer.receiveImageInto(smallImg, 3492, 2, null);
+				System.out.println("--> image of other size NOT refused");
+			}
+			catch (IOException e) {
+				System.out.println("--> image of other size refused: "+e.getMessage());
+			}
+			try {
+				sent.get();
+			}
+			catch (ExecutionException e) {
+				//expected, the receiver has gone away
+			}
+
+			//frames into one image
+			final Img<T> frameImg = new ArrayImgFactory<>(type).create(1000,1000,10);
+			sent = executor.submit( () -> {
+				final ImgSendChannel channel = ImgTransfer.openSendChannel("localhost:3493", 10, null);
+				for (int i=0; i < repetitions; ++i)
+					channel.sendPixels(imgP);
+				channel.close();
+				return null;
+			} );
+
+			final ImgReceiveChannel channel = ImgTransfer.openReceiveChannel(3493, 10, null);
+			time = System.currentTimeMillis();
+			boolean allSame = true;
+			while (channel.receiveInto(frameImg))
+				allSame &= areBothImagesTheSame(imgP, new ImgPlus<>(frameImg));
+			time = System.currentTimeMillis() - time;
+			channel.close();
+			sent.get();
+
+			System.out.println("--> received "+channel.getFramesReceived()+" frames into one image in "+time
+				+" ms, all are the same: "+allSame+"\n");
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+
+	/** sends 'repetitions' images one by one, and then over a channel, while 'chunks' are prefetched,
+	    and sends a few chunks to a prefetching reader that is slower than the timeout of its session */
+	static <T extends RealType<T> & NativeType<T>>
+	void testImgTransfer_Prefetched(final T type, final int chunks, final int repetitions)
+	throws Exception
+	{
+		final ImgPlus<T> imgP
+			= new ImgPlus<>( fillImg( new ArrayImgFactory(type).create(1000,1000,10) ) );
+
+		ImgTransfer.setPrefetchedChunks(chunks);
+		try {
+			//the images come one after another over the same (re-used) sessions
+			long time = System.currentTimeMillis();
+			List<ImgPlus<?>> imgsPP = sendAndReceive(
+				() -> {
+					for (int i=0; i < repetitions; ++i)
+						ImgTransfer.sendImage(imgP, "localhost:3494", 10, null);
+					return null;
+				},
+				() -> {
+					final List<ImgPlus<?>> imgs = new ArrayList<>(repetitions);
+					for (int i=0; i < repetitions; ++i)
+						imgs.add( ImgTransfer.receiveImage(3494, 10, null) );
+					return imgs;
+				} );
+
+			for (ImgPlus<?> imgPP : imgsPP)
+				assertSameImages(imgP, imgPP, "prefetched transfer");
+			System.out.println("--> received "+imgsPP.size()+" images with "+chunks+" chunks prefetched in "
+				+(System.currentTimeMillis()-time)+" ms, all are the same");
+
+			time = System.currentTimeMillis();
+			imgsPP = sendAndReceive(
+				() -> {
+					final ImgSendChannel channel = ImgTransfer.openSendChannel("localhost:3495", 10, null);
+					for (int i=0; i < repetitions; ++i)
+						channel.send(imgP);
+					channel.close();
+					return null;
+				},
+				() -> receiveAll(ImgTransfer.openReceiveChannel(3495, 10, null)) );
+
+			if (imgsPP.size() != repetitions)
+				throw new AssertionError("prefetched channel: received "+imgsPP.size()+" images instead of "+repetitions);
+			for (ImgPlus<?> imgPP : imgsPP)
+				assertSameImages(imgP, imgPP, "prefetched channel");
+			System.out.println("--> received "+imgsPP.size()+" frames with "+chunks
+				+" chunks prefetched in "+(System.currentTimeMillis()-time)+" ms, all are the same");
+		}
+		finally {
+			ImgTransfer.setPrefetchedChunks(0);
+		}
+
+		//the reader pauses for longer than the timeout of its session (1 second) after every
+		//chunk, so the prefetched chunks are full for that long; the sender pauses too so that
+		//its next chunk comes only after the reader has read one (but before the timeout)
+		final int chunkSize = 1000, sentChunks = 6;
+		final long readPause = 1500, sendPause = 2000;
+		final long time = System.currentTimeMillis();
+		final List<byte[]> received = sendAndReceive(
+			() -> {
+				final ZeroMQOutputStream zos = new ZeroMQOutputStream("tcp://localhost:3498", 10);
+				final byte[] chunk = new byte[chunkSize];
+				for (int i=0; i < sentChunks; ++i)
+				{
+					if (i == sentChunks-2) Thread.sleep(sendPause);
+					Arrays.fill(chunk, (byte)i);
+					zos.write(chunk);
+					zos.flush();
+				}
+				zos.close();
+				return null;
+			},
+			() -> {
+				final ZeroMQInputStream zis = new ZeroMQInputStream(3498, 1);
+				zis.startPrefetching(2);
+				final List<byte[]> chunksRead = new ArrayList<>();
+				ByteBuffer chunk = zis.readChunk();
+				while (chunk.hasRemaining())
+				{
+					final byte[] bytes = new byte[chunk.remaining()];
+					chunk.get(bytes);
+					chunksRead.add(bytes);
+					Thread.sleep(readPause);
+					chunk = zis.readChunk();
+				}
+				zis.close();
+				return chunksRead;
+			} );
+
+		if (received.size() != sentChunks)
+			throw new AssertionError("slow prefetching reader: received "+received.size()+" chunks instead of "+sentChunks);
+		for (int i=0; i < sentChunks; ++i)
+		{
+			final byte[] expected = new byte[chunkSize];
+			Arrays.fill(expected, (byte)i);
+			if (!Arrays.equals(expected, received.get(i)))
+				throw new AssertionError("slow prefetching reader: chunk "+i+" is NOT the same");
+		}
+		System.out.println("--> slow prefetching reader received "+received.size()+" chunks in "
+			+(System.currentTimeMillis()-time)+" ms, all are the same\n");
+	}
+
+
+	// -------------- helpers --------------
+	/** Runs the 'sender' and every of the 'receivers' each in a thread of its own,
+	 *  and returns what the receivers have returned, in their order. An exception
+	 *  of any side is thrown from here. The 'sender' may be null when the images
+	 *  are served by someone else.
+	 */
+	static <R>
+	List<R> sendAndReceive(final Callable<?> sender, final List<Callable<R>> receivers)
+	throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(1+receivers.size());
+		try {
+			final Future<?> sent = sender != null ? executor.submit(sender) : null;
+			final List<Future<R>> received = new ArrayList<>(receivers.size());
+			for (Callable<R> receiver : receivers)
+				received.add( executor.submit(receiver) );
+
+			final List<R> results = new ArrayList<>(receivers.size());
+			for (Future<R> r : received)
+				results.add( r.get() );
+			if (sent != null) sent.get();
+			return results;
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** runs the 'sender' and the 'receiver' each in a thread of its own,
+	    and returns what the receiver has returned */
+	static <R>
+	R sendAndReceive(final Callable<?> sender, final Callable<R> receiver)
+	throws Exception
+	{
+		return sendAndReceive(sender, Collections.singletonList(receiver)).get(0);
+	}
+
+	/** receives all images from the 'channel' until it is closed, and closes it then */
+	static
+	List<ImgPlus<?>> receiveAll(final ImgReceiveChannel channel)
+	throws IOException
+	{
+		final List<ImgPlus<?>> imgs = new ArrayList<>();
+		ImgPlus<?> imgPP = channel.receive();
+		while (imgPP != null)
+		{
+			imgs.add(imgPP);
+			imgPP = channel.receive();
+		}
+		channel.close();
+		return imgs;
+	}
+
+	/** throws if the 'received' image is not the same as the 'expected' one */
+	static
+	void assertSameImages(final ImgPlus<?> expected, final ImgPlus<?> received, final String what)
+	{
+		if (received == null || !areBothImagesIdentical((ImgPlus)expected,(ImgPlus)received))
+			throw new AssertionError(what+": send and receive images are NOT the same");
+	}
 }